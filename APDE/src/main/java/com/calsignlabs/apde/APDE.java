@@ -24,7 +24,11 @@ import android.widget.TextView;
 
 import com.calsignlabs.apde.FileNavigatorAdapter.FileItem;
 import com.calsignlabs.apde.build.Manifest;
+import com.calsignlabs.apde.build.DexCache;
+import com.calsignlabs.apde.build.PackageIndex;
+import com.calsignlabs.apde.build.SketchCompiler;
 import com.calsignlabs.apde.contrib.Library;
+import com.calsignlabs.apde.contrib.LibraryRegistry;
 import com.calsignlabs.apde.support.AndroidPlatform;
 import com.calsignlabs.apde.support.ScrollingTabContainerView;
 import com.calsignlabs.apde.task.TaskManager;
@@ -59,6 +63,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 
 import processing.app.Base;
 
@@ -80,8 +85,7 @@ public class APDE extends Application {
 	private EditorActivity editor;
 	private SketchPropertiesActivity properties;
 	
-	private HashMap<String, ArrayList<Library>> importToLibraryTable;
-	private ArrayList<Library> contributedLibraries;
+	private LibraryRegistry libraryRegistry;
 	
 	private HashMap<String, Tool> packageToToolTable;
 	private ArrayList<Tool> tools;
@@ -176,6 +180,14 @@ public class APDE extends Application {
 		return taskManager;
 	}
 	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		
+		//The compiler keeps android.jar and the libraries open between builds
+		SketchCompiler.release();
+	}
+	
 	/**
 	 * Changes the name of the current sketch and updates the editor accordingly
 	 * Note: This may or may not do what you think it does
@@ -1227,48 +1239,44 @@ public class APDE extends Application {
 	 * @return the manifest associated with the current sketch
 	 */
 	public Manifest getManifest() {
-		Manifest mf = new Manifest(new com.calsignlabs.apde.build.Build(this));
+		Manifest mf = new Manifest(getSketchName(), getSketchLocation());
 		mf.load();
 
 		return mf;
 	}
 	
-	public void rebuildLibraryList() {
-		// Reset the table mapping imports to libraries
-		importToLibraryTable = new HashMap<String, ArrayList<Library>>();
-		
-		// Android mode has no core libraries - but we'll leave this here just in case
-		
-//		coreLibraries = Library.list(librariesFolder);
-//		for (Library lib : coreLibraries) {
-//			lib.addPackageList(importToLibraryTable);
-//		}
-		
-		File contribLibrariesFolder = getLibrariesFolder();
-		if (contribLibrariesFolder != null) {
-			contributedLibraries = Library.list(contribLibrariesFolder);
-			for (Library lib : contributedLibraries) {
-				lib.addPackageList(importToLibraryTable,
-						(APDE) editor.getApplicationContext());
-			}
+	/**
+	 * @return the registry of the installed libraries, which is kept up to date with the
+	 * libraries folder
+	 */
+	public synchronized LibraryRegistry getLibraryRegistry() {
+		if (libraryRegistry == null) {
+			//The JARs that haven't changed since they were last scanned don't have to be opened again
+			PackageIndex.load(new File(getFilesDir(), PackageIndex.INDEX_FILENAME));
+			DexCache.load(new File(getFilesDir(), DexCache.FOLDER_NAME));
+			
+			libraryRegistry = new LibraryRegistry(this);
 		}
+		
+		//The sketchbook might have moved
+		libraryRegistry.watch(getLibrariesFolder());
+		
+		return libraryRegistry;
 	}
 	
-	public HashMap<String, ArrayList<Library>> getImportToLibraryTable() {
-		return importToLibraryTable;
+	/**
+	 * Looks at every library again. The registry normally notices changes by itself.
+	 */
+	public void rebuildLibraryList() {
+		getLibraryRegistry().rescan();
 	}
 	
-	public ArrayList<Library> getLibraries() {
-		return contributedLibraries;
+	public List<Library> getLibraries() {
+		return getLibraryRegistry().getSnapshot().getLibraries();
 	}
 	
 	public String[] listLibraries() {
-		String[] output = new String[contributedLibraries.size()];
-		for (int i = 0; i < contributedLibraries.size(); i++) {
-			output[i] = contributedLibraries.get(i).getName();
-		}
-		
-		return output;
+		return getLibraryRegistry().getSnapshot().getLibraryNames();
 	}
 	
 	/**
@@ -1277,13 +1285,7 @@ public class APDE extends Application {
 	 *         found
 	 */
 	public Library getLibraryByName(String name) {
-		for (Library lib : getLibraries()) {
-			if (lib.getName().equals(name)) {
-				return lib;
-			}
-		}
-
-		return null;
+		return getLibraryRegistry().getSnapshot().getLibrary(name);
 	}
 	
 	public void rebuildToolList() {
@@ -95,6 +95,14 @@ public class CodeEditText extends EditText {
 	//Used to indicate that the code area is currently being updated in such a way that we should not save the change in the undo history
 	private boolean FLAG_NO_UNDO_SNAPSHOT = false;
 	
+	//Compiles the sketch in the background once the user has stopped typing
+	private Runnable precompile = new Runnable() {
+		@Override
+		public void run() {
+			((APDE) context.getApplicationContext()).getEditor().precompileSketch();
+		}
+	};
+	
 	public CodeEditText(Context context) {
 		super(context);
 		init();
@@ -165,6 +173,21 @@ public class CodeEditText extends EditText {
 		highlights = new ArrayList<Highlight>();
 	}
 	
+	/**
+	 * Restarts the countdown to compiling the sketch in the background. It is never shorter
+	 * than the time that it takes for an edit to be saved to the undo history.
+	 */
+	private void schedulePrecompile() {
+		removeCallbacks(precompile);
+		
+		long idleTime = Long.parseLong(PreferenceManager.getDefaultSharedPreferences(context).getString("pref_build_precompile_idle",
+				context.getResources().getString(R.string.build_precompile_idle_default_value)));
+		
+		if (idleTime > 0) {
+			postDelayed(precompile, Math.max(idleTime, UNDO_UPDATE_TIME));
+		}
+	}
+	
 	public void setupTextListener() {
 		addTextChangedListener(new TextWatcher() {
 			private String oldText;
@@ -227,6 +250,11 @@ public class CodeEditText extends EditText {
 						meta.update(editor, false);
 					}
 				}
+				
+				//Only for the user's own edits, not e.g. switching tabs
+				if (!FLAG_NO_UNDO_SNAPSHOT) {
+					schedulePrecompile();
+				}
 			}
 			
 			@Override
@@ -3,10 +3,12 @@ package com.calsignlabs.apde;
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
@@ -15,6 +17,7 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.IBinder;
 import android.os.Parcelable;
 import android.preference.PreferenceManager;
 import android.support.v4.app.ActionBarDrawerToggle;
@@ -59,6 +62,8 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 
 import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.BuildService;
+import com.calsignlabs.apde.build.EditorBuildEnvironment;
 import com.calsignlabs.apde.build.Manifest;
 import com.calsignlabs.apde.support.PopupMenu;
 import com.calsignlabs.apde.support.ScrollingTabContainerView;
@@ -140,8 +145,11 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
 	//Recieve log / console output from sketches
 	private BroadcastReceiver consoleBroadcastReceiver;
 	
-	//Whether or not we are currently building a sketch
-	private boolean building;
+	//Runs the builds so that they survive rotation and backgrounding
+	private BuildService buildService;
+	private ServiceConnection buildServiceConnection;
+	//Set if the user pressed Run before the build service was bound
+	private boolean runWhenBound;
 	
 	//Whether or not the message area is currently displaying an error message
 	private boolean errorMessage = false;
@@ -196,6 +204,27 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
 		// Register receiver for sketch logs / console output
 		registerReceiver(consoleBroadcastReceiver, new IntentFilter("com.calsignlabs.apde.LogBroadcast"));
 		
+		// Connect to the build service
+		buildServiceConnection = new ServiceConnection() {
+			@Override
+			public void onServiceConnected(ComponentName name, IBinder binder) {
+				buildService = ((BuildService.BuildBinder) binder).getService();
+				
+				//Run the sketch now if the user didn't want to wait
+				if (runWhenBound) {
+					runWhenBound = false;
+					runApplication();
+				}
+			}
+			
+			@Override
+			public void onServiceDisconnected(ComponentName name) {
+				buildService = null;
+			}
+		};
+		
+		bindService(new Intent(this, BuildService.class), buildServiceConnection, Context.BIND_AUTO_CREATE);
+		
 		getGlobalState().initTaskManager();
 		
 		// Make sure that we have a good sketchbook folder to use
@@ -943,7 +972,7 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
     	//This is the code to delete the old APK file
     	if (requestCode == FLAG_DELETE_APK) {
-    		Build.cleanUpPostLaunch(this);
+    		EditorBuildEnvironment.cleanUpPostLaunch(this, buildService);
     	}
     	
     	ActivityResultCallback action = activityResultCodes.get(requestCode);
@@ -1415,6 +1444,10 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
 		//Unregister the log / console receiver
     	unregisterReceiver(consoleBroadcastReceiver);
     	
+    	//Any running build keeps going, the service stays started until it's done
+    	unbindService(buildServiceConnection);
+    	buildService = null;
+    	
     	super.onDestroy();
 	}
 	
@@ -2500,25 +2533,51 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
     		return;
     	}
     	
-    	//In case the user presses the button twice, we don't want any errors
-    	if(building) {
+    	//The service binds asynchronously, so it might not be there yet if the user is really quick
+    	//Then the sketch runs once it's bound
+    	if(buildService == null) {
+    		runWhenBound = true;
     		return;
     	}
     	
     	//Clear the console
     	((TextView) findViewById(R.id.console)).setText("");
     	
-    	final Build builder = new Build(getGlobalState());
+    	//Take the snapshot of the tabs here, on the UI thread
+    	//If the user presses the button twice, the service takes care of it
+    	buildService.build(EditorBuildEnvironment.createRequest(getGlobalState()), new EditorBuildEnvironment(getGlobalState()));
+    }
+    
+    /**
+     * Compiles the sketch in the background so that running it only has to package and install
+     * it. The code area calls this once the user has stopped typing for a while.
+     */
+    public void precompileSketch() {
+    	//The sketch has to be saved before it can be built
+    	if(getGlobalState().getSketchLocationType().equals(APDE.SketchLocation.TEMPORARY) || buildService == null) {
+    		return;
+    	}
+    	
+    	buildService.precompile(EditorBuildEnvironment.createRequest(getGlobalState()), new EditorBuildEnvironment(getGlobalState()));
+    }
+    
+    /**
+     * Exports the sketch as a signed package. The release build goes through the build service
+     * like every other build, so that it never shares the build folder with another one.
+     *
+     * @param build the release build, with its key set
+     * @param finished run on the build thread once the export is over, may be null
+     * @return whether or not the export was queued
+     */
+    public boolean releaseSketch(Build build, Runnable finished) {
+    	//The service binds asynchronously, so it might not be there yet if the user is really quick
+    	if(buildService == null) {
+    		return false;
+    	}
+    	
+    	buildService.release(build, finished);
     	
-    	//Build the sketch in a separate thread
-    	Thread buildThread = new Thread(new Runnable() {
-    		@Override
-    		public void run() {
-    			building = true;
-    			builder.build("debug");
-    			building = false;
-    	}});
-    	buildThread.start();
+    	return true;
     }
     
     /**
@@ -2530,8 +2589,11 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
     	//I don't think we can stop a running app...
     	//...that's what the BACK button is for
     	
-    	if(building)
-    		Build.halt();
+    	//Don't run it later either
+    	runWhenBound = false;
+    	
+    	if(buildService != null)
+    		buildService.halt();
     }
     
     /**
@@ -3304,7 +3366,6 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
 	}
 	
 	public void launchImportLibrary() {
-		getGlobalState().rebuildLibraryList();
 		final String[] libList = getGlobalState().listLibraries();
 		
 		//Display a dialog containing the list of libraries
@@ -3360,8 +3421,6 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
 	}
 	
 	public void launchManageLibraries() {
-		getGlobalState().rebuildLibraryList();
-		
 		Intent intent = new Intent(this, LibraryManagerActivity.class);
 		startActivity(intent);
 	}
@@ -3634,7 +3693,8 @@ public class EditorActivity extends ActionBarActivity implements ScrollingTabCon
 		public void write(byte b[], int offset, int length) {
 			final String value = new String(b, offset, length);
 			
-			if (!(FLAG_SUSPEND_OUT_STREAM.get() &&
+			//The background compile isn't something that the user asked for
+			if (!((FLAG_SUSPEND_OUT_STREAM.get() || BuildService.isPrecompileThread()) &&
 					!PreferenceManager.getDefaultSharedPreferences(EditorActivity.this)
 							.getBoolean("pref_debug_global_verbose_output", false))) {
 				
@@ -135,7 +135,7 @@ public class LibraryManagerActivity extends ActionBarActivity {
 				
 				if(path != null && FileUtils.isLocal(path)) {
 					File file = new File(path);
-
+					
 					dxDexerOutputFile.setText(file.getAbsolutePath());
 				}
 			}
@@ -586,10 +586,15 @@ public class LibraryManagerActivity extends ActionBarActivity {
 		@Override
 		public void handleMessage(final Message msg) {
 			if(msg.what == ContributionManager.LIBRARY_UPDATE) {
+				//The message is recycled once we return
+				final Library.Status status = (Library.Status) msg.obj;
+				final int done = msg.arg1;
+				final int total = msg.arg2;
+				
 				context.runOnUiThread(new Runnable() {
 					@SuppressLint("NewApi")
 					public void run() {
-						switch((Library.Status) msg.obj) {
+						switch(status) {
 						case COPYING:
 							dialog.setProgressText(res.getString(R.string.copying) + "...");
 							break;
@@ -597,7 +602,12 @@ public class LibraryManagerActivity extends ActionBarActivity {
 							dialog.setProgressText(res.getString(R.string.extracting) + "...");
 							break;
 						case DEXING:
-							dialog.setProgressText(res.getString(R.string.dexing) + "...");
+							if (total > 0) {
+								//Which JAR we're on
+								dialog.setProgressText(res.getString(R.string.dexing) + "... (" + done + "/" + total + ")");
+							} else {
+								dialog.setProgressText(res.getString(R.string.dexing) + "...");
+							}
 							break;
 						case INSTALLED:
 							dialog.setProgress(2);
@@ -651,7 +661,8 @@ public class LibraryManagerActivity extends ActionBarActivity {
 				
 				findViewById(R.id.library_manager_list).post(new Runnable() {
 					public void run() {
-						context.rebuildLibraryList();
+						//Don't wait for the file system to tell the registry
+						context.getLibraryRegistry().refresh(library.getName());
 						refreshLibraryList();
 						findViewById(R.id.library_manager_list).invalidate();
 						
@@ -712,7 +723,8 @@ public class LibraryManagerActivity extends ActionBarActivity {
 				
 				findViewById(R.id.library_manager_list).post(new Runnable() {
 					public void run() {
-						context.rebuildLibraryList();
+						//Don't wait for the file system to tell the registry
+						context.getLibraryRegistry().refresh(library.getName());
 						refreshLibraryList();
 						findViewById(R.id.library_manager_list).invalidate();
 						
@@ -0,0 +1,105 @@
+package com.calsignlabs.apde.build;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An error or a warning from AAPT, e.g.
+ * "/.../build/res/layout/main.xml:5: error: No resource identifier found for attribute...".
+ */
+public class AaptDiagnostic {
+	//"file:line: error: message", the line is left out for some errors
+	private static final Pattern FILE_PATTERN = Pattern.compile("^(.+?):(?:(\\d+):)? (error|warning): (.*)$", Pattern.CASE_INSENSITIVE);
+	//"ERROR: message", for errors that aren't about a particular file
+	private static final Pattern GENERAL_PATTERN = Pattern.compile("^(error|warning):? (.*)$", Pattern.CASE_INSENSITIVE);
+	
+	private String file;
+	private int line;
+	private boolean error;
+	private String message;
+	
+	private AaptDiagnostic(String file, int line, boolean error, String message) {
+		this.file = file;
+		this.line = line;
+		this.error = error;
+		this.message = message;
+	}
+	
+	/**
+	 * @param output a line that AAPT wrote
+	 * @param buildFolder the folder that the resources were built in, paths are made relative to it
+	 * @return the diagnostic, or null if the line isn't one
+	 */
+	public static AaptDiagnostic parse(String output, File buildFolder) {
+		output = output.trim();
+		
+		Matcher matcher = FILE_PATTERN.matcher(output);
+		
+		if (matcher.matches()) {
+			String file = matcher.group(1);
+			String prefix = buildFolder.getAbsolutePath() + "/";
+			
+			//The manifest and the resources have the same paths in the sketch folder
+			if (file.startsWith(prefix)) {
+				file = file.substring(prefix.length());
+			}
+			
+			int line = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : -1;
+			
+			return new AaptDiagnostic(file, line, isError(matcher.group(3)), matcher.group(4));
+		}
+		
+		matcher = GENERAL_PATTERN.matcher(output);
+		
+		if (matcher.matches()) {
+			return new AaptDiagnostic(null, -1, isError(matcher.group(1)), matcher.group(2));
+		}
+		
+		return null;
+	}
+	
+	private static boolean isError(String severity) {
+		return severity.toLowerCase(Locale.US).equals("error");
+	}
+	
+	/**
+	 * @return the file, relative to the sketch folder if it's one of the sketch's, or null
+	 */
+	public String getFile() {
+		return file;
+	}
+	
+	/**
+	 * @return the line in the file (starting at 1), or -1 if there isn't one
+	 */
+	public int getLine() {
+		return line;
+	}
+	
+	public boolean isError() {
+		return error;
+	}
+	
+	public String getMessage() {
+		return message;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder description = new StringBuilder();
+		
+		if (file != null) {
+			description.append(file);
+			
+			if (line != -1) {
+				description.append(':').append(line);
+			}
+			
+			description.append(": ");
+		}
+		
+		return description.append(message).toString();
+	}
+}
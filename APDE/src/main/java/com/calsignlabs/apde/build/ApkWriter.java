@@ -0,0 +1,885 @@
+package com.calsignlabs.apde.build;
+
+import org.spongycastle.util.encoders.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import kellinwood.security.zipsigner.KeySet;
+import kellinwood.security.zipsigner.ZipSigner;
+import kellinwood.security.zipsigner.ZipSignature;
+import kellinwood.security.zipsigner.optional.KeyStoreFileManager;
+import kellinwood.security.zipsigner.optional.SignatureBlockGenerator;
+
+/**
+ * Writes a signed, aligned APK in a single pass. This replaces APKBuilder (which writes an
+ * unsigned APK) followed by ZipSigner (which reads the whole thing back, hashes it, and writes
+ * it out again).
+ *
+ * The SHA-1 digest of every entry is computed while the entry is written, and the signature
+ * files (META-INF/MANIFEST.MF, CERT.SF, and CERT.RSA) are written at the end. The package
+ * installer reads the zip's central directory, so it doesn't matter that they come last.
+ * Stored entries are aligned to four bytes like zipalign does, by padding the extra field.
+ *
+ * Compressing is by far the slowest part, so nothing that has already been compressed is
+ * compressed again. The entries of zip files (the .apk.res and the GLSL shaders) are copied as
+ * they are, and a file whose size and modification time haven't changed since the previous
+ * build is copied out of the previous APK. An index next to the APK remembers what each of its
+ * entries was made from, along with its digest, so unchanged entries don't even have to be
+ * read.
+ *
+ * Files with an extension in the stored extensions (formats that are already compressed, like
+ * PNG and MP3) are stored instead of being deflated, which costs almost nothing in size. Stored
+ * assets can also be memory-mapped by the sketch with AssetManager.openFd() instead of being
+ * inflated.
+ */
+public class ApkWriter {
+	private static final String CREATED_BY = "1.0 (Android SignApk)";
+	
+	private static KeySet debugKeys;
+	
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	
+	private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+	private static final int FLAG_UTF8 = 1 << 11;
+	
+	/**
+	 * The extensions of the files that are stored by default, separated by spaces
+	 */
+	public static final String DEFAULT_STORED_EXTENSIONS = "png jpg jpeg gif webp mp3 ogg aac m4a mp4 3gp webm ttf otf zip";
+	
+	private File apkFile;
+	//The APK is written here and then renamed, because the previous APK is still being read
+	private File tempFile;
+	private File indexFile;
+	private KeySet keySet;
+	
+	private CountingOutputStream out;
+	
+	//The previous APK, and what each of its entries was made from
+	private ZipDirectory previousApk;
+	private Properties previousIndex;
+	private Properties index;
+	
+	//The entries for the central directory
+	private ArrayList<CentralEntry> central;
+	//Entry name -> Base64 SHA-1 digest of its contents, in the order that they were written
+	private LinkedHashMap<String, String> digests;
+	
+	private MessageDigest sha1;
+	private CRC32 crc;
+	private Deflater deflater;
+	private byte[] buffer;
+	
+	//Lower case, without the dot
+	private HashSet<String> storedExtensions;
+	
+	private int compressedEntries;
+	private int storedEntries;
+	private int copiedEntries;
+	private int reusedEntries;
+	
+	/**
+	 * @param apkFile where to write the APK, if there's an APK from a previous build here then its
+	 * unchanged entries are reused
+	 * @param keySet the key to sign it with
+	 */
+	public ApkWriter(File apkFile, KeySet keySet) throws IOException, GeneralSecurityException {
+		this.apkFile = apkFile;
+		this.keySet = keySet;
+		
+		tempFile = new File(apkFile.getPath() + ".tmp");
+		indexFile = new File(apkFile.getPath() + ".index");
+		
+		central = new ArrayList<CentralEntry>();
+		digests = new LinkedHashMap<String, String>();
+		index = new Properties();
+		
+		sha1 = MessageDigest.getInstance("SHA1");
+		crc = new CRC32();
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		buffer = new byte[16 * 1024];
+		
+		setStoredExtensions(DEFAULT_STORED_EXTENSIONS);
+		
+		if (apkFile.exists() && indexFile.exists()) {
+			try {
+				previousIndex = loadIndex(indexFile);
+				previousApk = new ZipDirectory(apkFile);
+			} catch (IOException e) {
+				//Just build it from scratch
+				System.err.println("Failed to read the previous APK, rebuilding it");
+				previousIndex = null;
+			}
+		}
+		
+		out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+	}
+	
+	/**
+	 * @return the debug key that ZipSigner's "testkey" mode uses, loaded once per process
+	 */
+	public static synchronized KeySet getDebugKeys() throws IOException, GeneralSecurityException {
+		if (debugKeys == null) {
+			try {
+				ZipSigner signer = new ZipSigner();
+				signer.setKeymode(ZipSigner.KEY_TESTKEY);
+				
+				debugKeys = signer.getKeySet();
+			} catch (ClassNotFoundException e) {
+				throw new GeneralSecurityException(e);
+			} catch (IllegalAccessException e) {
+				throw new GeneralSecurityException(e);
+			} catch (InstantiationException e) {
+				throw new GeneralSecurityException(e);
+			}
+		}
+		
+		return debugKeys;
+	}
+	
+	/**
+	 * Loads a release key from a keystore, the same way CustomKeySigner does.
+	 */
+	public static KeySet loadKeys(String keystore, char[] keystorePassword, String keyAlias, char[] keyAliasPassword) throws Exception {
+		KeyStore keyStore = KeyStoreFileManager.loadKeyStore(keystore, keystorePassword);
+		
+		X509Certificate certificate = (X509Certificate) keyStore.getCertificate(keyAlias);
+		PrivateKey privateKey = (PrivateKey) keyStore.getKey(keyAlias, keyAliasPassword);
+		
+		return new KeySet("custom", certificate, privateKey, "SHA1WITHRSA", null);
+	}
+	
+	/**
+	 * Adds the entries of a zip file (e.g. the .apk.res from AAPT), keeping their paths and
+	 * their compression. Directories and anything in META-INF are skipped.
+	 */
+	public void addZipFile(File file) throws IOException {
+		ZipDirectory zip = new ZipDirectory(file);
+		
+		try {
+			for (ZipDirectory.Entry entry : zip.getEntries()) {
+				BuildGraph.checkInterrupted();
+				
+				String name = entry.getName();
+				
+				if (entry.isDirectory() || name.startsWith("META-INF/")) {
+					continue;
+				}
+				
+				String stamp = "zip " + entry.getMethod() + " " + entry.getCrc() + " " + entry.getSize() + " " + entry.getCompressedSize();
+				String digest = previousDigest(name, stamp);
+				
+				if (digest == null) {
+					//The digest is of the uncompressed contents, but inflating is cheap
+					InputStream input = zip.open(entry);
+					
+					try {
+						digest = digest(input);
+					} finally {
+						input.close();
+					}
+				}
+				
+				writeRaw(name, zip, entry, digest, stamp);
+				copiedEntries ++;
+			}
+		} finally {
+			zip.close();
+		}
+	}
+	
+	/**
+	 * Sets the extensions of the files to store instead of deflating. This only applies to files
+	 * added with addFile(), the entries of zip files keep their compression.
+	 *
+	 * @param extensions the extensions, separated by spaces or commas (the dots are optional)
+	 */
+	public void setStoredExtensions(String extensions) {
+		storedExtensions = new HashSet<String>();
+		
+		for (String extension : extensions.toLowerCase(Locale.US).split("[\\s,;.]+")) {
+			if (extension.length() > 0) {
+				storedExtensions.add(extension);
+			}
+		}
+	}
+	
+	private boolean isStored(String name) {
+		int dot = name.lastIndexOf('.');
+		
+		return dot != -1 && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+	}
+	
+	/**
+	 * Adds a file, stored if its extension is one of the stored extensions and compressed
+	 * otherwise.
+	 *
+	 * @param name the path of the file in the APK
+	 * @param file
+	 */
+	public void addFile(String name, File file) throws IOException {
+		BuildGraph.checkInterrupted();
+		
+		boolean stored = isStored(name);
+		
+		//The method is part of the stamp so that changing the stored extensions isn't ignored
+		String stamp = "file " + (stored ? "stored" : "deflated") + " " + file.length() + " " + file.lastModified();
+		String digest = previousDigest(name, stamp);
+		ZipDirectory.Entry previous = digest != null ? previousApk.getEntry(name) : null;
+		
+		if (previous != null) {
+			writeRaw(name, previousApk, previous, digest, stamp);
+			reusedEntries ++;
+			return;
+		}
+		
+		if (stored) {
+			writeStored(name, file, stamp);
+			storedEntries ++;
+			return;
+		}
+		
+		InputStream input = new FileInputStream(file);
+		
+		try {
+			writeDeflated(name, input, toDosTime(file.lastModified()), stamp);
+			compressedEntries ++;
+		} finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Adds the files in an assets folder under assets/, skipping the files that AAPT ignores.
+	 */
+	public void addAssetFolder(File folder) throws IOException {
+		addAssetFolder(folder, "assets/");
+	}
+	
+	private void addAssetFolder(File folder, String path) throws IOException {
+		String[] children = folder.list();
+		
+		if (children == null) {
+			return;
+		}
+		
+		for (String child : children) {
+			File file = new File(folder, child);
+			String lower = child.toLowerCase(Locale.US);
+			
+			//AAPT's default ignore pattern, "!.svn:!.git:.*:<dir>_*:!CVS:!thumbs.db:!picasa.ini:!*.scc:*~"
+			if (child.charAt(0) == '.' || child.endsWith("~") || lower.endsWith(".scc") || child.equals("CVS")
+					|| lower.equals("thumbs.db") || lower.equals("picasa.ini")) {
+				
+				continue;
+			}
+			
+			if (file.isDirectory()) {
+				if (child.charAt(0) != '_') {
+					addAssetFolder(file, path + child + "/");
+				}
+			} else {
+				addFile(path + child, file);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the Java resources in a source folder, i.e. everything except for the sources, the
+	 * class files, and the files that APKBuilder ignores.
+	 */
+	public void addSourceFolder(File folder) throws IOException {
+		addSourceFolder(folder, "");
+	}
+	
+	private void addSourceFolder(File folder, String path) throws IOException {
+		String[] children = folder.list();
+		
+		if (children == null) {
+			return;
+		}
+		
+		for (String child : children) {
+			File file = new File(folder, child);
+			
+			if (file.isDirectory()) {
+				if (isPackagedFolder(child)) {
+					addSourceFolder(file, path + child + "/");
+				}
+			} else if (isPackagedResource(child)) {
+				addFile(path + child, file);
+			}
+		}
+	}
+	
+	private static boolean isPackagedFolder(String name) {
+		return name.charAt(0) != '.' && !name.equals("CVS") && !name.equals("SCCS") && !name.equals("META-INF") && !name.endsWith("~");
+	}
+	
+	private static boolean isPackagedResource(String name) {
+		String lower = name.toLowerCase(Locale.US);
+		
+		if (name.charAt(0) == '.' || name.endsWith("~")) {
+			return false;
+		}
+		
+		if (lower.equals("thumbs.db") || lower.equals("picasa.ini") || lower.equals("package.html") || lower.equals("overview.html")) {
+			return false;
+		}
+		
+		int dot = lower.lastIndexOf('.');
+		String extension = dot == -1 ? "" : lower.substring(dot + 1);
+		
+		return !(extension.equals("java") || extension.equals("class") || extension.equals("scala") || extension.equals("aidl")
+				|| extension.equals("rs") || extension.equals("rsh") || extension.equals("d") || extension.equals("swp"));
+	}
+	
+	/**
+	 * @return the digest of the entry in the previous APK, if it was made from the same thing,
+	 * or null
+	 */
+	private String previousDigest(String name, String stamp) {
+		if (previousIndex == null) {
+			return null;
+		}
+		
+		String previous = previousIndex.getProperty(name);
+		
+		//The stamp, then a space, then the digest
+		if (previous != null && previous.length() > stamp.length() && previous.startsWith(stamp)
+				&& previous.charAt(stamp.length()) == ' ') {
+			
+			return previous.substring(stamp.length() + 1);
+		}
+		
+		return null;
+	}
+	
+	private String digest(InputStream input) throws IOException {
+		sha1.reset();
+		
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			sha1.update(buffer, 0, read);
+		}
+		
+		return new String(Base64.encode(sha1.digest()), "US-ASCII");
+	}
+	
+	/**
+	 * Copies an entry from another zip file without decompressing it.
+	 */
+	private void writeRaw(String name, ZipDirectory source, ZipDirectory.Entry entry, String digest, String stamp) throws IOException {
+		CentralEntry header = new CentralEntry(name, entry.getMethod(), entry.getDosTime());
+		header.crc = entry.getCrc();
+		header.compressedSize = entry.getCompressedSize();
+		header.size = entry.getSize();
+		
+		int padding = 0;
+		
+		if (entry.getMethod() == ZipDirectory.Entry.STORED) {
+			//The data starts after the 30-byte local header, the name, and the extra field
+			padding = (int) ((4 - (out.getCount() + 30 + header.name.length) % 4) % 4);
+		}
+		
+		writeLocalHeader(header, padding);
+		source.copyRaw(entry, out);
+		
+		record(header, digest, stamp);
+	}
+	
+	/**
+	 * Stores a file. The CRC has to be in the local header of a stored entry, so the file is read
+	 * twice: once for the CRC and the digest, and once to copy it.
+	 */
+	private void writeStored(String name, File file, String stamp) throws IOException {
+		CentralEntry header = new CentralEntry(name, ZipDirectory.Entry.STORED, toDosTime(file.lastModified()));
+		
+		sha1.reset();
+		crc.reset();
+		
+		InputStream input = new FileInputStream(file);
+		
+		try {
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				//Large assets can take a while
+				BuildGraph.checkInterrupted();
+				
+				sha1.update(buffer, 0, read);
+				crc.update(buffer, 0, read);
+				
+				header.size += read;
+			}
+		} finally {
+			input.close();
+		}
+		
+		header.crc = crc.getValue();
+		header.compressedSize = header.size;
+		
+		String digest = new String(Base64.encode(sha1.digest()), "US-ASCII");
+		
+		//The data starts after the 30-byte local header, the name, and the extra field
+		int padding = (int) ((4 - (out.getCount() + 30 + header.name.length) % 4) % 4);
+		
+		writeLocalHeader(header, padding);
+		
+		input = new FileInputStream(file);
+		
+		try {
+			long remaining = header.size;
+			
+			int read;
+			while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+				BuildGraph.checkInterrupted();
+				
+				out.write(buffer, 0, read);
+				remaining -= read;
+			}
+			
+			if (remaining != 0) {
+				throw new IOException(file.getAbsolutePath() + " changed while it was being packaged");
+			}
+		} finally {
+			input.close();
+		}
+		
+		record(header, digest, stamp);
+	}
+	
+	/**
+	 * Compresses an entry. The sizes aren't known until the end, so they're written after the
+	 * data in a data descriptor.
+	 *
+	 * @param stamp what the entry was made from, or null to leave it out of the index
+	 */
+	private void writeDeflated(String name, InputStream input, int dosTime, String stamp) throws IOException {
+		CentralEntry header = new CentralEntry(name, ZipDirectory.Entry.DEFLATED, dosTime);
+		header.flags |= FLAG_DATA_DESCRIPTOR;
+		
+		writeLocalHeader(header, 0);
+		
+		long start = out.getCount();
+		
+		sha1.reset();
+		crc.reset();
+		deflater.reset();
+		
+		DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, buffer.length);
+		
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			BuildGraph.checkInterrupted();
+			
+			sha1.update(buffer, 0, read);
+			crc.update(buffer, 0, read);
+			deflating.write(buffer, 0, read);
+			
+			header.size += read;
+		}
+		
+		//Not close(), that would close the APK
+		deflating.finish();
+		
+		header.crc = crc.getValue();
+		header.compressedSize = out.getCount() - start;
+		
+		writeInt(DATA_DESCRIPTOR_SIGNATURE);
+		writeInt((int) header.crc);
+		writeInt((int) header.compressedSize);
+		writeInt((int) header.size);
+		
+		record(header, new String(Base64.encode(sha1.digest()), "US-ASCII"), stamp);
+	}
+	
+	private void writeLocalHeader(CentralEntry header, int padding) throws IOException {
+		if (digests.containsKey(header.nameString)) {
+			throw new IOException("Duplicate entry in APK: " + header.nameString);
+		}
+		
+		header.localHeaderOffset = out.getCount();
+		
+		boolean descriptor = (header.flags & FLAG_DATA_DESCRIPTOR) != 0;
+		
+		writeInt(LOCAL_SIGNATURE);
+		writeShort(header.versionNeeded());
+		writeShort(header.flags);
+		writeShort(header.method);
+		writeInt(header.dosTime);
+		writeInt(descriptor ? 0 : (int) header.crc);
+		writeInt(descriptor ? 0 : (int) header.compressedSize);
+		writeInt(descriptor ? 0 : (int) header.size);
+		writeShort(header.name.length);
+		writeShort(padding);
+		out.write(header.name);
+		out.write(new byte[padding]);
+	}
+	
+	private void record(CentralEntry header, String digest, String stamp) {
+		central.add(header);
+		digests.put(header.nameString, digest);
+		
+		if (stamp != null) {
+			index.setProperty(header.nameString, stamp + " " + digest);
+		}
+	}
+	
+	private void writeCentralDirectory() throws IOException {
+		long start = out.getCount();
+		
+		for (CentralEntry header : central) {
+			writeInt(CENTRAL_SIGNATURE);
+			writeShort(20); //Version made by
+			writeShort(header.versionNeeded());
+			writeShort(header.flags);
+			writeShort(header.method);
+			writeInt(header.dosTime);
+			writeInt((int) header.crc);
+			writeInt((int) header.compressedSize);
+			writeInt((int) header.size);
+			writeShort(header.name.length);
+			writeShort(0); //Extra field length
+			writeShort(0); //Comment length
+			writeShort(0); //Disk number
+			writeShort(0); //Internal attributes
+			writeInt(0); //External attributes
+			writeInt((int) header.localHeaderOffset);
+			out.write(header.name);
+		}
+		
+		long size = out.getCount() - start;
+		
+		writeInt(EOCD_SIGNATURE);
+		writeShort(0); //Disk number
+		writeShort(0); //Disk with the central directory
+		writeShort(central.size());
+		writeShort(central.size());
+		writeInt((int) size);
+		writeInt((int) start);
+		writeShort(0); //Comment length
+	}
+	
+	private void writeShort(int value) throws IOException {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}
+	
+	private void writeInt(int value) throws IOException {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+		out.write((value >>> 16) & 0xFF);
+		out.write((value >>> 24) & 0xFF);
+	}
+	
+	private static int toDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		
+		int year = calendar.get(Calendar.YEAR);
+		
+		if (year < 1980) {
+			//The earliest date that the format can represent
+			return (1 << 21) | (1 << 16);
+		}
+		
+		return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+				| (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+	}
+	
+	/**
+	 * Writes the signature and closes the APK.
+	 */
+	public void finish() throws IOException, GeneralSecurityException {
+		//The manifest lists the digest of every entry...
+		ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+		//...and the signature file lists the digest of every section of the manifest
+		ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+		
+		writeAttribute(manifest, "Manifest-Version", "1.0");
+		writeAttribute(manifest, "Created-By", CREATED_BY);
+		writeLine(manifest, "");
+		
+		ByteArrayOutputStream signatureEntries = new ByteArrayOutputStream();
+		ByteArrayOutputStream section = new ByteArrayOutputStream();
+		
+		for (Map.Entry<String, String> digest : digests.entrySet()) {
+			section.reset();
+			
+			writeAttribute(section, "Name", digest.getKey());
+			writeAttribute(section, "SHA1-Digest", digest.getValue());
+			writeLine(section, "");
+			
+			section.writeTo(manifest);
+			
+			writeAttribute(signatureEntries, "Name", digest.getKey());
+			writeAttribute(signatureEntries, "SHA1-Digest", base64Sha1(section.toByteArray()));
+			writeLine(signatureEntries, "");
+		}
+		
+		byte[] manifestBytes = manifest.toByteArray();
+		
+		writeAttribute(signatureFile, "Signature-Version", "1.0");
+		writeAttribute(signatureFile, "Created-By", CREATED_BY);
+		writeAttribute(signatureFile, "SHA1-Digest-Manifest", base64Sha1(manifestBytes));
+		writeLine(signatureFile, "");
+		signatureEntries.writeTo(signatureFile);
+		
+		byte[] signatureFileBytes = signatureFile.toByteArray();
+		
+		int now = toDosTime(System.currentTimeMillis());
+		
+		writeDeflated("META-INF/MANIFEST.MF", new ByteArrayInputStream(manifestBytes), now, null);
+		writeDeflated("META-INF/CERT.SF", new ByteArrayInputStream(signatureFileBytes), now, null);
+		writeDeflated("META-INF/CERT.RSA", new ByteArrayInputStream(signatureBlock(signatureFileBytes)), now, null);
+		
+		writeCentralDirectory();
+		
+		out.close();
+		closePrevious();
+		deflater.end();
+		
+		//Don't leave an index that belongs to the old APK behind if the rename fails
+		indexFile.delete();
+		
+		if ((apkFile.exists() && !apkFile.delete()) || !tempFile.renameTo(apkFile)) {
+			throw new IOException("Failed to replace " + apkFile.getAbsolutePath());
+		}
+		
+		saveIndex();
+	}
+	
+	/**
+	 * Closes the APK without finishing it and deletes it, after something went wrong. The APK
+	 * from the previous build is left alone.
+	 */
+	public void abort() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			//It's getting deleted anyway
+		}
+		
+		closePrevious();
+		deflater.end();
+		
+		tempFile.delete();
+	}
+	
+	private void closePrevious() {
+		if (previousApk != null) {
+			try {
+				previousApk.close();
+			} catch (IOException e) {
+				//We were only reading it
+			}
+			
+			previousApk = null;
+		}
+	}
+	
+	private static Properties loadIndex(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream stream = new BufferedInputStream(new FileInputStream(file));
+		
+		try {
+			properties.load(stream);
+		} finally {
+			stream.close();
+		}
+		
+		return properties;
+	}
+	
+	private void saveIndex() {
+		try {
+			OutputStream stream = new BufferedOutputStream(new FileOutputStream(indexFile));
+			
+			try {
+				index.store(stream, "APDE APK index");
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			//The next build will just have to compress everything again
+			System.err.println("Failed to write " + indexFile.getName());
+			indexFile.delete();
+		}
+	}
+	
+	/**
+	 * @return the number of bytes written to the APK so far
+	 */
+	public long getBytesWritten() {
+		return out.getCount();
+	}
+	
+	/**
+	 * @return the number of entries that had to be compressed
+	 */
+	public int getCompressedEntries() {
+		return compressedEntries;
+	}
+	
+	/**
+	 * @return the number of entries that were stored because of their extension
+	 */
+	public int getStoredEntries() {
+		return storedEntries;
+	}
+	
+	/**
+	 * @return the number of entries that were copied from other zip files as they are
+	 */
+	public int getCopiedEntries() {
+		return copiedEntries;
+	}
+	
+	/**
+	 * @return the number of unchanged entries that were copied from the previous APK
+	 */
+	public int getReusedEntries() {
+		return reusedEntries;
+	}
+	
+	private byte[] signatureBlock(byte[] signatureFileBytes) throws IOException, GeneralSecurityException {
+		if (keySet.getSigBlockTemplate() != null) {
+			//The test key comes with the PKCS#7 block already built, all that's missing is the signature
+			ZipSignature signature = new ZipSignature();
+			signature.initSign(keySet.getPrivateKey());
+			signature.update(signatureFileBytes);
+			
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			block.write(keySet.getSigBlockTemplate());
+			block.write(signature.sign());
+			
+			return block.toByteArray();
+		} else {
+			return SignatureBlockGenerator.generate(keySet, signatureFileBytes);
+		}
+	}
+	
+	private String base64Sha1(byte[] bytes) throws IOException {
+		sha1.reset();
+		return new String(Base64.encode(sha1.digest(bytes)), "US-ASCII");
+	}
+	
+	/**
+	 * Writes a manifest attribute, wrapped at 72 bytes per line as the JAR spec requires.
+	 */
+	private static void writeAttribute(ByteArrayOutputStream out, String name, String value) throws IOException {
+		byte[] line = (name + ": " + value).getBytes("UTF-8");
+		
+		int start = 0;
+		int max = 72;
+		
+		while (line.length - start > max) {
+			int end = start + max;
+			
+			//Don't split a multi-byte character
+			while ((line[end] & 0xC0) == 0x80) {
+				end --;
+			}
+			
+			out.write(line, start, end - start);
+			out.write(new byte[] {'\r', '\n', ' '});
+			
+			start = end;
+			//The continuation lines start with a space
+			max = 71;
+		}
+		
+		out.write(line, start, line.length - start);
+		out.write(new byte[] {'\r', '\n'});
+	}
+	
+	private static void writeLine(ByteArrayOutputStream out, String line) throws IOException {
+		out.write(line.getBytes("UTF-8"));
+		out.write(new byte[] {'\r', '\n'});
+	}
+	
+	/**
+	 * The header of an entry that has been written, for the central directory.
+	 */
+	private static class CentralEntry {
+		private String nameString;
+		private byte[] name;
+		private int flags;
+		private int method;
+		private int dosTime;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private long localHeaderOffset;
+		
+		public CentralEntry(String name, int method, int dosTime) throws IOException {
+			this.nameString = name;
+			this.name = name.getBytes("UTF-8");
+			this.method = method;
+			this.dosTime = dosTime;
+			
+			if (this.name.length != name.length()) {
+				flags |= FLAG_UTF8;
+			}
+		}
+		
+		public int versionNeeded() {
+			return method == ZipDirectory.Entry.STORED ? 10 : 20;
+		}
+	}
+	
+	/**
+	 * Keeps track of where in the file we are, for the alignment.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+		
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count ++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.calsignlabs.apde.build;
+
+import com.calsignlabs.apde.contrib.Library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The environment for compiling in the background while the user is typing. Everything comes
+ * from the real environment, but the progress, the errors, and the APK (there shouldn't be one)
+ * are kept from the user, who hasn't asked for a build.
+ */
+public class BackgroundBuildEnvironment implements BuildEnvironment {
+	private BuildEnvironment environment;
+	
+	/**
+	 * @param environment the environment that a real build would use
+	 */
+	public BackgroundBuildEnvironment(BuildEnvironment environment) {
+		this.environment = environment;
+	}
+	
+	@Override
+	public void message(String message) {}
+	
+	@Override
+	public void error(String message) {}
+	
+	@Override
+	public void highlightLine(int tab, int line) {}
+	
+	@Override
+	public String getString(int resId) {
+		return environment.getString(resId);
+	}
+	
+	@Override
+	public int getInteger(int resId) {
+		return environment.getInteger(resId);
+	}
+	
+	@Override
+	public InputStream openAsset(String path) throws IOException {
+		return environment.openAsset(path);
+	}
+	
+	@Override
+	public int getVersionCode() {
+		return environment.getVersionCode();
+	}
+	
+	@Override
+	public File getBuildFolder(BuildRequest request) {
+		return environment.getBuildFolder(request);
+	}
+	
+	@Override
+	public File getTempFolder() {
+		return environment.getTempFolder();
+	}
+	
+	@Override
+	public File getFilesDir() {
+		return environment.getFilesDir();
+	}
+	
+	@Override
+	public BuildMetrics.ThreadCounters getThreadCounters() {
+		return environment.getThreadCounters();
+	}
+	
+	@Override
+	public List<Library> getLibraries(String packageName) {
+		return environment.getLibraries(packageName);
+	}
+	
+	@Override
+	public File[] getLibraryExports(Library library) {
+		return environment.getLibraryExports(library);
+	}
+	
+	@Override
+	public File getLibraryFolder(Library library) {
+		return environment.getLibraryFolder(library);
+	}
+	
+	@Override
+	public void install(File apkFile, BuildRequest request) {}
+}
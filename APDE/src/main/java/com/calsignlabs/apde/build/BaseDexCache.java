@@ -0,0 +1,222 @@
+package com.calsignlabs.apde.build;
+
+import com.android.dex.Dex;
+import com.android.dex.TableOfContents;
+import com.android.dx.merge.CollisionPolicy;
+import com.android.dx.merge.DexMerger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps the libraries' dex files (processing-core, annotations, and any imported libraries)
+ * merged ahead of time, one "base" dex per distinct set of libraries. This way, each build
+ * only has to merge the sketch's own classes into the base instead of re-merging all of
+ * the libraries every time.
+ */
+public class BaseDexCache {
+	public static final String INDEX_FILENAME = "hashes.properties";
+	
+	/** The number of base dex files to keep around, e.g. for switching between sketches */
+	private static final int MAX_ENTRIES = 4;
+	
+	private File folder;
+	
+	private File indexFile;
+	/** Maps "path:size:modified" to a checksum so that unchanged libraries aren't read again */
+	private Properties hashes;
+	
+	public BaseDexCache(File folder) {
+		this.folder = folder;
+		
+		indexFile = new File(folder, INDEX_FILENAME);
+		hashes = new Properties();
+		
+		if (indexFile.exists()) {
+			try {
+				InputStream stream = new BufferedInputStream(new FileInputStream(indexFile));
+				try {
+					hashes.load(stream);
+				} finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				//The hashes will just be re-computed
+				hashes.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the merged dex for this set of libraries, merging them if they haven't been
+	 * merged before. The order of the libraries matters in case two of them define the
+	 * same class (the first one wins).
+	 *
+	 * @param dexJars the dexed libraries
+	 * @return the merged dex file, or null if there aren't any libraries
+	 * @throws IOException
+	 */
+	public File getBaseDex(List<File> dexJars) throws IOException {
+		if (dexJars.size() == 0) {
+			return null;
+		}
+		
+		BuildCache.Fingerprint key = new BuildCache.Fingerprint();
+		for (File dexJar : dexJars) {
+			key.add(getChecksum(dexJar));
+		}
+		
+		File baseDex = new File(folder, "base-" + key + ".dex");
+		
+		if (baseDex.exists()) {
+			//Mark it as recently used
+			baseDex.setLastModified(System.currentTimeMillis());
+		} else {
+			System.out.println("Libraries changed, merging library DEX files...");
+			
+			folder.mkdirs();
+			
+			//Write to a temporary file so that we never end up with a half-written base dex
+			//(the name is unique in case another build is merging the same libraries)
+			File tempDex = File.createTempFile(baseDex.getName(), ".tmp", folder);
+			merge(dexJars, tempDex);
+			
+			if (!tempDex.renameTo(baseDex)) {
+				throw new IOException("Could not replace " + baseDex.getAbsolutePath());
+			}
+			
+			prune();
+		}
+		
+		return baseDex;
+	}
+	
+	/**
+	 * Merges the dex files in order, with the earlier files taking precedence.
+	 *
+	 * @param dexFiles the dex files (or JARs containing "classes.dex") to merge
+	 * @param output the location of the merged dex file
+	 * @return the merged dex
+	 * @throws IOException
+	 */
+	public static Dex merge(List<File> dexFiles, File output) throws IOException {
+		Dex merged = merge(dexFiles);
+		
+		BuildGraph.checkInterrupted();
+		merged.writeTo(output);
+		
+		return merged;
+	}
+	
+	/**
+	 * Merges the dex files in order without writing the result anywhere.
+	 *
+	 * @param dexFiles the dex files (or JARs containing "classes.dex") to merge
+	 * @return the merged dex
+	 * @throws IOException
+	 */
+	public static Dex merge(List<File> dexFiles) throws IOException {
+		Dex merged = loadDex(dexFiles.get(0));
+		
+		for (int i = 1; i < dexFiles.size(); i ++) {
+			//A single merge can't be stopped, but the build can be halted between them
+			BuildGraph.checkInterrupted();
+			
+			merged = new DexMerger(merged, loadDex(dexFiles.get(i)), CollisionPolicy.KEEP_FIRST).merge();
+			alignTypeLists(merged);
+		}
+		
+		return merged;
+	}
+	
+	private static Dex loadDex(File file) throws IOException {
+		Dex dex = new Dex(file);
+		alignTypeLists(dex);
+		
+		return dex;
+	}
+	
+	/**
+	 * DexMerger reserves space for the type lists of both inputs without accounting for
+	 * the padding between them, so it overflows when the first input's type lists don't
+	 * end on a four-byte boundary (e.g. when merging processing-core and the annotations
+	 * without a sketch in front of them). Rounding up the size that it reads fixes that.
+	 */
+	private static void alignTypeLists(Dex dex) {
+		TableOfContents.Section typeLists = dex.getTableOfContents().typeLists;
+		typeLists.byteCount = (typeLists.byteCount + 3) & ~3;
+	}
+	
+	private String getChecksum(File file) throws IOException {
+		String stamp = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+		String checksum = hashes.getProperty(stamp);
+		
+		if (checksum == null) {
+			checksum = new BuildCache.Fingerprint().addContents(file).toString();
+			
+			//Forget about the old version of this file
+			for (String oldStamp : hashes.stringPropertyNames()) {
+				if (oldStamp.startsWith(file.getAbsolutePath() + ":")) {
+					hashes.remove(oldStamp);
+				}
+			}
+			
+			hashes.setProperty(stamp, checksum);
+			saveHashes();
+		}
+		
+		return checksum;
+	}
+	
+	private void saveHashes() throws IOException {
+		folder.mkdirs();
+		
+		OutputStream stream = new FileOutputStream(indexFile);
+		try {
+			hashes.store(stream, "APDE library dex checksums");
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Deletes the least recently used base dex files
+	 */
+	private void prune() {
+		File[] baseDexes = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String filename) {
+				//Leave the temporary files of merges that are still running alone
+				return filename.startsWith("base-") && filename.endsWith(".dex");
+			}
+		});
+		
+		if (baseDexes == null || baseDexes.length <= MAX_ENTRIES) {
+			return;
+		}
+		
+		//Most recently used first
+		Arrays.sort(baseDexes, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(b.lastModified()).compareTo(a.lastModified());
+			}
+		});
+		
+		for (int i = MAX_ENTRIES; i < baseDexes.length; i ++) {
+			if (!baseDexes[i].delete()) {
+				System.err.println("Failed to delete old library DEX file " + baseDexes[i].getName());
+			}
+		}
+	}
+}
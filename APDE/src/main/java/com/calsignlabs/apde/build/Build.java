@@ -8,22 +8,11 @@
 
 package com.calsignlabs.apde.build;
 
-import android.annotation.SuppressLint;
-import android.content.Context;
-import android.content.Intent;
-import android.content.res.AssetManager;
-import android.net.Uri;
-import android.os.Environment;
-import android.preference.PreferenceManager;
-
-import com.android.sdklib.build.ApkBuilder;
-import com.calsignlabs.apde.APDE;
-import com.calsignlabs.apde.EditorActivity;
-import com.calsignlabs.apde.FileMeta;
+import com.android.dex.Dex;
 import com.calsignlabs.apde.R;
 import com.calsignlabs.apde.contrib.Library;
 
-import org.eclipse.jdt.internal.compiler.batch.Main;
+import org.eclipse.jdt.core.compiler.CompilationProgress;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 
 import java.io.BufferedInputStream;
@@ -33,36 +22,51 @@ import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.security.Security;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
-import kellinwood.security.zipsigner.ZipSigner;
-import kellinwood.security.zipsigner.optional.CustomKeySigner;
+import kellinwood.security.zipsigner.KeySet;
 import processing.app.Preferences;
 import processing.core.PApplet;
 import processing.mode.java.preproc.PdePreprocessor;
 import processing.mode.java.preproc.PreprocessorResult;
 
+/**
+ * Builds one sketch in the environment's build folder. The build folder isn't separated by
+ * sketch, so builds must not overlap; BuildService runs them one after another.
+ */
 public class Build {
 	public static final String PACKAGE_REGEX ="(?:^|\\s|;)package\\s+(\\S+)\\;";
 	
-	private EditorActivity editor;
+	private BuildRequest request;
+	private BuildEnvironment environment;
 	
-	public String sketchName;
-	private FileMeta[] tabs;
+	private String sketchName;
+	private List<BuildRequest.Tab> tabs;
+	//Where each .pde tab starts in the combined code
+	private int[] preprocOffsets;
 	
 	private File buildFolder;
 	private File srcFolder;
@@ -73,19 +77,76 @@ public class Build {
 	private File tmpFolder;
 	private File dexedLibsFolder;
 	
+	//The JARs that get their dexed versions from the dex cache, by their name in the libs folder
+	private LinkedHashMap<String, File> jarsToDex = new LinkedHashMap<String, File>();
+	
 	private ArrayList<Library> importedLibraries;
 	
+	private BuildCache buildCache;
+	//The library assets and the data folder, synced into the assets folder
+	private FolderSync assetSync;
+	private BuildMetrics metrics;
+	
+	//Shared between the stages of the build sequence
+	private Manifest manifest;
+	private String sketchClassName;
+	private String aaptName;
+	
+	private File androidJarLoc;
+	private File aaptLoc;
+	private File glslFolder;
+	private ArrayList<File> toolchainLibs;
+	private ArrayList<File> toolchainDexLibs;
+	
+	private File apkResFile;
+	private File classesFolder;
+	private File sketchClassesDex;
+	private File baseDex;
+	private File classesDex;
+	
+	private String resFingerprint;
+	//Packages the resources without AAPT when they are simple enough, null if it hasn't been checked yet
+	private ResourcePackager resourcePackager;
+	private boolean resourcePackagerChecked;
+	
+	//The outputs of AAPT for the last few sets of resources
+	private ResourceCache resourceCache;
+	private String ecjFingerprint;
+	private String dxFingerprint;
+	private String apkFingerprint;
+	
 	protected String classPath;
 	protected String javaLibraryPath;
 	
 	protected boolean foundMain;
 	
+	/**
+	 * DX keeps its state in static fields, so only one DX run can happen at a time in the whole
+	 * process (this includes dexing libraries when they're installed). Use --num-threads to make
+	 * a run use more cores instead.
+	 *
+	 * Take it with lockInterruptibly() so that halting a build that is waiting for it doesn't
+	 * have to wait for the other run to finish.
+	 */
+	public static final ReentrantLock DX_LOCK = new ReentrantLock();
+	
+	/** How long to let AAPT run before assuming that it's stuck, in milliseconds */
+	private static final long AAPT_TIMEOUT = 5 * 60 * 1000;
+	
+	//Whether or not the last run of preprocess() used the cached output
+	private boolean preprocReused;
+	
+	private static final int PREPROC_TAB_SIZE = 2; //TODO this is the default... so a tab adds two spaces
+	private static final String[] PREPROC_FLAGS = {"preproc.enhanced_casting", "preproc.web_colors", "preproc.color_datatype",
+			"preproc.substitute_floats", "preproc.substitute_unicode"};
+	
 	private static final String ICON_96 = "icon-96.png";
 	private static final String ICON_72 = "icon-72.png";
 	private static final String ICON_48 = "icon-48.png";
 	private static final String ICON_36 = "icon-36.png";
 	
-	private static AtomicBoolean running;
+	//Each build has its own flag, so halting one build doesn't affect any others
+	private final AtomicBoolean running = new AtomicBoolean(true);
 	
 	private String keystore;
 	private char[] keystorePassword;
@@ -94,18 +155,22 @@ public class Build {
 	
 	private boolean injectLogBroadcaster;
 	
-	private static boolean verbose;
+	private boolean verbose;
 	
-	public Build(APDE global) {
-		this.editor = global.getEditor();
-		
-		sketchName = global.getSketchName();
-		tabs = editor.getTabMetas();
+	/**
+	 * @param request the sketch to build
+	 * @param environment where to get the assets and libraries from and where to report progress
+	 */
+	public Build(BuildRequest request, BuildEnvironment environment) {
+		this.request = request;
+		this.environment = environment;
 		
-		running = new AtomicBoolean(true);
+		sketchName = request.getSketchName();
+		tabs = request.getTabs();
+		preprocOffsets = new int[tabs.size()];
 		
-		injectLogBroadcaster = PreferenceManager.getDefaultSharedPreferences(global).getBoolean("inject_log_broadcaster", true);
-		verbose = PreferenceManager.getDefaultSharedPreferences(global).getBoolean("build_output_verbose", false);
+		injectLogBroadcaster = request.getSettings().injectLogBroadcaster();
+		verbose = request.getSettings().isVerbose();
 	}
 	
 	public void setKey(String keystore, char[] keystorePassword, String keyAlias, char[] keyAliasPassword) {
@@ -118,7 +183,7 @@ public class Build {
 	/**
 	 * Stops the build process, after finishing the current step in the sequence
 	 */
-	public static void halt() {
+	public void halt() {
 		if(!running.compareAndSet(true, false)) {
 			//Something went wrong...
 			//...but it doesn't matter because this is what we want, anyway
@@ -127,68 +192,45 @@ public class Build {
 	
 	private void cleanUpError() {
 		cleanUp();
-		editor.errorExt(editor.getResources().getString(R.string.build_failed));
+		environment.error(environment.getString(R.string.build_failed));
 	}
 	
 	private void cleanUpHalt() {
 		cleanUp();
-		editor.messageExt(editor.getResources().getString(R.string.build_halted));
+		environment.message(environment.getString(R.string.build_halted));
 	}
 	
 	private void cleanUp() {
 		//Anything we need to clean up now...
 	}
 	
-	public static void cleanUpPostLaunch(EditorActivity editor) {
-		if(!PreferenceManager.getDefaultSharedPreferences(editor).getBoolean("pref_build_folder_keep", true)) {
-			//Delete the build folder
-			if (!deleteFile((new Build(((APDE) editor.getApplicationContext())).getBuildFolder()))) {
-				System.out.println("Failed to delete build folder");
-			} else if (verbose) {
-				System.out.println("Deleted build folder");
-			}
-		}
-		
-		if(PreferenceManager.getDefaultSharedPreferences(editor).getBoolean("pref_build_internal_storage", true)) {
-			//If we built on the internal storage, we need to delete the copied APK file
-			//This is so that the package installer can still see it
-			
-			File destApkFile = new File(editor.getFilesDir(), ((APDE) editor.getApplicationContext()).getSketchName() + ".apk");
-			if (!destApkFile.delete()) {
-				System.out.println("Failed to delete old APK file");
-			} else if (verbose) {
-				System.out.println("Deleted old APK file");
-			}
-		}
-	}
-	
 	//Recursive file deletion
     public static boolean deleteFile(File f) {
     	if(f.isDirectory())
     		for(File c : f.listFiles())
     			deleteFile(c);
-    	
+
     	//Renaming solution for the file system lock with EBUSY errors
 		//StackOverflow: http://stackoverflow.com/questions/11539657/open-failed-ebusy-device-or-resource-busy
 		final File to = new File(f.getAbsolutePath() + System.currentTimeMillis());
 		f.renameTo(to);
-    	
+
     	if(!to.delete()) {
     		System.err.println("Failed to delete file: " + f);
     		return false;
     	}
-    	
+
     	return true;
     }
-	
+
     public void exportAndroidEclipseProject(File dest, String target) {
-    	editor.messageExt(editor.getResources().getString(R.string.build_sketch_message));
+    	environment.message(environment.getString(R.string.build_sketch_message));
 		System.out.println("Initializing build sequence...");
 		
 		if (verbose) {
 			System.out.println("Target: export");
 		}
-    	
+
     	buildFolder = dest;
 		srcFolder = new File(buildFolder, "src");
 		genFolder = new File(buildFolder, "gen");
@@ -213,38 +255,19 @@ public class Build {
 		assetsFolder.mkdir();
 		binFolder.mkdir();
 		
-		//Make sure we have the latest version of the libraries folder
-		((APDE) editor.getApplicationContext()).rebuildLibraryList();
-		
 		Manifest manifest = null;
 		String sketchClassName = null;
 		
-		editor.messageExt(editor.getResources().getString(R.string.gen_project_message));
+		environment.message(environment.getString(R.string.gen_project_message));
 		
 		try {
-			manifest = new Manifest(this);
-			
-			Preferences.setInteger("editor.tabs.size", 2); //TODO this is the default... so a tab adds two spaces
-			
-			//Enable all of the fancy preprocessor stuff
-			Preferences.setBoolean("preproc.enhanced_casting", true);
-			Preferences.setBoolean("preproc.web_colors", true);
-			Preferences.setBoolean("preproc.color_datatype", true);
-			Preferences.setBoolean("preproc.substitute_floats", true);
-			Preferences.setBoolean("preproc.substitute_unicode", true);
+			manifest = new Manifest(sketchName, getSketchFolder());
 			
 			if (verbose) {
 				System.out.println("Pre-processing...");
 			}
 			
-			Preproc preproc = new Preproc(sketchName, manifest.getPackageName());
-			
-			//Combine all of the tabs to check for size
-			String combinedText = "";
-			for(FileMeta tab : tabs)
-				combinedText += tab.getText();
-			preproc.initSketchSize(combinedText, editor);
-			sketchClassName = preprocess(srcFolder, manifest.getPackageName(), preproc, false, false);
+			sketchClassName = preprocess(srcFolder, manifest.getPackageName(), false, false);
 			
 			if(sketchClassName != null) {
 				if (verbose) {
@@ -260,7 +283,7 @@ public class Build {
 				
 				writeAntProps(new File(buildFolder, "ant.properties"), manifest.getPackageName());
 				writeBuildXML(buildFile, sketchName);
-				writeProjectProps(new File(buildFolder, "project.properties"), Integer.toString(manifest.getTargetSdk(editor)));
+				writeProjectProps(new File(buildFolder, "project.properties"), Integer.toString(manifest.getTargetSdk(environment.getInteger(R.integer.prop_target_sdk_default))));
 //				writeLocalProps(new File(buildFolder, "local.properties"));
 				
 				if (verbose) {
@@ -269,12 +292,10 @@ public class Build {
 				
 				final File resFolder = new File(buildFolder, "res");
 				writeRes(resFolder, sketchClassName);
-				
+
 //				final File libsFolder = mkdirs(buildFolder, "libs");
 //				final File assetsFolder = mkdirs(buildFolder, "assets");
 				
-				AssetManager am = editor.getAssets();
-				
 				//Copy native libraries
 				
 				if (verbose) {
@@ -288,7 +309,7 @@ public class Build {
 				
 				//Copy for the compiler
 				for(String lib : libsToCopy) {
-					InputStream inputStream = am.open(prefix + lib + suffix);
+					InputStream inputStream = environment.openAsset(prefix + lib + suffix);
 					createFileFromInputStream(inputStream, new File(libsFolder, lib + suffix));
 					inputStream.close();
 				}
@@ -328,8 +349,8 @@ public class Build {
 		} catch (SketchException e) {
 			e.printStackTrace();
 			
-			editor.errorExt(e.getMessage());
-			editor.highlightLineExt(e.getCodeIndex(), e.getCodeLine());
+			environment.error(e.getMessage());
+			environment.highlightLine(e.getCodeIndex(), e.getCodeLine());
 			
 			//Bail out
 			cleanUp();
@@ -337,7 +358,7 @@ public class Build {
 		} catch (RuntimeException e) {
 			e.printStackTrace();
 			
-			editor.errorExt(e.getMessage());
+			environment.error(e.getMessage());
 			
 			//Bail out
 			cleanUp();
@@ -345,22 +366,26 @@ public class Build {
 		}
 		
 		System.out.println("Exported to " + dest.getAbsolutePath());
-		editor.messageExt(editor.getResources().getString(R.string.export_eclipse_project_complete));
+		environment.message(environment.getString(R.string.export_eclipse_project_complete));
     }
-    
+	
 	/**
-	 * @param target either "release" or "debug"
+	 * @param target "release", "debug", or "compile" to only compile and dex the sketch (in
+	 * the background, so that the next debug build can skip straight to packaging)
 	 */
-	@SuppressLint("WorldReadableFiles")
-	@SuppressWarnings("deprecation")
 	public void build(String target) {
-		boolean debug = target.equals("debug");
+		final boolean compileOnly = target.equals("compile");
+		//Compiled the same way as a debug build, otherwise the debug build couldn't reuse it
+		final boolean debug = target.equals("debug") || compileOnly;
 		
-		running.set(true);
+		metrics = new BuildMetrics(sketchName, target, environment.getThreadCounters());
+		resFingerprint = null;
+		resourcePackager = null;
+		resourcePackagerChecked = false;
 		
 		//Throughout this function, perform periodic checks to see if the user has cancelled the build
 		
-		editor.messageExt(editor.getResources().getString(R.string.build_sketch_message));
+		environment.message(environment.getString(R.string.build_sketch_message));
 		System.out.println("Initializing build sequence...");
 		
 		if (verbose) {
@@ -381,15 +406,16 @@ public class Build {
 		dexedLibsFolder = new File(binFolder, "dexedLibs");
 		
 		tmpFolder = getTempFolder();
-		
+
 //		buildFile = new File(buildFolder, "build.xml");
 		
-		//Wipe the old build folder
-		if(buildFolder.exists()) {
-			if (deleteFile(buildFolder)) {
-				System.out.println("Deleted old build folder");
-			} else if (verbose) {
-				System.out.println("Failed to delete old build folder");
+		//Wipe the inputs that get written from scratch every time, but keep the outputs from the
+		//previous build so that the stages whose inputs haven't changed can be skipped
+		//The assets folder is synced instead, the data folder can be huge
+		File[] stagingFolders = {srcFolder, new File(buildFolder, "res"), libsFolder, dexedLibsFolder};
+		for (File stagingFolder : stagingFolders) {
+			if (stagingFolder.exists() && !deleteFile(stagingFolder) && verbose) {
+				System.out.println("Failed to delete old " + stagingFolder.getName() + " folder");
 			}
 		}
 		
@@ -404,264 +430,43 @@ public class Build {
 			tmpFolder.mkdir();
 		}
 		
-		//Make sure we have the latest version of the libraries folder
-		((APDE) editor.getApplicationContext()).rebuildLibraryList();
-		
-		Manifest manifest = null;
-		String sketchClassName = null;
+		buildCache = new BuildCache(buildFolder);
+		resourceCache = new ResourceCache(new File(tmpFolder, "aapt-cache"));
+		assetSync = new FolderSync(assetsFolder, new File(binFolder, "assets-sync.properties"), true);
 		
-		editor.messageExt(editor.getResources().getString(R.string.gen_project_message));
+		environment.message(environment.getString(R.string.gen_project_message));
 		
 		if(!running.get()) { //CHECK
 			cleanUpHalt();
 			return;
 		}
 		
-		//Used to determine whether or not to build with ALL of the OpenGL libraries...
-		//...it takes a lot longer to run DEX if they're included
-//		boolean isOpenGL = false;
-		//File glLibLoc = new File(binFolder, "libs.dex");
+		androidJarLoc = new File(tmpFolder, "android.jar");
+		aaptLoc = new File(tmpFolder, "aapt"); //Use the same name for the destination so that the hyphens aren't an issue
+		//GLSL files need to be placed in the root of the APK file
+		glslFolder = new File(tmpFolder, "processing.zip");
 		
-		File androidJarLoc = new File(tmpFolder, "android.jar");
+		//The Processing libraries stay in the temp folder instead of being copied into the build folder
+		toolchainLibs = new ArrayList<File>();
+		toolchainDexLibs = new ArrayList<File>();
 		
-		try {
-			manifest = new Manifest(this);
-			
-			String packageName = manifest.getPackageName();
-			
-			if(!running.get()) { //CHECK
-				cleanUpHalt();
-				return;
-			}
-			
-			Preferences.setInteger("editor.tabs.size", 2); //TODO this is the default... so a tab adds two spaces
-			
-			//Enable all of the fancy preprocessor stuff
-			Preferences.setBoolean("preproc.enhanced_casting", true);
-			Preferences.setBoolean("preproc.web_colors", true);
-			Preferences.setBoolean("preproc.color_datatype", true);
-			Preferences.setBoolean("preproc.substitute_floats", true);
-			Preferences.setBoolean("preproc.substitute_unicode", true);
-			
-			if (verbose) {
-				System.out.println("Pre-processing...");
-			}
-			
-			Preproc preproc = new Preproc(sketchName, packageName);
-			
-			//Combine all of the tabs to check for size
-			String combinedText = "";
-			for(FileMeta tab : tabs)
-				combinedText += tab.getText();
-			preproc.initSketchSize(combinedText, editor);
-			sketchClassName = preprocess(srcFolder, packageName, preproc, false, debug && injectLogBroadcaster);
-			
-			//Detect if the renderer is one of the OpenGL renderers
-			//XTODO support custom renderers that require OpenGL or... other problems that may arise
-//			String sketchRenderer = preproc.getSketchRenderer();
-//			if(sketchRenderer != null)
-//				isOpenGL = sketchRenderer.equals("OPENGL") || sketchRenderer.equals("P3D") || sketchRenderer.equals("P2D");
-//			else
-//				isOpenGL = false;
-			
-			//This OpenGL-checking isn't really useful anymore...
-			
-//			if(isOpenGL)
-//				System.out.println("Detected renderer " + sketchRenderer + "; including OpenGL libraries");
-//			else
-//				System.out.println("Detected renderer " + sketchRenderer + "; leaving out OpenGL libraries");
-			
-			if(!running.get()) { //CHECK
-				cleanUpHalt();
-				return;
-			}
-			
-			if(sketchClassName != null) {
-				if (verbose) {
-					System.out.println("Writing AndroidManifest.xml...");
-				}
-				
-				File tempManifest = new File(buildFolder, "AndroidManifest.xml");
-				manifest.writeBuild(tempManifest, sketchClassName, debug);
-				
-				if(!running.get()) { //CHECK
-					cleanUpHalt();
-					return;
-				}
-				
-				//writeAntProps(new File(buildFolder, "ant.properties"), manifest.getPackageName());
-				//writeBuildXML(buildFile, sketchName);
-				//writeProjectProps(new File(buildFolder, "project.properties"), Manifest.MIN_SDK);
-				//writeLocalProps(new File(buildFolder, "local.properties"));
-				
-				if (verbose) {
-					System.out.println("Writing resources...");
-				}
-				
-				final File resFolder = new File(buildFolder, "res");
-				writeRes(resFolder, sketchClassName);
-				
-				final File libsFolder = mkdirs(buildFolder, "libs");
-				final File assetsFolder = mkdirs(buildFolder, "assets");
-				
-				AssetManager am = editor.getAssets();
-				
-				//Copy android.jar if it hasn't been done yet
-				if(!androidJarLoc.exists()) {
-					if (verbose) {
-						System.out.println("Copying android.jar...");
-					}
-					
-					InputStream is = am.open("android.jar");
-					createFileFromInputStream(is, androidJarLoc);
-					is.close();
-				}
-				
-				//Copy native libraries
-				
-				if (verbose) {
-					System.out.println("Copying Processing libraries...");
-				}
-				
-				String[] libsToCopy = {"processing-core"};//, "jogl-all", "gluegen-rt", "jogl-all-natives", "gluegen-rt-natives"};
-				String prefix = "libs/";
-				String suffix = ".jar";
-				
-				//Copy for the compiler
-				for(String lib : libsToCopy) {
-					InputStream inputStream = am.open(prefix + lib + suffix);
-					createFileFromInputStream(inputStream, new File(libsFolder, lib + suffix));
-					inputStream.close();
-				}
-				
-				//Copy dexed versions to speed up the DEX process
-				
-//				if(isOpenGL) {
-//					//For OpenGL sketches (includes P2D and P3D)
-////					InputStream inputStream = am.open("libs-dex/" + "libs.dex");
-////					createFileFromInputStream(inputStream, glLibLoc);
-//					InputStream inputStream = am.open("libs-dex/" + "libs.jar");
-//					createFileFromInputStream(inputStream, new File(dexedLibsFolder, "libs.jar"));
-//				} else {
-//					//For non-OpenGL sketches
-//					InputStream inputStream = am.open("libs-dex/" + "processing-core-dex.jar");
-//					createFileFromInputStream(inputStream, new File(dexedLibsFolder, "processing-core-dex.jar"));
-//				}
-				
-				if (verbose) {
-					System.out.println("Copying dexed Processing libraries...");
-				}
-				
-				String[] dexLibsToCopy = {"processing-core-dex", "annotations-dex"};//, "jogl-all", "gluegen-rt", "jogl-all-natives", "gluegen-rt-natives"};
-				String dexPrefix = "libs-dex/";
-				String dexSuffix = ".jar";
-				
-//				InputStream inputStream = am.open("libs-dex/" + "processing-core-dex.jar");
-//				createFileFromInputStream(inputStream, new File(dexedLibsFolder, "processing-core-dex.jar"));
-				
-				//Copy for the dexer
-				for(String lib : dexLibsToCopy) {
-					InputStream inputStream = am.open(dexPrefix + lib + dexSuffix);
-					createFileFromInputStream(inputStream, new File(dexedLibsFolder, lib + dexSuffix));
-					inputStream.close();
-				}
-				
-				if (verbose) {
-					System.out.println("Copying contributed libaries...");
-				}
-				
-				// Copy any imported libraries (their libs and assets),
-				// and anything in the code folder contents to the project.
-				copyLibraries(libsFolder, dexedLibsFolder, assetsFolder);
-				copyCodeFolder(libsFolder);
-				
-				// Copy the dexed JARs from the code-dex folder
-				copyCodeDexFolder(dexedLibsFolder);
-				
-				// Copy the data folder (if one exists) to the project's 'assets' folder
-				final File sketchDataFolder = getSketchDataFolder();
-				if(sketchDataFolder.exists()) {
-					if (verbose) {
-						System.out.println("Copying data folder...");
-					}
-					
-					copyDir(sketchDataFolder, assetsFolder);
-				}
-				
-				// Do the same for the 'res' folder.
-				// http://code.google.com/p/processing/issues/detail?id=767
-				final File sketchResFolder = new File(getSketchFolder(), "res");
-				if(sketchResFolder.exists()) {
-					if (verbose) {
-						System.out.println("Copying res folder...");
-					}
-					
-					copyDir(sketchResFolder, resFolder);
-				}
-				
-				if(!running.get()) { //CHECK
-					cleanUpHalt();
-					return;
-				}
-				
-				if (debug && injectLogBroadcaster) {
-					//Add ("LogBroadcasterActive.pde" or "LogBroadcasterStatic.pde") and "APDEInternalLogBroadcasterUtil.java" to the code
-					//We need two versions to support both active and static modes
-					//The static version goes before the code and the active version goes after it
-					//The .pde file contains the code that initializes the output streams and the broadcaster
-					//The .java file contains the classes that are used by the .pde file
-					
-					//Read the .java file
-					
-					InputStream stream = am.open("APDEInternalLogBroadcasterUtil.java");
-					
-					int size = stream.available();
-					byte[] buffer = new byte[size];
-					
-					stream.read(buffer);
-					stream.close();
-					
-					String text = new String(buffer);
-					
-					//Add the package declaration
-					text = "package " + manifest.getPackageName() + ";\n\n" + text;
-					
-					//Save the .java file
-					saveFile(text, new File(srcFolder.getAbsolutePath(), manifest.getPackageName().replace('.', '/') + "/APDEInternalLogBroadcasterUtil.java"));
-				}
-				
-				if(!running.get()) { //CHECK
-					cleanUpHalt();
-					return;
-				}
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (SketchException e) {
-			e.printStackTrace();
-			
-			editor.errorExt(e.getMessage());
-			editor.highlightLineExt(e.getCodeIndex(), e.getCodeLine());
-			
-			//Bail out
-			cleanUp();
-			return;
-		} catch (RuntimeException e) {
-			e.printStackTrace();
-			
-			editor.errorExt(e.getMessage());
-			
-			//Bail out
-			cleanUp();
-			return;
+		apkResFile = new File(binFolder, sketchName + ".apk.res");
+		classesFolder = new File(binFolder, "classes");
+		sketchClassesDex = new File(binFolder, "sketch-classes.dex");
+		classesDex = new File(binFolder, "classes.dex");
+		
+		String abi = android.os.Build.CPU_ABI;
+		
+		//Not set when the build isn't running on a device, e.g. in the benchmark
+		if (abi == null || abi.isEmpty()) {
+			abi = "arm";
 		}
 		
-		System.out.println("Detected architecture " + android.os.Build.CPU_ABI);
+		System.out.println("Detected architecture " + abi);
 		
-		String arch = android.os.Build.CPU_ABI.substring(0, 3).toLowerCase(Locale.US);
-		String aaptName;
+		String arch = abi.substring(0, 3).toLowerCase(Locale.US);
 		
-		int numCores = getNumCores();
+		final int numCores = getNumCores();
 		
 		if (verbose) {
 			System.out.println("Available cores: " + numCores);
@@ -697,7 +502,7 @@ public class Build {
 				// This is for debugging... because for some reason, the new one that was
 				// supposed to fix incompatibilities with some devices is - wait for it -
 				// incompatible with some devices. This seems to be a pattern.
-				if (PreferenceManager.getDefaultSharedPreferences(editor).getBoolean("pref_build_aapt_binary", false)) {
+				if (request.getSettings().useOldAaptBinary()) {
 					aaptName = "aapt-binaries/aapt-arm-pie-old";
 					
 					if (verbose) {
@@ -716,459 +521,993 @@ public class Build {
 			break;
 		}
 		
-		// TODO: Only re-copy AAPT if we need to
-		// Note: Make sure that it gets re-copied if the user changes the pre-0.3.3 preference
+		//Each stage only waits for the stages whose outputs it needs, so e.g. the resources are
+		//packaged and the data folder is copied while the sketch is being compiled
+		BuildGraph graph = new BuildGraph(numCores, running);
+		graph.setMetrics(metrics);
+		
+		BuildGraph.Stage projectStage = graph.add(new BuildGraph.Stage("project") {
+			@Override
+			public boolean run() throws Throwable {
+				return writeProject(debug);
+			}
+		});
 		
-		File aaptLoc = new File(tmpFolder, "aapt"); //Use the same name for the destination so that the hyphens aren't an issue
+		BuildGraph.Stage toolchainStage = graph.add(new BuildGraph.Stage("toolchain") {
+			@Override
+			public boolean run() throws Throwable {
+				return extractToolchain();
+			}
+		});
 		
-		//AAPT setup
-		try {
-			if (verbose) {
-				System.out.println("Copying AAPT...");
+		//The imported libraries aren't known until the sketch has been preprocessed
+		BuildGraph.Stage librariesStage = graph.add(new BuildGraph.Stage("libraries") {
+			@Override
+			public boolean run() throws Throwable {
+				return copyContributedLibraries();
+			}
+		}, projectStage);
+		
+		BuildGraph.Stage generateRStage = graph.add(new BuildGraph.Stage("aapt-gen") {
+			@Override
+			public boolean run() throws Throwable {
+				return generateR();
+			}
+		}, projectStage, toolchainStage);
+		
+		BuildGraph.Stage ecjStage = graph.add(new BuildGraph.Stage("ecj") {
+			@Override
+			public boolean run() throws Throwable {
+				return runEcj();
+			}
+		}, generateRStage, librariesStage);
+		
+		BuildGraph.Stage dxStage = graph.add(new BuildGraph.Stage("dx") {
+			@Override
+			public boolean run() throws Throwable {
+				return runDx(numCores);
 			}
+		}, ecjStage);
+		
+		//Packaging only needs to happen when the user actually runs the sketch
+		if (!compileOnly) {
+			//The data folder is copied after the libraries' assets so that it takes precedence
+			BuildGraph.Stage dataStage = graph.add(new BuildGraph.Stage("data") {
+				@Override
+				public boolean run() throws Throwable {
+					return copyDataFolder();
+				}
+			}, librariesStage);
 			
-			AssetManager am = editor.getAssets();
+			BuildGraph.Stage aaptStage = graph.add(new BuildGraph.Stage("aapt") {
+				@Override
+				public boolean run() throws Throwable {
+					return packageResources();
+				}
+			}, projectStage, toolchainStage);
 			
-			InputStream inputStream = am.open(aaptName);
-			createFileFromInputStream(inputStream, aaptLoc);
-			inputStream.close();
+			//Dexing the libraries and the code folder happens while ECJ is running
+			BuildGraph.Stage jarDexStage = graph.add(new BuildGraph.Stage("jar-dex") {
+				@Override
+				public boolean run() throws Throwable {
+					return dexJars();
+				}
+			}, librariesStage);
 			
-			if (verbose) {
-				System.out.println("Changing execution permissions for AAPT...");
-			}
+			BuildGraph.Stage baseDexStage = graph.add(new BuildGraph.Stage("base-dex") {
+				@Override
+				public boolean run() throws Throwable {
+					return mergeLibraries();
+				}
+			}, toolchainStage, jarDexStage);
+			
+			BuildGraph.Stage mergeStage = graph.add(new BuildGraph.Stage("merge") {
+				@Override
+				public boolean run() throws Throwable {
+					return runDexMerger();
+				}
+			}, dxStage, baseDexStage);
 			
-			//Run "chmod" on aapt so that we can execute it
-			String[] chmod = {"chmod", "744", aaptLoc.getAbsolutePath()};
-			Process chmodProcess = Runtime.getRuntime().exec(chmod);
+			graph.add(new BuildGraph.Stage("apk") {
+				@Override
+				public boolean run() throws Throwable {
+					return buildApk(debug);
+				}
+			}, mergeStage, aaptStage, dataStage);
+		}
+		
+		BuildGraph.Result result = graph.run();
+		
+		metrics.finish(result.name());
+		metrics.printSummary(System.out);
+		
+		if (!compileOnly) {
+			metrics.appendHistory(new File(environment.getFilesDir(), BuildMetrics.HISTORY_FILENAME));
+		}
+		
+		switch (result) {
+		case HALTED:
+			cleanUpHalt();
+			return;
+		case FAILED:
+			Throwable failure = graph.getFailure();
 			
-			int code = chmodProcess.waitFor();
+			if (failure != null) {
+				failure.printStackTrace();
+			}
 			
-			if (code != 0) {
-				System.err.println("Unable to make AAPT executable, error code: " + code);
+			if (failure instanceof SketchException) {
+				SketchException e = (SketchException) failure;
 				
+				environment.error(e.getMessage());
+				environment.highlightLine(e.getCodeIndex(), e.getCodeLine());
+				
+				//Bail out
+				cleanUp();
+			} else if (failure instanceof RuntimeException) {
+				environment.error(failure.getMessage());
+				
+				//Bail out
+				cleanUp();
+			} else {
 				cleanUpError();
-				return;
 			}
 			
-			if (verbose) {
-				copyStream(chmodProcess.getErrorStream(), System.out);
-			}
-		} catch (IOException e) {
-			System.out.println("Unable to make AAPT executable");
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			System.out.println("Unable to make AAPT executable");
-			e.printStackTrace();
+			return;
+		case SUCCESS:
+			break;
 		}
 		
-		if(!running.get()) { //CHECK
-			cleanUpHalt();
+		if (compileOnly) {
+			System.out.println("Compiled in the background");
+			
+			cleanUp();
 			return;
 		}
 		
-		//Let's try a different method - who needs ANT, anyway?
-		
-		String mainActivityLoc = manifest.getPackageName().replace(".", "/");
-		
-		// NOTE: make sure that all places where build folders are specfied
-		// (e.g. "buildFolder") it is followed by ".getAbsolutePath()"!!!!!
-		
-		editor.messageExt(editor.getResources().getString(R.string.run_aapt));
-		
-		//Copy GLSL shader files
-		
-		//GLSL files need to be placed in the root of the APK file
-		File glslFolder = new File(binFolder, "processing.zip");
-		
-		try {
-			if (verbose) {
-				System.out.println("Copying GLSL shader files...");
-			}
-			
-			//Copy the zip archive
-			InputStream inputStream = editor.getAssets().open("glsl/processing.zip");
-			createFileFromInputStream(inputStream, glslFolder);
-		} catch(IOException e) { //Uh-oh...
-			System.out.println("Failed to copy GLSL resources");
-			e.printStackTrace();
+		if (!debug) {
+			System.out.println("Exported to: " + getSketchBinFolder().getAbsolutePath() + "/" + sketchName + ".apk");
+			environment.message(environment.getString(R.string.export_signed_package_complete));
 			
-			cleanUpError();
+			cleanUp();
 			return;
 		}
 		
+		//TODO this writes AAPT error logs, is it necessary?
+//		System.out.println("AAPT logs:");
+//		copyStream(aaptProc.getErrorStream(), System.err);
+		
 		if(!running.get()) { //CHECK
-			cleanUpHalt();
+			cleanUpError();
 			return;
 		}
 		
-		System.out.println(); //Separator
+		environment.message(environment.getString(R.string.run_sketch));
 		
-		//Run AAPT
-		try {
-			System.out.println("Packaging resources with AAPT...");
+		System.out.println("Installing APK file...");
+		
+		if (injectLogBroadcaster) {
+			//Make some space in the console
+			for (int i = 0; i < 10; i ++) {
+				System.out.println("");
+			}
+		}
+		
+		environment.install(new File(binFolder, sketchName + ".apk"), request);
+		
+		cleanUp();
+	}
+	
+	/**
+	 * Preprocesses the sketch and writes the manifest and the resources.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean writeProject(boolean debug) throws IOException, SketchException {
+		manifest = new Manifest(sketchName, getSketchFolder());
+		
+		String packageName = manifest.getPackageName();
+		
+		if (verbose) {
+			System.out.println("Pre-processing...");
+		}
+		
+		sketchClassName = preprocess(srcFolder, packageName, false, debug && injectLogBroadcaster);
+		
+		if (sketchClassName == null) {
+			return false;
+		}
+		
+		metrics.stage("project").count("tabs", tabs.size()).count("preproc-reused", preprocReused ? 1 : 0);
+		
+		if (verbose) {
+			System.out.println("Writing AndroidManifest.xml...");
+		}
+		
+		File tempManifest = new File(buildFolder, "AndroidManifest.xml");
+		manifest.writeBuild(tempManifest, sketchClassName, debug);
+		
+		if (verbose) {
+			System.out.println("Writing resources...");
+		}
+		
+		final File resFolder = new File(buildFolder, "res");
+		writeRes(resFolder, sketchClassName);
+		
+		// Do the same for the 'res' folder.
+		// http://code.google.com/p/processing/issues/detail?id=767
+		final File sketchResFolder = new File(getSketchFolder(), "res");
+		if(sketchResFolder.exists()) {
+			if (verbose) {
+				System.out.println("Copying res folder...");
+			}
 			
-			//Create folder structure for R.java TODO why is this necessary?
-			(new File(genFolder.getAbsolutePath() + "/" + mainActivityLoc + "/")).mkdirs();
+			copyDir(sketchResFolder, resFolder);
+		}
+		
+		if (debug && injectLogBroadcaster) {
+			//Add ("LogBroadcasterActive.pde" or "LogBroadcasterStatic.pde") and "APDEInternalLogBroadcasterUtil.java" to the code
+			//We need two versions to support both active and static modes
+			//The static version goes before the code and the active version goes after it
+			//The .pde file contains the code that initializes the output streams and the broadcaster
+			//The .java file contains the classes that are used by the .pde file
 			
-			String[] args = {
-				aaptLoc.getAbsolutePath(), //The location of AAPT
-				"package", "-v", "-f", "-m",
-				"-S", buildFolder.getAbsolutePath() + "/res/", //The location of the /res folder
-				"-J", genFolder.getAbsolutePath(), //The location of the /gen folder
-				"-A", assetsFolder.getAbsolutePath(), //The location of the /assets folder
-				"-M", buildFolder.getAbsolutePath() + "/AndroidManifest.xml", //The location of the AndroidManifest.xml file
-				"-I", androidJarLoc.getAbsolutePath(), //The location of the android.jar resource
-				"-F", binFolder.getAbsolutePath() + "/" + sketchName + ".apk.res" //The location of the output .apk.res file
-			};
+			//Read the .java file
 			
-			Process aaptProcess = Runtime.getRuntime().exec(args);
+			InputStream stream = environment.openAsset("APDEInternalLogBroadcasterUtil.java");
 			
-			int code = aaptProcess.waitFor();
+			int size = stream.available();
+			byte[] buffer = new byte[size];
 			
-			if (code != 0) {
-				System.err.println("AAPT exited with error code " + code);
-				
-				cleanUpError();
-				return;
-			}
+			stream.read(buffer);
+			stream.close();
 			
-			if (verbose) {
-				copyStream(aaptProcess.getErrorStream(), System.out);
-			}
-		} catch (IOException e) {
-			//Something weird happened
-			System.out.println("AAPT failed");
-			e.printStackTrace();
+			String text = new String(buffer);
 			
-			cleanUpError();
-			return;
-		} catch (InterruptedException e) {
-			//Something even weirder happened
-			System.out.println("AAPT failed");
-			e.printStackTrace();
+			//Add the package declaration
+			text = "package " + packageName + ";\n\n" + text;
 			
-			cleanUpError();
-			return;
+			//Save the .java file
+			saveFile(text, new File(srcFolder.getAbsolutePath(), packageName.replace('.', '/') + "/APDEInternalLogBroadcasterUtil.java"));
 		}
 		
-		if(!running.get()) { //CHECK
-			cleanUpHalt();
-			return;
+		metrics.stage("project").output(srcFolder, tempManifest, resFolder);
+		
+		return true;
+	}
+	
+	/**
+	 * Extracts android.jar, the Processing libraries, AAPT, and the GLSL shaders if they
+	 * haven't been extracted yet.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean extractToolchain() throws IOException {
+		//The build tools are only extracted from the assets once per version of APDE
+		ToolchainCache toolchain = new ToolchainCache(tmpFolder, environment.getVersionCode());
+		
+		//Extract android.jar if it hasn't been done yet
+		if (verbose) {
+			System.out.println("Checking android.jar...");
 		}
 		
-		editor.messageExt(editor.getResources().getString(R.string.run_ecj));
+		toolchain.extract(environment, "android.jar", androidJarLoc);
 		
-		//Run ECJ
-		{
-			System.out.println("Compiling with ECJ...");
+		if (verbose) {
+			System.out.println("Checking Processing libraries...");
+		}
+		
+		String[] libsToCopy = {"processing-core"};//, "jogl-all", "gluegen-rt", "jogl-all-natives", "gluegen-rt-natives"};
+		String prefix = "libs/";
+		String suffix = ".jar";
+		
+		//Extract for the compiler
+		for(String lib : libsToCopy) {
+			toolchainLibs.add(toolchain.extract(environment, prefix + lib + suffix, new File(tmpFolder, lib + suffix)));
+		}
+		
+		if (verbose) {
+			System.out.println("Checking dexed Processing libraries...");
+		}
+		
+		String[] dexLibsToCopy = {"processing-core-dex", "annotations-dex"};//, "jogl-all", "gluegen-rt", "jogl-all-natives", "gluegen-rt-natives"};
+		String dexPrefix = "libs-dex/";
+		String dexSuffix = ".jar";
+		
+		//Extract for the dexer
+		for(String lib : dexLibsToCopy) {
+			toolchainDexLibs.add(toolchain.extract(environment, dexPrefix + lib + dexSuffix, new File(tmpFolder, lib + dexSuffix)));
+		}
+		
+		// AAPT is only re-extracted if it's from an older version of APDE or if the binary changes
+		// (e.g. if the user changes the pre-0.3.3 preference)
+		
+		if (verbose) {
+			System.out.println("Checking AAPT...");
+		}
+		
+		toolchain.extract(environment, aaptName, aaptLoc);
+		
+		//Make AAPT executable (the equivalent of "chmod 744") without having to start another process
+		if (!aaptLoc.canExecute()) {
+			if (verbose) {
+				System.out.println("Changing execution permissions for AAPT...");
+			}
 			
-			Main main = new Main(new PrintWriter(System.out), new PrintWriter(System.err), false, null, null);
-			String[] args = {
-				(verbose ? "-verbose"
-						: "-warn:-unusedImport"), //Disable warning for unused imports (the preprocessor gives us a lot of them, so this is just a lot of noise)
-				"-extdirs", libsFolder.getAbsolutePath(), //The location of the external libraries (Processing's core.jar and others)
-				"-bootclasspath", androidJarLoc.getAbsolutePath(), //buildFolder.getAbsolutePath() + "/sdk/platforms/" + androidVersion + "/android.jar", //The location of android.jar
-				"-classpath", srcFolder.getAbsolutePath() //The location of the source folder
-				+ ":" + genFolder.getAbsolutePath() //The location of the generated folder
-				+ ":" + libsFolder.getAbsolutePath(), //The location of the library folder
-				"-1.6",
-				"-target", "1.6", //Target Java level
-				"-proc:none", //Disable annotation processors...
-				"-d", binFolder.getAbsolutePath() + "/classes/", //The location of the output folder
-				srcFolder.getAbsolutePath() + "/" + mainActivityLoc + "/" + sketchName + ".java", //The location of the main Activity
-			};
+			if (!aaptLoc.setExecutable(true, true)) {
+				System.err.println("Unable to make AAPT executable");
+				return false;
+			}
+		}
+		
+		if (verbose) {
+			System.out.println("Checking GLSL shader files...");
+		}
+		
+		//Extract the zip archive
+		toolchain.extract(environment, "glsl/processing.zip", glslFolder);
+		
+		return true;
+	}
+	
+	/**
+	 * Copies the imported libraries and the contents of the code folder.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean copyContributedLibraries() throws IOException {
+		if (verbose) {
+			System.out.println("Copying contributed libaries...");
+		}
+		
+		jarsToDex.clear();
+		
+		// Copy any imported libraries (their libs and assets),
+		// and anything in the code folder contents to the project.
+		copyLibraries(libsFolder, dexedLibsFolder, assetSync);
+		copyCodeFolder(libsFolder);
+		
+		// Copy the dexed JARs from the code-dex folder
+		copyCodeDexFolder(dexedLibsFolder);
+		
+		metrics.stage("libraries").count("libraries", importedLibraries.size()).output(libsFolder, dexedLibsFolder);
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the dexed versions of the libraries' JARs and the code folder's JARs from the dex
+	 * cache, dexing the ones that haven't been dexed before. This runs while the sketch is being
+	 * compiled.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean dexJars() throws IOException {
+		//The cache is keyed by the contents of the JARs, so the dexed JARs are never out of date
+		DexCache dexCache = DexCache.load(new File(environment.getFilesDir(), DexCache.FOLDER_NAME));
+		
+		for (Map.Entry<String, File> jar : jarsToDex.entrySet()) {
+			if (!running.get()) {
+				return false;
+			}
 			
+			String name = jar.getKey().substring(0, jar.getKey().length() - 4);
+			copyFile(dexCache.getDexJar(jar.getValue()), new File(dexedLibsFolder, name + "-dex.jar"));
+		}
+		
+		metrics.stage("jar-dex").count("jars", jarsToDex.size());
+		
+		return true;
+	}
+	
+	/**
+	 * Syncs the data folder (if one exists) and the libraries' assets to the project's 'assets'
+	 * folder. Only the files that have changed since the last build are copied.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean copyDataFolder() throws IOException {
+		final File sketchDataFolder = getSketchDataFolder();
+		if(sketchDataFolder.exists()) {
 			if (verbose) {
-				System.out.println("Compiling: " + srcFolder.getAbsolutePath() + "/" + mainActivityLoc + "/" + sketchName + ".java");
+				System.out.println("Copying data folder...");
 			}
 			
-			if(main.compile(args)) {
-				System.out.println();
-			} else {
-				//We have some compilation errors
-				System.out.println();
-				System.out.println("Compilation with ECJ failed");
-				
-				cleanUpError();
-				return;
-			}
+			//Added last so that it takes precedence over the libraries' assets
+			assetSync.addFolder("", sketchDataFolder);
 		}
 		
-		if(!running.get()) { //CHECK
-			cleanUpHalt();
-			return;
+		assetSync.sync();
+		
+		if (verbose) {
+			System.out.println("Assets: " + assetSync.getCopiedFiles() + " copied, " + assetSync.getLinkedFiles() + " linked, "
+					+ assetSync.getUnchangedFiles() + " unchanged, " + assetSync.getDeletedFiles() + " deleted");
 		}
 		
-		editor.messageExt(editor.getResources().getString(R.string.run_dx));
+		metrics.stage("data").input(sketchDataFolder)
+				.output(assetSync.getCopiedBytes(), assetSync.getCopiedFiles())
+				.count("linked", assetSync.getLinkedFiles())
+				.count("unchanged", assetSync.getUnchangedFiles());
+		
+		return true;
+	}
+	
+	/**
+	 * Generates R.java, with AAPT if the resources are too complicated for ResourcePackager.
+	 * This is done separately from packaging the resources because the compiler only needs
+	 * R.java, and R.java doesn't depend on the assets (which can take a while to package).
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean generateR() {
+		environment.message(environment.getString(R.string.run_aapt));
 		
-		//Run DX Dexer
 		try {
-			System.out.println("Dexing with DX Dexer...");
+			String fingerprint = getResFingerprint();
 			
-			String[] args;
+			if (buildCache.isFresh("aapt-gen", fingerprint, genFolder)) {
+				System.out.println("Resources unchanged, skipping R.java");
+				metrics.stage("aapt-gen").skipped();
+				return true;
+			}
 			
-			//Yuck, this is the best way to support verbose output...
-			if (verbose ) {
-				args = new String[] {
-						"--verbose",
-						"--num-threads=" + numCores,
-						"--output=" + binFolder.getAbsolutePath() + "/sketch-classes.dex", //The output location of the sketch's dexed classes
-						binFolder.getAbsolutePath() + "/classes/" //add "/classes/" to get DX to work properly
-				};
-			} else {
-				args = new String[] {
-						"--num-threads=" + numCores,
-						"--output=" + binFolder.getAbsolutePath() + "/sketch-classes.dex", //The output location of the sketch's dexed classes
-						binFolder.getAbsolutePath() + "/classes/" //add "/classes/" to get DX to work properly
-				};
+			buildCache.invalidate("aapt-gen");
+			
+			//This sketch might have been built before, and then another sketch in the same build folder
+			if (resourceCache.restoreGen(fingerprint, genFolder)) {
+				System.out.println("Resources built before, skipping R.java");
+				buildCache.record("aapt-gen", fingerprint);
+				metrics.stage("aapt-gen").count("restored", 1).output(genFolder);
+				return true;
+			}
+			
+			//Otherwise R.java from a previous package name would stick around
+			if (genFolder.exists()) {
+				deleteFile(genFolder);
+			}
+			
+			ResourcePackager packager = getResourcePackager();
+			
+			if (packager != null) {
+				System.out.println("Generating R.java...");
+				
+				packager.writeR(genFolder);
+				
+				resourceCache.storeGen(fingerprint, genFolder);
+				buildCache.record("aapt-gen", fingerprint);
+				
+				metrics.stage("aapt-gen").count("java", 1).input(new File(buildFolder, "AndroidManifest.xml"), new File(buildFolder, "res")).output(genFolder);
+				
+				return true;
 			}
 			
-			//This is some side-stepping to avoid System.exit() calls
+			System.out.println("Generating R.java with AAPT...");
 			
-			com.android.dx.command.dexer.Main.Arguments dexArgs = new com.android.dx.command.dexer.Main.Arguments();
-			dexArgs.parse(args);
+			//Create folder structure for R.java TODO why is this necessary?
+			(new File(genFolder.getAbsolutePath() + "/" + manifest.getPackageName().replace(".", "/") + "/")).mkdirs();
 			
-			int resultCode = com.android.dx.command.dexer.Main.run(dexArgs);
+			String[] args = {
+				aaptLoc.getAbsolutePath(), //The location of AAPT
+				"package", "-v", "-f", "-m",
+				"-S", buildFolder.getAbsolutePath() + "/res/", //The location of the /res folder
+				"-J", genFolder.getAbsolutePath(), //The location of the /gen folder
+				"-M", buildFolder.getAbsolutePath() + "/AndroidManifest.xml", //The location of the AndroidManifest.xml file
+				"-I", androidJarLoc.getAbsolutePath() //The location of the android.jar resource
+			};
 			
-			if (resultCode != 0) {
-				System.err.println("DX Dexer result code: " + resultCode);
+			if (!runAapt(args)) {
+				return false;
 			}
-		} catch(Exception e) {
-			System.out.println("DX Dexer failed");
+			
+			resourceCache.storeGen(fingerprint, genFolder);
+			buildCache.record("aapt-gen", fingerprint);
+			
+			metrics.stage("aapt-gen").input(new File(buildFolder, "AndroidManifest.xml"), new File(buildFolder, "res")).output(genFolder);
+			
+			return true;
+		} catch (IOException e) {
+			//Something weird happened
+			System.out.println("AAPT failed");
 			e.printStackTrace();
 			
-			cleanUpError();
-			return;
+			return false;
 		}
-		
-		if(!running.get()) { //CHECK
-			cleanUpHalt();
-			return;
+	}
+	
+	/**
+	 * Both AAPT stages need this, and they run at the same time, so whichever gets here first
+	 * hashes the resources.
+	 *
+	 * @return the fingerprint of everything that goes into AAPT
+	 */
+	private synchronized String getResFingerprint() throws IOException {
+		if (resFingerprint == null) {
+			//The assets aren't packaged by AAPT, so they aren't part of this
+			resFingerprint = new BuildCache.Fingerprint()
+					.add(sketchName).add(aaptName)
+					.add(Integer.toString(environment.getVersionCode()))
+					.addContents(new File(buildFolder, "AndroidManifest.xml"))
+					.addContents(new File(buildFolder, "res"))
+					.toString();
+		}
+		
+		return resFingerprint;
+	}
+	
+	/**
+	 * Both AAPT stages need this too, so it is only checked once per build.
+	 *
+	 * @return the in-process packager, or null if the resources need AAPT
+	 */
+	private synchronized ResourcePackager getResourcePackager() {
+		if (!resourcePackagerChecked) {
+			resourcePackagerChecked = true;
+			
+			ResourcePackager packager = new ResourcePackager(new File(buildFolder, "AndroidManifest.xml"), new File(buildFolder, "res"));
+			
+			if (packager.isSupported()) {
+				resourcePackager = packager;
+			} else if (verbose) {
+				System.out.println("Using AAPT because " + packager.getUnsupportedReason());
+			}
 		}
 		
-		//Run DX Merger
+		return resourcePackager;
+	}
+	
+	/**
+	 * Packages the resources into the .apk.res file, with AAPT if necessary. The assets are
+	 * packaged by ApkWriter, so that changing the data folder doesn't run AAPT again.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean packageResources() {
 		try {
-			System.out.println("Merging DEX files with DX Merger...");
+			//R.java and the .apk.res are stored together, so a set of resources is one cache entry
+			String fingerprint = getResFingerprint();
 			
-			File[] dexedLibs = dexedLibsFolder.listFiles(new FilenameFilter() {
-				@Override
-				public boolean accept(File dir, String filename) {
-					return filename.endsWith("-dex.jar");
-				}
-			});
+			if (buildCache.isFresh("aapt", fingerprint, apkResFile)) {
+				System.out.println("Resources unchanged, skipping AAPT");
+				metrics.stage("aapt").skipped();
+				return true;
+			}
 			
-			String[] args = new String[dexedLibs.length + 2];
-			args[0] = binFolder.getAbsolutePath() + "/classes.dex"; //The location of the output DEX class file
-			args[1] = binFolder.getAbsolutePath() + "/sketch-classes.dex"; //The location of the sketch's dexed classes
+			buildCache.invalidate("aapt");
 			
-			//Apparently, this tool accepts as many dex files as we want to throw at it...
-			for (int i = 0; i < dexedLibs.length; i ++) {
-				args[i + 2] = dexedLibs[i].getAbsolutePath();
+			if (resourceCache.restoreApkRes(fingerprint, apkResFile)) {
+				System.out.println("Resources built before, skipping AAPT");
+				buildCache.record("aapt", fingerprint);
+				metrics.stage("aapt").count("restored", 1).output(apkResFile);
+				return true;
 			}
 			
-			com.android.dx.merge.DexMerger.main(args);
-		} catch (Exception e) {
-			System.out.println("DX Merger failed");
+			ResourcePackager packager = getResourcePackager();
+			
+			if (packager != null) {
+				System.out.println("Packaging resources...");
+				
+				packager.writeApkRes(apkResFile);
+				
+				resourceCache.storeApkRes(fingerprint, apkResFile);
+				buildCache.record("aapt", fingerprint);
+				
+				metrics.stage("aapt").count("java", 1).input(new File(buildFolder, "AndroidManifest.xml"), new File(buildFolder, "res")).output(apkResFile);
+				
+				return true;
+			}
+			
+			System.out.println("Packaging resources with AAPT...");
+			
+			String[] args = {
+				aaptLoc.getAbsolutePath(), //The location of AAPT
+				"package", "-v", "-f",
+				"-S", buildFolder.getAbsolutePath() + "/res/", //The location of the /res folder
+				"-M", buildFolder.getAbsolutePath() + "/AndroidManifest.xml", //The location of the AndroidManifest.xml file
+				"-I", androidJarLoc.getAbsolutePath(), //The location of the android.jar resource
+				"-F", apkResFile.getAbsolutePath() //The location of the output .apk.res file
+			};
+			
+			if (!runAapt(args)) {
+				return false;
+			}
+			
+			resourceCache.storeApkRes(fingerprint, apkResFile);
+			buildCache.record("aapt", fingerprint);
+			
+			metrics.stage("aapt").input(new File(buildFolder, "AndroidManifest.xml"), new File(buildFolder, "res")).output(apkResFile);
+			
+			return true;
+		} catch (IOException e) {
+			//Something weird happened
+			System.out.println("AAPT failed");
 			e.printStackTrace();
 			
-			cleanUpError();
-			return;
+			return false;
 		}
+	}
+	
+	/**
+	 * Runs AAPT, killing it if the build is cancelled while it's running. Its output is read
+	 * while it runs, and any errors are reported straight away.
+	 *
+	 * @param args the command line, starting with the location of AAPT
+	 * @return whether or not AAPT succeeded
+	 * @throws IOException if AAPT couldn't be started or it timed out
+	 * @throws RuntimeException with AAPT's first error, if it failed with one
+	 */
+	private boolean runAapt(String[] args) throws IOException {
+		final List<AaptDiagnostic> errors = Collections.synchronizedList(new ArrayList<AaptDiagnostic>());
 		
-		if(!running.get()) { //CHECK
-			cleanUpHalt();
-			return;
+		ExternalProcess aapt = new ExternalProcess(args, AAPT_TIMEOUT, new ExternalProcess.OutputListener() {
+			@Override
+			public void line(String line, boolean error) {
+				AaptDiagnostic diagnostic = AaptDiagnostic.parse(line, buildFolder);
+				
+				if (diagnostic != null) {
+					if (diagnostic.isError()) {
+						errors.add(diagnostic);
+						System.err.println("AAPT: " + diagnostic);
+					} else {
+						System.out.println("AAPT: " + diagnostic);
+					}
+				} else if (verbose) {
+					System.out.println(line);
+				}
+			}
+		});
+		
+		try {
+			int code = aapt.run(running);
+			
+			if (code != 0) {
+				System.err.println("AAPT exited with error code " + code);
+				
+				synchronized (errors) {
+					if (!errors.isEmpty()) {
+						throw new RuntimeException(errors.get(0).toString());
+					}
+				}
+				
+				return false;
+			}
+		} catch (InterruptedException e) {
+			//The build was cancelled or another stage failed, so nobody needs the output anymore
+			return false;
 		}
 		
-		editor.messageExt(editor.getResources().getString(R.string.run_apkbuilder));
+		return true;
+	}
+	
+	/**
+	 * Compiles the sketch with ECJ.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean runEcj() {
+		environment.message(environment.getString(R.string.run_ecj));
 		
-		//Run APKBuilder
 		try {
-			System.out.println("Building APK file with APKBuilder...");
-			
-//			String[] args = {
-//				binFolder.getAbsolutePath() + "/" + sketchName + ".apk.unsigned", //The location of the output APK file (unsigned)
-//				"-u",
-//				"-z", binFolder.getAbsolutePath() + "/" + sketchName + ".apk.res", //The location of the .apk.res file
-//				"-f", binFolder.getAbsolutePath() + "/classes.dex", //The location of the DEX class file
-//				"-z", glslFolder.getAbsolutePath(), //Location of GLSL files
-//				"-rf", srcFolder.getAbsolutePath() //The location of the source folder
-//			};
-//			
-//			com.android.sdklib.build.ApkBuilderMain.main(args);
+			ecjFingerprint = new BuildCache.Fingerprint()
+					.add(getResFingerprint())
+					.addContents(srcFolder)
+					.addContents(libsFolder)
+					.addStamps(androidJarLoc)
+					.addStamps(toolchainLibs)
+					.toString();
+			
+			if (buildCache.isFresh("ecj", ecjFingerprint, classesFolder)) {
+				System.out.println("Sources unchanged, skipping ECJ");
+				metrics.stage("ecj").skipped();
+				return true;
+			}
 			
-			//Create the builder with the basic files
-			ApkBuilder builder = new ApkBuilder(new File(binFolder.getAbsolutePath() + "/" + sketchName + ".apk.unsigned"), //The location of the output APK file (unsigned)
-					new File(binFolder.getAbsolutePath() + "/" + sketchName + ".apk.res"), //The location of the .apk.res file
-					new File(binFolder.getAbsolutePath() + "/classes.dex"), //The location of the DEX class file
-					null, (verbose ? System.out : null) //Only specify an output stream if we want verbose output
-			);
+			buildCache.invalidate("ecj");
 			
-			//Add everything else
-			builder.addZipFile(glslFolder); //Location of GLSL files
-			builder.addSourceFolder(srcFolder); //The location of the source folder
+			System.out.println("Compiling with ECJ...");
 			
-			//Seal the APK
-			builder.sealApk();
-		} catch(Exception e) {
-			System.out.println("APKBuilder failed");
+			//Otherwise the classes from deleted tabs would stick around
+			if (classesFolder.exists()) {
+				deleteFile(classesFolder);
+			}
+			
+			//The class path is kept open between builds, so android.jar and the libraries
+			//only have to be indexed again when they change
+			ArrayList<File> classPath = new ArrayList<File>();
+			classPath.add(androidJarLoc);
+			classPath.addAll(toolchainLibs);
+			classPath.addAll(listJars(libsFolder));
+			
+			List<File> sources = SketchCompiler.listSources(srcFolder, genFolder);
+			
+			if (verbose) {
+				for (File source : sources) {
+					System.out.println("Compiling: " + source.getAbsolutePath());
+				}
+			}
+			
+			//ECJ checks this between each step of compiling each file
+			CompilationProgress progress = new CompilationProgress() {
+				@Override
+				public boolean isCanceled() {
+					return !running.get() || Thread.currentThread().isInterrupted();
+				}
+				
+				@Override
+				public void begin(int remainingWork) {}
+				
+				@Override
+				public void done() {}
+				
+				@Override
+				public void setTaskName(String name) {}
+				
+				@Override
+				public void worked(int workIncrement, int remainingWork) {}
+			};
+			
+			boolean success = SketchCompiler.get(classPath).compile(sources, classesFolder,
+					new PrintWriter(System.out), new PrintWriter(System.err), progress, verbose);
+			
+			if (progress.isCanceled()) {
+				//The build was halted, or another stage failed
+				return false;
+			}
+			
+			if(success) {
+				System.out.println();
+			} else {
+				//We have some compilation errors
+				System.out.println();
+				System.out.println("Compilation with ECJ failed");
+				
+				return false;
+			}
+			
+			buildCache.record("ecj", ecjFingerprint);
+			
+			BuildMetrics.StageMetrics ecjMetrics = metrics.stage("ecj").input(sources).input(classPath).output(classesFolder);
+			ecjMetrics.count("sources", sources.size()).count("classes", ecjMetrics.getOutputFiles());
+			
+			return true;
+		} catch (IOException e) {
+			System.out.println("Compilation with ECJ failed");
 			e.printStackTrace();
 			
-			cleanUpError();
-			return;
+			return false;
 		}
+	}
+	
+	/**
+	 * Dexes the sketch's classes with DX.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean runDx(int numCores) {
+		environment.message(environment.getString(R.string.run_dx));
 		
-		//TODO Switch over to AAPT...
-		//This is seriously messed up right now...
+		//The classes only change when ECJ runs, so there's no need to hash them again
+		dxFingerprint = ecjFingerprint;
 		
-//		//Run AAPT
-//		try {
-//			System.out.println("Running AAPT...");
-//			
-//			String[] args = {
-//					aaptLoc.getAbsolutePath(), //The location of AAPT
-//					"package", "-v", "-f",
-//					"-j", binFolder.getAbsolutePath() + "/" + sketchName + ".apk.res",
-//					"-j", glslFolder.getAbsolutePath(),
-//					"-F", binFolder.getAbsolutePath() + "/" + sketchName + ".apk.unsigned",
-//					binFolder.getAbsolutePath()
-//			};
-//			
-//			aaptProc = Runtime.getRuntime().exec(args);
-//			
-//			System.out.println("Ran AAPT successfully");
-//		} catch(IOException e) {
-//			System.out.println("AAPT failed");
-//			e.printStackTrace();
-//			
-//			cleanUpError();
-//			return;
-//		}
-//		
-		if(!running.get()) { //CHECK
-			cleanUpHalt();
-			return;
+		if (buildCache.isFresh("dx", dxFingerprint, sketchClassesDex)) {
+			System.out.println("Classes unchanged, skipping DX Dexer");
+			metrics.stage("dx").skipped();
+			return true;
 		}
 		
-		editor.messageExt(editor.getResources().getString(R.string.run_zipsigner));
-		
-		System.out.println(); //Separator
-		
-		if (debug) {
-			System.out.println("Signing and Zipaligning with ZipSigner...");
+		try {
+			buildCache.invalidate("dx");
 			
-			//Sign the APK using ZipSigner
-			signApk();
-		} else {
-			System.out.println("Signing with private key...");
+			System.out.println("Dexing with DX Dexer...");
 			
-			//We want to sign for release!!!
-			signApkRelease();
+			//Not DX's Main, so that halting the build doesn't have to wait for all of the classes
+			JarDexer.dexFolder(classesFolder, sketchClassesDex, numCores);
 			
-			System.out.println("Exported to: " + getSketchBinFolder().getAbsolutePath() + "/" + sketchName + ".apk");
-			editor.messageExt(editor.getResources().getString(R.string.export_signed_package_complete));
+			buildCache.record("dx", dxFingerprint);
 			
-			cleanUp();
-			return;
-		}
-		
-		//TODO this writes AAPT error logs, is it necessary?
-//		System.out.println("AAPT logs:");
-//		copyStream(aaptProc.getErrorStream(), System.err);
-		
-		if(!running.get()) { //CHECK
-			cleanUpError();
-			return;
-		}
-		
-		editor.messageExt(editor.getResources().getString(R.string.run_sketch));
-		
-		System.out.println("Installing APK file...");
-		
-		//Copy the APK file to a new (and hopefully readable) location
-		
-		String apkName = sketchName + ".apk";
-		String apkLoc = binFolder.getAbsolutePath() + "/" + apkName;
-		File apkFile = new File(apkLoc);
-		File destApkFile = new File(editor.getFilesDir(), apkName);
-		
-		Intent promptInstall;
-		
-		//We only need to do our copying-voodoo if the user is crazy enough to want to build on the internal storage (or if they don't have an external storage...)
-		if(PreferenceManager.getDefaultSharedPreferences(editor).getBoolean("pref_build_internal_storage", true)) {
-			try {
-				//Yes, I know that MODE_WORLD_READABLE is risky...
-				//...this is the only way to get the package installer to be able to read the APK file from the internal storage
-				//It's not like there's any personal data in the sketch...
-				copyFileToOutputStream(apkFile, editor.openFileOutput(apkName, Context.MODE_WORLD_READABLE));
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-			//Prompt the user to install the APK file
-			promptInstall = new Intent(Intent.ACTION_VIEW)
-			.setDataAndType(Uri.fromFile(
-					destApkFile), //The location of the APK
-					"application/vnd.android.package-archive"
-					);
-		} else {
-			//Prompt the user to install the APK file
-			promptInstall = new Intent(Intent.ACTION_VIEW)
-			.setDataAndType(Uri.parse("file:///" +
-					apkLoc), //The location of the APK
-					"application/vnd.android.package-archive"
-					);
+			metrics.stage("dx").input(classesFolder).output(sketchClassesDex);
+			
+			return true;
+		} catch (InterruptedIOException e) {
+			//The build was halted, or another stage failed
+			return false;
+		} catch(Exception e) {
+			System.out.println("DX Dexer failed");
+			e.printStackTrace();
+			
+			return false;
 		}
-		
-		if (injectLogBroadcaster) {
-			//Make some space in the console
-			for (int i = 0; i < 10; i ++) {
-				System.out.println("");
-			}
+	}
+	
+	/**
+	 * Gets the libraries' dex files merged together, either from the cache or by merging them.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean mergeLibraries() {
+		try {
+			File[] libraryDexJars = dexedLibsFolder.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String filename) {
+					return filename.endsWith("-dex.jar");
+				}
+			});
+			
+			//Sort so that the same libraries always map to the same base dex
+			Arrays.sort(libraryDexJars);
+			
+			ArrayList<File> dexedLibs = new ArrayList<File>(toolchainDexLibs);
+			dexedLibs.addAll(Arrays.asList(libraryDexJars));
+			
+			//The libraries are merged ahead of time and cached, so we only have to merge the sketch into them
+			baseDex = new BaseDexCache(new File(tmpFolder, "base-dex")).getBaseDex(dexedLibs);
+			
+			metrics.stage("base-dex").count("libraries", dexedLibs.size());
+			
+			return true;
+		} catch (InterruptedIOException e) {
+			//The build was halted, or another stage failed
+			return false;
+		} catch (Exception e) {
+			System.out.println("DX Merger failed");
+			e.printStackTrace();
+			
+			return false;
 		}
-		
-		//Get a result so that we can delete the APK file
-		editor.startActivityForResult(promptInstall, EditorActivity.FLAG_DELETE_APK);
-		
-		cleanUp();
 	}
 	
-	private void signApk() {
-		String mode = "testkey";
-		String inFilename = binFolder.getAbsolutePath() + "/" + sketchName + ".apk.unsigned";
-		String outFilename = binFolder.getAbsolutePath() + "/" + sketchName + ".apk";
-		
-		ZipSigner signer;
-		
+	/**
+	 * Merges the sketch's dex file into the libraries' dex file.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean runDexMerger() {
 		try {
-			signer = new ZipSigner();
+			String mergeFingerprint = new BuildCache.Fingerprint()
+					.add(dxFingerprint)
+					.add(baseDex == null ? null : baseDex.getName())
+					.toString();
+			
+			if (buildCache.isFresh("merge", mergeFingerprint, classesDex)) {
+				System.out.println("Classes unchanged, skipping DX Merger");
+				metrics.stage("merge").skipped();
+				return true;
+			}
+			
+			buildCache.invalidate("merge");
+			
+			System.out.println("Merging DEX files with DX Merger...");
+			
+			final ArrayList<File> dexFiles = new ArrayList<File>();
+			dexFiles.add(sketchClassesDex); //The sketch's classes take precedence
+			if (baseDex != null) {
+				dexFiles.add(baseDex);
+			}
+			
+			//DexMerger can't be interrupted, so merge on another thread and abandon it if the
+			//build is halted. Only this thread writes the output, so an abandoned merge is harmless.
+			ExecutorService merger = Executors.newSingleThreadExecutor();
+			Future<Dex> merging = merger.submit(new Callable<Dex>() {
+				@Override
+				public Dex call() throws Exception {
+					return BaseDexCache.merge(dexFiles);
+				}
+			});
+			merger.shutdown();
+			
+			Dex merged;
+			
+			try {
+				merged = merging.get();
+			} catch (InterruptedException e) {
+				merging.cancel(true);
+				return false;
+			}
+			
+			merged.writeTo(classesDex);
 			
-			signer.setKeymode(mode);
+			buildCache.record("merge", mergeFingerprint);
 			
-			signer.signZip(inFilename, outFilename);
+			//Useful for keeping an eye on the 64K method limit
+			metrics.stage("merge").input(dexFiles).output(classesDex)
+					.count("classes", merged.getTableOfContents().classDefs.size)
+					.count("methods", merged.getTableOfContents().methodIds.size);
+			
+			return true;
+		} catch (InterruptedIOException e) {
+			//The build was halted, or another stage failed
+			return false;
 		} catch (Exception e) {
+			System.out.println("DX Merger failed");
 			e.printStackTrace();
+			
+			return false;
 		}
 	}
 	
-	private void signApkRelease() {
-		Security.addProvider(new BouncyCastleProvider());
+	/**
+	 * Builds, signs, and aligns the APK in one pass with ApkWriter.
+	 *
+	 * @return whether or not the stage succeeded
+	 */
+	private boolean buildApk(boolean debug) {
+		environment.message(environment.getString(R.string.run_apkbuilder));
 		
-		String inFilename = binFolder.getAbsolutePath() + "/" + sketchName + ".apk.unsigned";
-		String outFilename = getSketchBinFolder().getAbsolutePath() + "/" + sketchName + ".apk";
+		//The release build is written to the sketch folder and never reused
+		File apkFile = debug ? new File(binFolder, sketchName + ".apk") : new File(getSketchBinFolder(), sketchName + ".apk");
 		
-		ZipSigner signer;
+		ApkWriter writer = null;
 		
 		try {
-			signer = new ZipSigner();
+			//The source folder is hashed again because its non-Java resources are packaged
+			apkFingerprint = new BuildCache.Fingerprint()
+					.add(getResFingerprint())
+					.addContents(classesDex)
+					.addStamps(assetsFolder)
+					.add(request.getSettings().getStoredExtensions())
+					.addStamps(glslFolder)
+					.addContents(srcFolder)
+					.toString();
+			
+			if (debug && buildCache.isFresh("apk", apkFingerprint, apkFile)) {
+				System.out.println("Nothing changed, reusing signed APK");
+				metrics.stage("apk").skipped();
+				return true;
+			}
 			
-//			signer.signZip(new URL("file://" + keystore), "bks", keystorePassword, keyAlias, keyAliasPassword, "SHA1WITHRSA", inFilename, outFilename);
-			//Let's take advantage of ZipSigner's ability to load JKS keystores as well
-			CustomKeySigner.signZip(signer, keystore, keystorePassword, keyAlias, keyAliasPassword, "SHA1WITHRSA", inFilename, outFilename);
-		} catch (Exception e) {
-			e.printStackTrace();
+			buildCache.invalidate("apk");
+			
+			System.out.println();
+			
+			KeySet keys;
+			
+			if (debug) {
+				System.out.println("Building, signing, and aligning APK file...");
+				
+				keys = ApkWriter.getDebugKeys();
+			} else {
+				System.out.println("Building APK file and signing with private key...");
+				
+				Security.addProvider(new BouncyCastleProvider());
+				keys = ApkWriter.loadKeys(keystore, keystorePassword, keyAlias, keyAliasPassword);
+			}
+			
+			apkFile.getParentFile().mkdirs();
+			writer = new ApkWriter(apkFile, keys);
+			writer.setStoredExtensions(request.getSettings().getStoredExtensions());
+			
+			writer.addZipFile(apkResFile); //The resources from AAPT
+			writer.addFile("classes.dex", classesDex);
+			writer.addAssetFolder(assetsFolder); //The data folder and the libraries' assets
+			writer.addZipFile(glslFolder); //Location of GLSL files
+			writer.addSourceFolder(srcFolder); //The location of the source folder
+			
+			writer.finish();
+			
+			if (debug) {
+				buildCache.record("apk", apkFingerprint);
+			}
+			
+			System.out.println("APK entries: " + writer.getCopiedEntries() + " copied, " + writer.getReusedEntries() + " reused, "
+					+ writer.getCompressedEntries() + " compressed, " + writer.getStoredEntries() + " stored");
+			
+			metrics.stage("apk").input(apkResFile, classesDex, assetsFolder, glslFolder, srcFolder).output(apkFile)
+					.count("copied", writer.getCopiedEntries())
+					.count("reused", writer.getReusedEntries())
+					.count("compressed", writer.getCompressedEntries())
+					.count("stored", writer.getStoredEntries());
+			
+			return true;
+		} catch(Exception e) {
+			if (!(e instanceof InterruptedIOException)) {
+				System.out.println("Building the APK failed");
+				e.printStackTrace();
+			}
+			
+			if (writer != null) {
+				writer.abort();
+			}
+			
+			return false;
 		}
 	}
 	
@@ -1180,7 +1519,7 @@ public class Build {
 	 * 
 	 * @return The number of cores, or Runtime.availableProcessors() if failed to get result
 	 */
-	private int getNumCores() {
+	public static int getNumCores() {
 		//Private Class to display only CPU devices in the directory listing
 		class CpuFilter implements FileFilter {
 			@Override
@@ -1205,7 +1544,7 @@ public class Build {
 			return Runtime.getRuntime().availableProcessors();
 		}
 	}
-	
+
 //	public void antBuildProblems(String outPile, String errPile) throws SketchException {
 //		final String[] outLines = outPile.split(System.getProperty("line.separator"));
 //		final String[] errLines = errPile.split(System.getProperty("line.separator"));
@@ -1248,7 +1587,7 @@ public class Build {
 //		skex.hideStackTrace();
 //		throw skex;
 //	}
-	
+
 //	public SketchException placeException(String message, String dotJavaFilename, int dotJavaLine) {
 //		int codeIndex = 0;
 //		int codeLine = -1;
@@ -1291,36 +1630,35 @@ public class Build {
 //		return new SketchException(message, codeIndex, codeLine, -1, false); // changed for 0194 for compile errors, but...
 //	}
 	
-	public String preprocess(File srcFolder, String packageName, PdePreprocessor preprocessor, boolean sizeWarning, boolean localInjectLogBroadcaster) throws SketchException {
-		if(getSketchFolder().exists());
-		
-		classPath = binFolder.getAbsolutePath();
-		javaLibraryPath = "";
+	/**
+	 * Runs the preprocessor over the .pde tabs and writes the sketch's main class.
+	 */
+	private PreprocCache.Entry runPreprocessor(File java, String packageName, String[] codeFolderPackages, boolean localInjectLogBroadcaster) throws SketchException {
+		setPreprocessorPreferences();
 		
-		// figure out the contents of the code folder to see if there
-		// are files that need to be added to the imports
-		String[] codeFolderPackages = null;
-		if(getSketchCodeFolder().exists()) {
-			File codeFolder = getSketchCodeFolder();
-			javaLibraryPath = codeFolder.getAbsolutePath();
-			
-			// get a list of .jar files in the "code" folder
-			// (class files in subfolders should also be picked up)
-			String codeFolderClassPath = contentsToClassPath(codeFolder);
-			// append the jar files in the code folder to the class path
-			classPath += File.pathSeparator + codeFolderClassPath;
-			// get list of packages found in those jars
-			codeFolderPackages = packageListFromClassPath(codeFolderClassPath);
+		Preproc preprocessor;
+		try {
+			preprocessor = new Preproc(sketchName, packageName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new SketchException(e.toString());
 		}
 		
+		//Combine all of the tabs to check for size
+		StringBuilder combinedText = new StringBuilder();
+		for(BuildRequest.Tab tab : tabs)
+			combinedText.append(tab.getText());
+		preprocessor.initSketchSize(combinedText.toString());
+		
 		// 1. concatenate all .pde files to the 'main' pde
 		// store line number for starting point of each code bit
 		
 		StringBuilder bigCode = new StringBuilder();
 		int bigCount = 0;
-		for(FileMeta meta : tabs) {
+		for(int i = 0; i < tabs.size(); i ++) {
+			BuildRequest.Tab meta = tabs.get(i);
 			if(meta.getSuffix().equals(".pde")) {
-				meta.setPreprocOffset(bigCount);
+				preprocOffsets[i] = bigCount;
 				bigCode.append(meta.getText());
 				bigCode.append("\n");
 				bigCount += numLines(meta.getText());
@@ -1337,7 +1675,7 @@ public class Build {
 			try {
 				boolean active = active(bigCode);
 				
-				InputStream stream = editor.getAssets().open(active ? "LogBroadcasterActive.pde" : "LogBroadcasterStatic.pde");
+				InputStream stream = environment.openAsset(active ? "LogBroadcasterActive.pde" : "LogBroadcasterStatic.pde");
 				
 				int size = stream.available();
 				byte[] buffer = new byte[size];
@@ -1360,18 +1698,19 @@ public class Build {
 			}
 		}
 		
-		PreprocessorResult result;
+		PreprocCache.Entry entry = new PreprocCache.Entry();
 		try {
-			File outputFolder = (packageName == null) ? srcFolder : new File(srcFolder, packageName.replace('.', '/'));
-			outputFolder.mkdirs();
-			final File java = new File(outputFolder, sketchName + ".java");
-			final PrintWriter stream = new PrintWriter(new FileWriter(java));
+			StringWriter javaCode = new StringWriter();
+			PrintWriter stream = new PrintWriter(javaCode);
 			try {
-				result = preprocessor.write(stream, bigCode.toString(), codeFolderPackages);
+				entry.result = preprocessor.write(stream, bigCode.toString(), codeFolderPackages);
 			} finally {
 				stream.close();
 			}
-		} catch (FileNotFoundException fnfe) {
+			
+			entry.javaCode = javaCode.toString();
+			saveFile(entry.javaCode, java);
+		} catch (IOException fnfe) {
 			fnfe.printStackTrace();
 			String msg = "Build folder disappeared or could not be written";
 			throw new SketchException(msg);
@@ -1384,7 +1723,7 @@ public class Build {
 			// then search through for anyone else whose preprocName is null,
 			// since they've also been combined into the main pde.
 			int errorFile = findErrorFile(errorLine);
-			errorLine -= tabs[errorFile].getPreprocOffset();
+			errorLine -= preprocOffsets[errorFile];
 			
 			String msg = re.getMessage();
 			
@@ -1453,15 +1792,15 @@ public class Build {
 			if (matches != null) {
 				int errorLine = Integer.parseInt(matches[1]) - 1;
 				int errorColumn = Integer.parseInt(matches[2]);
-
+				
 				int errorFile = 0;
-				for (int i = 1; i < tabs.length; i++) {
-					FileMeta meta = tabs[i];
-					if(meta.getSuffix().equals(".pde") && (meta.getPreprocOffset() < errorLine))
+				for (int i = 1; i < tabs.size(); i++) {
+					BuildRequest.Tab meta = tabs.get(i);
+					if(meta.getSuffix().equals(".pde") && (preprocOffsets[i] < errorLine))
 						errorFile = i;
 				}
-				errorLine -= tabs[errorFile].getPreprocOffset();
-
+				errorLine -= preprocOffsets[errorFile];
+				
 				throw new SketchException(tsre.getMessage(), errorFile, errorLine, errorColumn);
 				
 			} else {
@@ -1476,6 +1815,73 @@ public class Build {
 			throw new SketchException(ex.toString());
 		}
 		
+		entry.preprocOffsets = preprocOffsets.clone();
+		entry.foundMain = preprocessor.hasMethod("main");
+		
+		return entry;
+	}
+	
+	/**
+	 * Preprocesses the .pde tabs into the sketch's main class and copies the .java tabs. The
+	 * output of the preprocessor is reused if nothing that goes into it has changed.
+	 *
+	 * @return the name of the sketch's main class
+	 */
+	public String preprocess(File srcFolder, String packageName, boolean sizeWarning, boolean localInjectLogBroadcaster) throws SketchException {
+		if(getSketchFolder().exists());
+		
+		classPath = binFolder.getAbsolutePath();
+		javaLibraryPath = "";
+		
+		// figure out the contents of the code folder to see if there
+		// are files that need to be added to the imports
+		String[] codeFolderPackages = null;
+		if(getSketchCodeFolder().exists()) {
+			File codeFolder = getSketchCodeFolder();
+			javaLibraryPath = codeFolder.getAbsolutePath();
+			
+			// get a list of .jar files in the "code" folder
+			// (class files in subfolders should also be picked up)
+			String codeFolderClassPath = contentsToClassPath(codeFolder);
+			// append the jar files in the code folder to the class path
+			classPath += File.pathSeparator + codeFolderClassPath;
+			// get list of packages found in those jars
+			codeFolderPackages = packageListFromClassPath(codeFolderClassPath);
+			PackageIndex.getInstance().save();
+		}
+		
+		File outputFolder = (packageName == null) ? srcFolder : new File(srcFolder, packageName.replace('.', '/'));
+		outputFolder.mkdirs();
+		File java = new File(outputFolder, sketchName + ".java");
+		
+		String preprocKey = preprocKey(packageName, codeFolderPackages, localInjectLogBroadcaster);
+		PreprocCache preprocCache = new PreprocCache(binFolder);
+		PreprocCache.Entry preprocEntry = preprocCache.load(preprocKey);
+		
+		preprocReused = preprocEntry != null;
+		
+		if (preprocReused) {
+			System.out.println("Sketch code unchanged, reusing preprocessor output");
+			
+			try {
+				saveFile(preprocEntry.javaCode, java);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new SketchException("Build folder disappeared or could not be written");
+			}
+			
+			System.arraycopy(preprocEntry.preprocOffsets, 0, preprocOffsets, 0, preprocOffsets.length);
+		} else {
+			preprocEntry = runPreprocessor(java, packageName, codeFolderPackages, localInjectLogBroadcaster);
+			
+			if (preprocEntry.result != null) {
+				preprocCache.store(preprocKey, preprocEntry);
+			}
+		}
+		
+		PreprocessorResult result = preprocEntry.result;
+		foundMain = preprocEntry.foundMain;
+		
 		// grab the imports from the code just preproc'd
 		
 		importedLibraries = new ArrayList<Library>();
@@ -1495,7 +1901,11 @@ public class Build {
 			if(library != null) {
 				if(!importedLibraries.contains(library)) {
 					importedLibraries.add(library);
-					classPath += library.getClassPath((APDE) editor.getApplicationContext());
+					for (File export : environment.getLibraryExports(library)) {
+						if (!export.getName().endsWith("-dex.jar")) {
+							classPath += File.pathSeparatorChar + export.getAbsolutePath();
+						}
+					}
 //					javaLibraryPath += File.pathSeparator + library.getNativePath();
 				}
 			} else {
@@ -1535,11 +1945,12 @@ public class Build {
 		// it's appbundler?) adds Java/Classes to the path, which kills us.
 		//String[] classPieces = PApplet.split(classPath, File.pathSeparator);
 		// Nah, nevermind... we'll just create the @!#$! folder until they fix it.
-
-
+		
+		
 		// 3. then loop over the code[] and save each .java file
-
-		for(FileMeta meta : tabs) {
+		
+		for(int i = 0; i < tabs.size(); i ++) {
+			BuildRequest.Tab meta = tabs.get(i);
 			if(meta.getSuffix().equals(".java")) {
 				// In most cases, no pre-processing services necessary for Java files.
 				// Just write the the contents of 'program' to a .java file
@@ -1561,8 +1972,7 @@ public class Build {
 					// (i.e. on Android) we'll have to add one
 					
 					if(packageMatch == null && packageName == null) {
-						meta.writeData(editor.getApplicationContext(), srcFolder.getAbsolutePath() + File.separator + filename); //TODO does this actually do what we want?
-						//sc.copyTo(new File(srcFolder, filename));
+						saveFile(javaCode, new File(srcFolder, filename));
 					} else {
 						if(packageMatch == null) {
 							// use the default package name, since mixing with package-less code will break
@@ -1574,22 +1984,68 @@ public class Build {
 						packageFolder.mkdirs();
 						saveFile(javaCode, new File(packageFolder, filename));
 					}
-
+					
 				} catch (IOException e) {
 					e.printStackTrace();
 					String msg = "Problem moving " + filename + " to the build folder";
 					throw new SketchException(msg);
 				}
-
+				
 			} else if (meta.getSuffix().equals("pde")) {
 				// The compiler and runner will need this to have a proper offset
-				meta.addPreprocOffset(result.headerOffset);
+				preprocOffsets[i] += result.headerOffset;
 			}
 		}
-		foundMain = preprocessor.hasMethod("main");
 		return result.className;
 	}
 	
+	/**
+	 * Enables all of the fancy preprocessor stuff. The preferences are static, so this is done
+	 * before every run of the preprocessor.
+	 */
+	private static void setPreprocessorPreferences() {
+		Preferences.setInteger("editor.tabs.size", PREPROC_TAB_SIZE);
+		
+		for (String flag : PREPROC_FLAGS) {
+			Preferences.setBoolean(flag, true);
+		}
+	}
+	
+	/**
+	 * @return the fingerprint of everything that goes into the preprocessor
+	 */
+	private String preprocKey(String packageName, String[] codeFolderPackages, boolean localInjectLogBroadcaster) {
+		BuildCache.Fingerprint key = new BuildCache.Fingerprint()
+				//The preprocessor and the log broadcaster come with APDE
+				.add(Integer.toString(environment.getVersionCode()))
+				.add(sketchName).add(packageName)
+				.add(Integer.toString(PREPROC_TAB_SIZE))
+				.add(localInjectLogBroadcaster);
+		
+		for (String flag : PREPROC_FLAGS) {
+			key.add(flag);
+		}
+		
+		if (codeFolderPackages == null) {
+			key.add("no code folder");
+		} else {
+			for (String pkg : codeFolderPackages) {
+				key.add(pkg);
+			}
+		}
+		
+		//The .java tabs only matter for the line offsets
+		for (BuildRequest.Tab tab : tabs) {
+			key.add(tab.getSuffix());
+			
+			if (tab.getSuffix().equals(".pde")) {
+				key.add(tab.getText());
+			}
+		}
+		
+		return key.toString();
+	}
+	
 	//These RegExes are borrowed from Processing's preprocessor
 	
 	private static final Pattern PUBLIC_CLASS =
@@ -1631,24 +2087,24 @@ public class Build {
 		if (pkg.startsWith("org.json.")) return true;
 		if (pkg.startsWith("org.w3c.dom.")) return true;
 		if (pkg.startsWith("org.xml.sax.")) return true;
-
+		
 		if (pkg.startsWith("processing.core.")) return true;
 		if (pkg.startsWith("processing.data.")) return true;
 		if (pkg.startsWith("processing.event.")) return true;
 		if (pkg.startsWith("processing.opengl.")) return true;
-
+		
 		return false;
 	}
 	
 	private Library getLibrary(String pkgName) throws SketchException {
-		ArrayList<Library> libraries = ((APDE) editor.getApplicationContext()).getImportToLibraryTable().get(pkgName);
+		List<Library> libraries = environment.getLibraries(pkgName);
 		if (libraries == null) {
 			return null;
 		} else if (libraries.size() > 1) { //This is if there are multiple libraries with the same package name... but when does this ever happen?
 			String primary = "More than one library is competing for this sketch.\n";
 			String secondary = "The import " + pkgName + " points to multiple libraries:\n";
 			for (Library library : libraries) {
-				String location = library.getLibraryFolder((APDE) editor.getApplicationContext()).getAbsolutePath();
+				String location = environment.getLibraryFolder(library).getAbsolutePath();
 //				if (location.startsWith(getLibrariesFolder().getAbsolutePath())) { //Android mode has no core libraries - but we'll leave this just in case
 //					location = "part of Processing";
 //				}
@@ -1663,16 +2119,16 @@ public class Build {
 	}
 	
 	protected int findErrorFile(int errorLine) {
-		for (int i = tabs.length - 1; i > 0; i --) {
-			FileMeta meta = tabs[i];
-			if (meta.getSuffix().equals(".pde") && (meta.getPreprocOffset() <= errorLine)) {
+		for (int i = tabs.size() - 1; i > 0; i --) {
+			BuildRequest.Tab meta = tabs.get(i);
+			if (meta.getSuffix().equals(".pde") && (preprocOffsets[i] <= errorLine)) {
 				// keep looping until the errorLine is past the offset
 				return i;
 			}
 		}
 		return 0; // i give up
 	}
-
+	
 	private void writeAntProps(final File file, String packageName) {
 		try {
 			PrintWriter writer = new PrintWriter(file);
@@ -1690,7 +2146,7 @@ public class Build {
 			writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
 			
 			writer.println(" <project name=\"" + projectName + "\" default=\"help\">");
-	
+			
 			writer.println(" <property file=\"local.properties\" />");
 			writer.println(" <property file=\"ant.properties\" />");
 			
@@ -1702,16 +2158,16 @@ public class Build {
 			writer.println(" <condition property=\"sdk.dir\" value=\"${env.ANDROID_HOME}\">");
 			writer.println(" <isset property=\"env.ANDROID_HOME\" />");
 			writer.println(" </condition>");
-	
+			
 			writer.println(" <loadproperties srcFile=\"project.properties\" />");
-	
+			
 			writer.println(" <fail message=\"sdk.dir is missing. Make sure to generate local.properties using 'android update project'\" unless=\"sdk.dir\" />");
-	
+			
 			writer.println(" <import file=\"custom_rules.xml\" optional=\"true\" />");
-	
+			
 			writer.println(" <!-- version-tag: 1 -->"); // should this be 'custom' instead of 1?
 			writer.println(" <import file=\"${sdk.dir}/tools/ant/build.xml\" />");
-	
+			
 			writer.println("</project>");
 			writer.flush();
 			writer.close();
@@ -1734,7 +2190,7 @@ public class Build {
 			e.printStackTrace();
 		}
 	}
-	
+
 //	private void writeLocalProps(final File file) {
 //		try {
 //			final PrintWriter writer = new PrintWriter(file);
@@ -1767,32 +2223,30 @@ public class Build {
 		
 		if (!localIcon36.exists() && !localIcon48.exists() && !localIcon72.exists() && !localIcon96.exists()) {
 			try {
-				AssetManager am = editor.getAssets();
-				
 				// if no icons are in the sketch folder, then copy all the defaults
 				if(buildIcon36.getParentFile().mkdirs()) {
-					InputStream inputStream = am.open("icon-36.png");
+					InputStream inputStream = environment.openAsset("icon-36.png");
 					createFileFromInputStream(inputStream, buildIcon36);
 					inputStream.close();
 				} else {
 					System.err.println("Could not create \"drawable-ldpi\" folder.");
 				}
 				if(buildIcon48.getParentFile().mkdirs()) {
-					InputStream inputStream = am.open("icon-48.png");
+					InputStream inputStream = environment.openAsset("icon-48.png");
 					createFileFromInputStream(inputStream, buildIcon48);
 					inputStream.close();
 				} else {
 					System.err.println("Could not create \"drawable\" folder.");
 				}
 				if(buildIcon72.getParentFile().mkdirs()) {
-					InputStream inputStream = am.open("icon-72.png");
+					InputStream inputStream = environment.openAsset("icon-72.png");
 					createFileFromInputStream(inputStream, buildIcon72);
 					inputStream.close();
 				} else {
 					System.err.println("Could not create \"drawable-hdpi\" folder.");
 				}
 				if(buildIcon96.getParentFile().mkdirs()) { //TODO make a properly scaled "icon-96.png" graphic - right now, it's scaled up from the 72p version
-					InputStream inputStream = am.open("icon-96.png");
+					InputStream inputStream = environment.openAsset("icon-96.png");
 					createFileFromInputStream(inputStream, buildIcon96);
 					inputStream.close();
 				} else {
@@ -1851,7 +2305,7 @@ public class Build {
 	private void copyLibraries(final File libsFolder, final File assetsFolder) throws IOException { //TODO support native library stuffs
 		for (Library library : importedLibraries) {
 			//Add each item from the library folder / export list to the output
-			for (File exportFile : library.getAndroidExports((APDE) editor.getApplicationContext())) {
+			for (File exportFile : environment.getLibraryExports(library)) {
 				String exportName = exportFile.getName();
 				if (!exportFile.exists()) {
 					System.err.println(exportFile.getName() +
@@ -1883,10 +2337,10 @@ public class Build {
 		}
 	}
 	
-	private void copyLibraries(final File libsFolder, final File dexedLibsFolder, final File assetsFolder) throws IOException { //TODO support native library stuffs
+	private void copyLibraries(final File libsFolder, final File dexedLibsFolder, final FolderSync assetSync) throws IOException { //TODO support native library stuffs
 		for (Library library : importedLibraries) {
 			//Add each item from the library folder / export list to the output
-			for (File exportFile : library.getAndroidExports((APDE) editor.getApplicationContext())) {
+			for (File exportFile : environment.getLibraryExports(library)) {
 				String exportName = exportFile.getName();
 				if (!exportFile.exists()) {
 					System.err.println(exportFile.getName() +
@@ -1900,7 +2354,7 @@ public class Build {
 						copyDir(exportFile, new File(libsFolder, exportName));
 					} else {
 						//Copy any other directory to the assets folder
-						copyDir(exportFile, new File(assetsFolder, exportName));
+						assetSync.addFolder(exportName, exportFile);
 					}
 				} else if (exportName.toLowerCase(Locale.US).endsWith(".zip")) {
 					// As of r4 of the Android SDK, it looks like .zip files
@@ -1909,13 +2363,15 @@ public class Build {
 					System.err.println("Please rename " + exportFile.getName() + " to be a .jar file.");
 					String jarName = exportName.substring(0, exportName.length() - 4) + ".jar";
 					copyFile(exportFile, new File(libsFolder, jarName));
+					jarsToDex.put(jarName, exportFile);
 				} else if(exportName.toLowerCase(Locale.US).endsWith("-dex.jar")) {
 					//Handle the dexed JARs
 					copyFile(exportFile, new File(dexedLibsFolder, exportName));
 				} else if (exportName.toLowerCase(Locale.US).endsWith(".jar")) {
 					copyFile(exportFile, new File(libsFolder, exportName));
+					jarsToDex.put(exportName, exportFile);
 				} else {
-					copyFile(exportFile, new File(assetsFolder, exportName));
+					assetSync.addFile(exportName, exportFile);
 				}
 			}
 		}
@@ -1932,12 +2388,27 @@ public class Build {
 					if(lcname.endsWith(".jar") || lcname.endsWith(".zip")) {
 						String jarName = name.substring(0, name.length() - 4) + ".jar";
 						copyFile(item, new File(libsFolder, jarName));
+						
+						//Dex it automatically unless it has been dexed by hand
+						if (!hasCodeDexJar(item)) {
+							jarsToDex.put(jarName, item);
+						}
 					}
 				}
 			}
 		}
 	}
 	
+	/**
+	 * @param codeJar a JAR in the code folder
+	 * @return whether or not the code-dex folder has a dexed version of the JAR that is newer
+	 * than the JAR
+	 */
+	private boolean hasCodeDexJar(File codeJar) {
+		File codeDexJar = new File(getSketchCodeDexFolder(), codeJar.getName().substring(0, codeJar.getName().length() - 4) + "-dex.jar");
+		return codeDexJar.exists() && codeDexJar.lastModified() >= codeJar.lastModified();
+	}
+	
 	private void copyCodeDexFolder(final File libsDexFolder) throws IOException {
 		// Copy files from the 'code-dex' directory into the 'libs' folder
 		final File codeDexFolder = getSketchCodeDexFolder();
@@ -1946,6 +2417,12 @@ public class Build {
 				if(!item.isDirectory()) {
 					final String name = item.getName();
 					final String lcname = name.toLowerCase(Locale.US);
+					
+					//Dexed JARs that are older than their JAR in the code folder are replaced by the automatic ones
+					if(lcname.endsWith("-dex.jar") && jarsToDex.containsKey(name.substring(0, name.length() - 8) + ".jar")) {
+						continue;
+					}
+					
 					if(lcname.endsWith(".jar") || lcname.endsWith(".zip")) {
 						String jarName = name.substring(0, name.length() - 4) + ".jar";
 						copyFile(item, new File(libsDexFolder, jarName));
@@ -1955,6 +2432,27 @@ public class Build {
 		}
 	}
 	
+	/**
+	 * @param folder
+	 * @return the JARs in the folder, sorted by name so that the class path order is stable
+	 */
+	private static ArrayList<File> listJars(File folder) {
+		ArrayList<File> jars = new ArrayList<File>();
+		String[] names = folder.list();
+		
+		if (names != null) {
+			Arrays.sort(names);
+			
+			for (String name : names) {
+				if (name.endsWith(".jar")) {
+					jars.add(new File(folder, name));
+				}
+			}
+		}
+		
+		return jars;
+	}
+	
 	//http://stackoverflow.com/questions/11820142/how-to-pass-a-file-path-which-is-in-assets-folder-to-filestring-path
 	private File createFileFromInputStream(InputStream inputStream, File destFile) {
 		try {
@@ -2034,7 +2532,7 @@ public class Build {
 			targetFile.write(buffer, 0, bytesRead);
 		from.close();
 		from = null;
-
+		
 		targetFile.flush();
 		targetFile.close();
 		targetFile = null;
@@ -2049,15 +2547,32 @@ public class Build {
 			to.write(buffer, 0, bytesRead);
 		from.close();
 		from = null;
-
+		
 		to.flush();
 		to.close();
 		to = null;
-
+		
 		targetFile.setLastModified(sourceFile.lastModified());
 		targetFile.setExecutable(sourceFile.canExecute());
 	}
 	
+	static public byte[] readFully(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream stream = new FileInputStream(file);
+		
+		try {
+			int offset = 0;
+			int read;
+			while (offset < bytes.length && (read = stream.read(bytes, offset, bytes.length - offset)) != -1) {
+				offset += read;
+			}
+		} finally {
+			stream.close();
+		}
+		
+		return bytes;
+	}
+
 //	private static void copyFile(InputStream in, OutputStream out) throws IOException {
 //		byte[] buffer = new byte[1024];
 //		int read;
@@ -2100,13 +2615,13 @@ public class Build {
 			if(!path.endsWith(File.separator)) {
 				path += File.separator;
 			}
-
+			
 			String list[] = folder.list();
 			for(int i = 0; i < list.length; i++) {
 				// Skip . and ._ files. Prior to 0125p3, .jar files that had
 				// OS X AppleDouble files associated would cause trouble.
 				if(list[i].startsWith(".")) continue;
-
+				
 				if(list[i].toLowerCase(Locale.US).endsWith(".jar") || list[i].toLowerCase(Locale.US).endsWith(".zip")) {
 					abuffer.append(sep);
 					abuffer.append(path);
@@ -2143,59 +2658,29 @@ public class Build {
 			throw new IOException("Could not replace " + file.getAbsolutePath());
 	}
 	
+	/**
+	 * The packages in JARs come from the PackageIndex, so that unchanged JARs aren't opened again.
+	 */
 	static public String[] packageListFromClassPath(String path) {
-		Hashtable<String, Object> table = new Hashtable<String, Object>();
+		LinkedHashSet<String> packages = new LinkedHashSet<String>();
 		String pieces[] = PApplet.split(path, File.pathSeparatorChar);
 		
 		for(int i = 0; i < pieces.length; i++) {
 			if(pieces[i].length() == 0) continue;
 			
 			if(pieces[i].toLowerCase(Locale.US).endsWith(".jar") || pieces[i].toLowerCase(Locale.US).endsWith(".zip"))
-				packageListFromZip(pieces[i], table);
+				packages.addAll(Arrays.asList(PackageIndex.getInstance().getPackages(new File(pieces[i]))));
 			else {  // it's another type of file or directory
 				File dir = new File(pieces[i]);
 				if(dir.exists() && dir.isDirectory())
-					packageListFromFolder(dir, null, table);
+					packageListFromFolder(dir, null, packages);
 			}
 		}
-		int tableCount = table.size();
-		String output[] = new String[tableCount];
-		int index = 0;
-		Enumeration<String> e = table.keys();
-		while(e.hasMoreElements())
-			output[index++] = (e.nextElement()).replace('/', '.');
 		
-		return output;
-	}
-	
-	static private void packageListFromZip(String filename, Hashtable<String, Object> table) {
-		try {
-			ZipFile file = new ZipFile(filename);
-			Enumeration<? extends ZipEntry> entries = file.entries();
-			while(entries.hasMoreElements()) {
-				ZipEntry entry = (ZipEntry) entries.nextElement();
-
-				if(!entry.isDirectory()) {
-					String name = entry.getName();
-
-					if(name.endsWith(".class")) {
-						int slash = name.lastIndexOf('/');
-						if(slash == -1) continue;
-
-						String pname = name.substring(0, slash);
-						if(table.get(pname) == null) {
-							table.put(pname, new Object());
-						}
-					}
-				}
-			}
-			file.close();
-		} catch (IOException e) {
-			System.err.println("Ignoring " + filename + " (" + e.getMessage() + ")");
-		}
+		return packages.toArray(new String[packages.size()]);
 	}
 	
-	static private void packageListFromFolder(File dir, String sofar, Hashtable<String, Object> table) {
+	static private void packageListFromFolder(File dir, String sofar, Set<String> packages) {
 		boolean foundClass = false;
 		String files[] = dir.list();
 		
@@ -2205,10 +2690,10 @@ public class Build {
 			File sub = new File(dir, files[i]);
 			if(sub.isDirectory()) {
 				String nowfar = (sofar == null) ? files[i] : (sofar + "." + files[i]);
-				packageListFromFolder(sub, nowfar, table);
-			} else if(!foundClass) {  // if no classes found in this folder yet
+				packageListFromFolder(sub, nowfar, packages);
+			} else if(!foundClass && sofar != null) {  // if no classes found in this folder yet
 				if(files[i].endsWith(".class")) {
-					table.put(sofar, new Object());
+					packages.add(sofar);
 					foundClass = true;
 				}
 			}
@@ -2216,19 +2701,26 @@ public class Build {
 	}
 	
 	public File getBuildFolder() {
-		//Let the user pick where to build
-		if(PreferenceManager.getDefaultSharedPreferences(editor).getBoolean("pref_build_internal_storage", true))
-			return editor.getDir("build", 0);
-		else
-			return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getParentFile(), "build");
+		return environment.getBuildFolder(request);
 	}
 	
 	public File getTempFolder() {
-		return new File(editor.getFilesDir(), "tmp");
+		return environment.getTempFolder();
+	}
+	
+	public BuildRequest getRequest() {
+		return request;
+	}
+	
+	/**
+	 * @return the metrics of the last build, or null if the sketch hasn't been built yet
+	 */
+	public BuildMetrics getMetrics() {
+		return metrics;
 	}
 	
 	public File getSketchFolder() {
-		return ((APDE) editor.getApplication()).getSketchLocation();
+		return request.getSketchFolder();
 	}
 	
 	public File getSketchDataFolder() {
@@ -2250,7 +2742,7 @@ public class Build {
 	//StackOverflow: http://codereview.stackexchange.com/questions/8835/java-most-compact-way-to-print-inputstream-to-system-out
 	public static long copyStream(InputStream is, OutputStream os) {
 		final int BUFFER_SIZE = 8192;
-
+		
 		byte[] buf = new byte[BUFFER_SIZE];
 		long total = 0;
 		int len = 0;
@@ -0,0 +1,261 @@
+package com.calsignlabs.apde.build;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Remembers a fingerprint of the inputs of each stage of the build sequence so that stages
+ * whose inputs haven't changed since the last successful build can be skipped.
+ *
+ * The fingerprints are stored in a properties file inside of the build folder, so wiping the
+ * build folder also wipes the cache. Stages that run at the same time share the same cache, so
+ * the methods that touch the file are synchronized.
+ */
+public class BuildCache {
+	public static final String CACHE_FILENAME = "build-cache.properties";
+	
+	private File cacheFile;
+	private Properties fingerprints;
+	
+	public BuildCache(File buildFolder) {
+		cacheFile = new File(buildFolder, CACHE_FILENAME);
+		fingerprints = new Properties();
+		
+		load();
+	}
+	
+	private void load() {
+		if (!cacheFile.exists()) {
+			return;
+		}
+		
+		InputStream stream = null;
+		
+		try {
+			stream = new BufferedInputStream(new FileInputStream(cacheFile));
+			fingerprints.load(stream);
+		} catch (IOException e) {
+			//If the cache is corrupted, just start over
+			System.err.println("Failed to read build cache, rebuilding everything");
+			fingerprints.clear();
+		} finally {
+			closeQuietly(stream);
+		}
+	}
+	
+	/**
+	 * Writes the fingerprints to the disk. This is called every time a stage is recorded or
+	 * invalidated so that an interrupted build never leaves a stale entry behind.
+	 */
+	public synchronized void save() {
+		OutputStream stream = null;
+		
+		try {
+			cacheFile.getParentFile().mkdirs();
+			stream = new FileOutputStream(cacheFile);
+			fingerprints.store(stream, "APDE build cache");
+		} catch (IOException e) {
+			System.err.println("Failed to write build cache");
+			e.printStackTrace();
+		} finally {
+			closeQuietly(stream);
+		}
+	}
+	
+	/**
+	 * @param stage the name of the build stage
+	 * @param fingerprint the fingerprint of the stage's current inputs
+	 * @param outputs the files produced by the stage, all of which must still exist
+	 * @return whether or not the stage can be skipped
+	 */
+	public synchronized boolean isFresh(String stage, String fingerprint, File... outputs) {
+		if (!fingerprint.equals(fingerprints.getProperty(stage))) {
+			return false;
+		}
+		
+		for (File output : outputs) {
+			if (!output.exists()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Call after a stage has completed successfully.
+	 *
+	 * @param stage the name of the build stage
+	 * @param fingerprint the fingerprint of the inputs that the stage was run with
+	 */
+	public synchronized void record(String stage, String fingerprint) {
+		fingerprints.setProperty(stage, fingerprint);
+		save();
+	}
+	
+	/**
+	 * Call before running a stage so that a failed or halted stage is re-run next time.
+	 *
+	 * @param stage the name of the build stage
+	 */
+	public synchronized void invalidate(String stage) {
+		if (fingerprints.remove(stage) != null) {
+			save();
+		}
+	}
+	
+	public synchronized void clear() {
+		fingerprints.clear();
+		save();
+	}
+	
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				//Nothing we can do about it
+			}
+		}
+	}
+	
+	/**
+	 * Accumulates a hash over the inputs of a build stage.
+	 */
+	public static class Fingerprint {
+		private MessageDigest digest;
+		private byte[] buffer;
+		private String hex;
+		
+		public Fingerprint() {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				//Every Java platform is required to support SHA-1
+				throw new RuntimeException(e);
+			}
+		}
+		
+		public Fingerprint add(String value) {
+			digest.update((value == null ? "\0null" : value).getBytes());
+			//Separator so that "ab" + "c" doesn't collide with "a" + "bc"
+			digest.update((byte) 0);
+			
+			return this;
+		}
+		
+		public Fingerprint add(boolean value) {
+			return add(Boolean.toString(value));
+		}
+		
+		/**
+		 * Hashes the full contents of a file, or of every file in a folder. Use this for small
+		 * inputs that are re-written on every build (their timestamps aren't meaningful).
+		 */
+		public Fingerprint addContents(File file) throws IOException {
+			return addContents(file, "");
+		}
+		
+		private Fingerprint addContents(File file, String relativePath) throws IOException {
+			add(relativePath);
+			
+			if (file.isDirectory()) {
+				String[] children = file.list();
+				Arrays.sort(children);
+				
+				for (String child : children) {
+					addContents(new File(file, child), relativePath + "/" + child);
+				}
+			} else if (file.exists()) {
+				if (buffer == null) {
+					buffer = new byte[16 * 1024];
+				}
+				
+				InputStream stream = new FileInputStream(file);
+				
+				try {
+					int read;
+					while ((read = stream.read(buffer)) != -1) {
+						digest.update(buffer, 0, read);
+					}
+				} finally {
+					stream.close();
+				}
+			} else {
+				add("missing");
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Hashes the name, size, and modification time of a file, or of every file in a folder.
+		 * Use this for large inputs that are copied with their timestamps intact.
+		 */
+		public Fingerprint addStamps(File file) {
+			return addStamps(file, "");
+		}
+		
+		public Fingerprint addStamps(Iterable<File> files) {
+			for (File file : files) {
+				add(file.getAbsolutePath());
+				addStamps(file);
+			}
+			
+			return this;
+		}
+		
+		private Fingerprint addStamps(File file, String relativePath) {
+			add(relativePath);
+			
+			if (file.isDirectory()) {
+				String[] children = file.list();
+				Arrays.sort(children);
+				
+				for (String child : children) {
+					addStamps(new File(file, child), relativePath + "/" + child);
+				}
+			} else if (file.exists()) {
+				add(Long.toString(file.length()));
+				add(Long.toString(file.lastModified()));
+			} else {
+				add("missing");
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Finishes the hash. Nothing can be added to the fingerprint after this is called.
+		 */
+		@Override
+		public String toString() {
+			if (hex == null) {
+				hex = toHex(digest.digest());
+			}
+			
+			return hex;
+		}
+	}
+	
+	public static String toHex(byte[] hash) {
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		return hex.toString();
+	}
+}
@@ -0,0 +1,95 @@
+package com.calsignlabs.apde.build;
+
+import com.calsignlabs.apde.contrib.Library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Everything that a build needs from the outside world: APDE's assets and resources, where to
+ * put its files, the installed libraries, and somewhere to report its progress. Build only talks
+ * to the app through this interface, so it doesn't need the editor to be in the foreground.
+ *
+ * The methods may be called from any of the build's threads.
+ */
+public interface BuildEnvironment {
+	/**
+	 * Shows a status message, e.g. the current stage of the build.
+	 */
+	void message(String message);
+	
+	/**
+	 * Shows an error message.
+	 */
+	void error(String message);
+	
+	/**
+	 * Points the user to the line that caused an error.
+	 *
+	 * @param tab the index of the tab in the request
+	 * @param line the line in the tab
+	 */
+	void highlightLine(int tab, int line);
+	
+	String getString(int resId);
+	
+	int getInteger(int resId);
+	
+	/**
+	 * Opens one of the assets packaged with APDE (android.jar, AAPT, the Processing libraries,
+	 * etc.).
+	 */
+	InputStream openAsset(String path) throws IOException;
+	
+	/**
+	 * @return the version code of APDE, the extracted assets are tied to it
+	 */
+	int getVersionCode();
+	
+	/**
+	 * The build folder is shared by every sketch: it holds the sketch's src, res, libs and bin
+	 * as well as the caches, so only one build may use it at a time (see BuildService).
+	 *
+	 * @return the folder to build the sketch in
+	 */
+	File getBuildFolder(BuildRequest request);
+	
+	/**
+	 * @return the folder that holds everything that is shared between builds (the extracted
+	 * assets, the merged library dex files, etc.)
+	 */
+	File getTempFolder();
+	
+	/**
+	 * @return the app's private files folder, for the build history
+	 */
+	File getFilesDir();
+	
+	/**
+	 * @return the counters for the CPU time and the allocations of each stage of the build
+	 */
+	BuildMetrics.ThreadCounters getThreadCounters();
+	
+	/**
+	 * @return the installed libraries that provide the package, or null if there aren't any
+	 */
+	List<Library> getLibraries(String packageName);
+	
+	/**
+	 * @return the files that the library contributes to sketches (its JARs, the dexed versions
+	 * come from the DexCache)
+	 */
+	File[] getLibraryExports(Library library);
+	
+	File getLibraryFolder(Library library);
+	
+	/**
+	 * Offers the finished debug APK to the user for installation.
+	 *
+	 * @param apkFile the signed APK
+	 * @param request the request that the APK was built for
+	 */
+	void install(File apkFile, BuildRequest request);
+}
@@ -0,0 +1,292 @@
+package com.calsignlabs.apde.build;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the stages of the build sequence as a dependency graph. Each stage is started as soon as
+ * all of the stages that it depends on have finished, so stages that don't depend on each other
+ * (e.g. packaging the resources and compiling the sketch) run at the same time.
+ *
+ * If a stage fails, the stages that haven't started yet are skipped and the stages that are
+ * still running are interrupted. run() doesn't return until all of them have stopped, so that
+ * the next build never overlaps with this one.
+ *
+ * The same happens when the user halts the build. The stages that are running are interrupted
+ * and are expected to notice within a fraction of a second, see checkInterrupted().
+ */
+public class BuildGraph {
+	/** How often to check whether the user has halted the build, in milliseconds */
+	private static final long HALT_POLL_INTERVAL = 50;
+	
+	public enum Result {
+		SUCCESS, FAILED, HALTED
+	}
+	
+	/**
+	 * A single step in the build sequence. Stages that fail should print their own error
+	 * message and return false, or throw an exception.
+	 */
+	public static abstract class Stage {
+		private String name;
+		
+		private List<Stage> dependents = new ArrayList<Stage>();
+		private int dependencyCount;
+		
+		private AtomicBoolean started = new AtomicBoolean(false);
+		private boolean succeeded;
+		private Throwable failure;
+		
+		public Stage(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * @return whether or not the stage succeeded
+		 * @throws Throwable SketchException doesn't extend Exception
+		 */
+		public abstract boolean run() throws Throwable;
+	}
+	
+	private int threads;
+	private AtomicBoolean running;
+	
+	private List<Stage> stages;
+	
+	private Stage failedStage;
+	
+	private BuildMetrics metrics;
+	
+	/**
+	 * @param threads the maximum number of stages to run at the same time
+	 * @param running the flag that is cleared when the user halts the build
+	 */
+	public BuildGraph(int threads, AtomicBoolean running) {
+		this.threads = Math.max(1, threads);
+		this.running = running;
+		
+		stages = new ArrayList<Stage>();
+	}
+	
+	/**
+	 * Adds a stage to the graph. The dependencies must have been added already, which also
+	 * means that there can't be any cycles.
+	 *
+	 * @param stage the stage to add
+	 * @param dependencies the stages that have to finish successfully before this one can start
+	 * @return the stage
+	 */
+	public Stage add(Stage stage, Stage... dependencies) {
+		for (Stage dependency : dependencies) {
+			if (!stages.contains(dependency)) {
+				throw new IllegalArgumentException("Stage " + stage.getName() + " depends on "
+						+ dependency.getName() + ", which hasn't been added");
+			}
+			
+			dependency.dependents.add(stage);
+			stage.dependencyCount ++;
+		}
+		
+		stages.add(stage);
+		
+		return stage;
+	}
+	
+	/**
+	 * @param metrics records the wall and CPU time of each stage, may be null
+	 */
+	public void setMetrics(BuildMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return the stage that caused the build to fail, or null if it didn't fail
+	 */
+	public Stage getFailedStage() {
+		return failedStage;
+	}
+	
+	/**
+	 * @return the exception thrown by the stage that failed, or null if it just returned false
+	 */
+	public Throwable getFailure() {
+		return failedStage != null ? failedStage.failure : null;
+	}
+	
+	/**
+	 * Runs all of the stages, blocking until they have finished.
+	 *
+	 * @return whether the build succeeded, failed, or was halted by the user
+	 */
+	public Result run() {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "Build stage " + count.incrementAndGet());
+			}
+		});
+		
+		//The stages report back here when they finish
+		LinkedBlockingQueue<Stage> finished = new LinkedBlockingQueue<Stage>();
+		Map<Stage, Future<?>> inFlight = new HashMap<Stage, Future<?>>();
+		
+		Map<Stage, Integer> remainingDependencies = new HashMap<Stage, Integer>();
+		for (Stage stage : stages) {
+			remainingDependencies.put(stage, stage.dependencyCount);
+		}
+		
+		Result result = Result.SUCCESS;
+		
+		try {
+			for (Stage stage : stages) {
+				if (stage.dependencyCount == 0) {
+					inFlight.put(stage, executor.submit(new StageRunner(stage, finished, metrics)));
+				}
+			}
+			
+			while (!inFlight.isEmpty()) {
+				Stage stage = finished.poll(HALT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				
+				if (stage == null) {
+					//Don't wait for the running stages to finish before stopping them
+					if (result == Result.SUCCESS && !running.get()) {
+						result = Result.HALTED;
+						cancel(inFlight);
+					}
+					
+					continue;
+				}
+				
+				inFlight.remove(stage);
+				
+				if (result != Result.SUCCESS) {
+					//We're just waiting for the cancelled stages to stop
+					continue;
+				}
+				
+				if (!stage.succeeded && !running.get()) {
+					//The stage noticed that the build was halted before we did
+					result = Result.HALTED;
+					
+					cancel(inFlight);
+					continue;
+				}
+				
+				if (!stage.succeeded) {
+					failedStage = stage;
+					result = Result.FAILED;
+					
+					cancel(inFlight);
+					continue;
+				}
+				
+				if (!running.get()) { //CHECK
+					result = Result.HALTED;
+					
+					cancel(inFlight);
+					continue;
+				}
+				
+				for (Stage dependent : stage.dependents) {
+					int remaining = remainingDependencies.get(dependent) - 1;
+					remainingDependencies.put(dependent, remaining);
+					
+					if (remaining == 0) {
+						inFlight.put(dependent, executor.submit(new StageRunner(dependent, finished, metrics)));
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			//Somebody wants the build thread to stop
+			cancel(inFlight);
+			result = Result.HALTED;
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Skips the stages that haven't started and interrupts the ones that have. Stages that
+	 * were skipped are removed from the in-flight map because they will never report back.
+	 */
+	private static void cancel(Map<Stage, Future<?>> inFlight) {
+		for (Stage stage : new ArrayList<Stage>(inFlight.keySet())) {
+			if (stage.started.compareAndSet(false, true)) {
+				inFlight.remove(stage).cancel(false);
+			} else {
+				inFlight.get(stage).cancel(true);
+			}
+		}
+	}
+	
+	/**
+	 * Stages that take a while should call this every so often (at least every 100 ms or so)
+	 * so that halting the build doesn't have to wait for them to finish.
+	 *
+	 * @throws InterruptedIOException if the stage has been interrupted because the build was
+	 * halted or another stage failed
+	 */
+	public static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Build stage interrupted");
+		}
+	}
+	
+	private static class StageRunner implements Runnable {
+		private Stage stage;
+		private LinkedBlockingQueue<Stage> finished;
+		private BuildMetrics metrics;
+		
+		public StageRunner(Stage stage, LinkedBlockingQueue<Stage> finished, BuildMetrics metrics) {
+			this.stage = stage;
+			this.finished = finished;
+			this.metrics = metrics;
+		}
+		
+		@Override
+		public void run() {
+			if (!stage.started.compareAndSet(false, true)) {
+				//The build was cancelled before this stage got a chance to start
+				return;
+			}
+			
+			BuildMetrics.StageMetrics stageMetrics = metrics != null ? metrics.stage(stage.getName()) : null;
+			
+			if (stageMetrics != null) {
+				stageMetrics.begin();
+			}
+			
+			try {
+				stage.succeeded = stage.run();
+			} catch (Throwable e) {
+				stage.succeeded = false;
+				stage.failure = e;
+			} finally {
+				if (stageMetrics != null) {
+					stageMetrics.end();
+				}
+				
+				finished.add(stage);
+			}
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package com.calsignlabs.apde.build;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records where the time goes during a build: the wall time, CPU time, and allocations of each
+ * stage, the size of its inputs and outputs, and stage-specific counts such as the number of classes
+ * compiled.
+ *
+ * At the end of the build, the metrics are printed to the console as a table and appended to
+ * a history file with one JSON object per line, so that builds can be compared over time.
+ */
+public class BuildMetrics {
+	public static final String HISTORY_FILENAME = "build-history.jsonl";
+	
+	/** Don't let the history file grow forever */
+	private static final long MAX_HISTORY_SIZE = 1024 * 1024;
+	
+	private String sketchName;
+	private String target;
+	
+	private long timestamp;
+	private long startTime;
+	private long wallNanos;
+	private String result;
+	
+	private ThreadCounters counters;
+	
+	private Map<String, StageMetrics> stages;
+	
+	/**
+	 * Measures the CPU time and the allocations of the thread that runs a stage. How to do that
+	 * depends on the VM, so it comes from the BuildEnvironment.
+	 */
+	public interface ThreadCounters {
+		/**
+		 * @return the CPU time used by the current thread, or -1 if it isn't available
+		 */
+		long cpuNanos();
+		
+		/**
+		 * @return the number of bytes allocated by the current thread, or -1 if it isn't available
+		 */
+		long allocatedBytes();
+	}
+	
+	/**
+	 * The counters on a device. Dalvik can only count allocations globally (and ART not at all),
+	 * so only the CPU time is measured.
+	 */
+	public static final ThreadCounters DEVICE_COUNTERS = new ThreadCounters() {
+		@Override
+		public long cpuNanos() {
+			try {
+				return android.os.Debug.threadCpuTimeNanos();
+			} catch (Throwable e) {
+				//Not running on Android
+				return -1;
+			}
+		}
+		
+		@Override
+		public long allocatedBytes() {
+			return -1;
+		}
+	};
+	
+	/**
+	 * @param counters measures the CPU time and the allocations of each stage
+	 */
+	public BuildMetrics(String sketchName, String target, ThreadCounters counters) {
+		this.sketchName = sketchName;
+		this.target = target;
+		this.counters = counters;
+		
+		timestamp = System.currentTimeMillis();
+		startTime = System.nanoTime();
+		
+		stages = new LinkedHashMap<String, StageMetrics>();
+	}
+	
+	/**
+	 * Gets the metrics for a stage, creating them if the stage hasn't reported anything yet.
+	 *
+	 * @param name the name of the stage
+	 * @return the stage's metrics
+	 */
+	public synchronized StageMetrics stage(String name) {
+		StageMetrics stage = stages.get(name);
+		
+		if (stage == null) {
+			stage = new StageMetrics(name, counters);
+			stages.put(name, stage);
+		}
+		
+		return stage;
+	}
+	
+	public synchronized List<StageMetrics> getStages() {
+		return new ArrayList<StageMetrics>(stages.values());
+	}
+	
+	/**
+	 * @return how the build ended, or null if it hasn't finished yet
+	 */
+	public synchronized String getResult() {
+		return result;
+	}
+	
+	/**
+	 * @return the wall time of the whole build, once it has finished
+	 */
+	public synchronized long getWallNanos() {
+		return wallNanos;
+	}
+	
+	/**
+	 * Call at the end of the build.
+	 *
+	 * @param result how the build ended, e.g. "SUCCESS"
+	 */
+	public synchronized void finish(String result) {
+		this.result = result;
+		wallNanos = System.nanoTime() - startTime;
+	}
+	
+	/**
+	 * Prints a table with a row for each stage.
+	 *
+	 * @param out the stream to print to
+	 */
+	public synchronized void printSummary(PrintStream out) {
+		out.println();
+		out.println(String.format(Locale.US, "%-10s %9s %9s %9s %10s %10s %6s  %s",
+				"Stage", "Wall ms", "CPU ms", "Alloc KB", "In KB", "Out KB", "Files", "Counts"));
+		
+		for (StageMetrics stage : stages.values()) {
+			out.println(String.format(Locale.US, "%-10s %9d %9s %9s %10d %10d %6d  %s",
+					stage.name, stage.wallNanos / 1000000,
+					stage.cpuNanos < 0 ? "-" : Long.toString(stage.cpuNanos / 1000000),
+					stage.allocatedBytes < 0 ? "-" : Long.toString(stage.allocatedBytes / 1024),
+					stage.inputBytes / 1024, stage.outputBytes / 1024,
+					stage.inputFiles + stage.outputFiles,
+					stage.skipped ? "(skipped)" : formatCounts(stage.counts)));
+		}
+		
+		out.println(String.format(Locale.US, "%-10s %9d", "Total", wallNanos / 1000000));
+		out.println();
+	}
+	
+	private static String formatCounts(Map<String, Long> counts) {
+		StringBuilder formatted = new StringBuilder();
+		
+		for (Map.Entry<String, Long> count : counts.entrySet()) {
+			if (formatted.length() > 0) {
+				formatted.append(", ");
+			}
+			
+			formatted.append(count.getKey()).append('=').append(count.getValue());
+		}
+		
+		return formatted.toString();
+	}
+	
+	/**
+	 * Appends this build to the end of the history file as a single line of JSON. If the file
+	 * has gotten too big, it is started over.
+	 *
+	 * @param historyFile the history file
+	 */
+	public void appendHistory(File historyFile) {
+		if (historyFile.length() > MAX_HISTORY_SIZE && !historyFile.delete()) {
+			System.err.println("Failed to delete old build history");
+		}
+		
+		Writer writer = null;
+		
+		try {
+			writer = new FileWriter(historyFile, true);
+			writer.write(toJson());
+			writer.write('\n');
+		} catch (IOException e) {
+			System.err.println("Failed to write build history");
+			e.printStackTrace();
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					//Nothing we can do about it
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return this build as a JSON object
+	 */
+	public synchronized String toJson() {
+		StringBuilder json = new StringBuilder();
+		
+		json.append('{');
+		json.append("\"timestamp\":").append(timestamp);
+		json.append(",\"sketch\":").append(quote(sketchName));
+		json.append(",\"target\":").append(quote(target));
+		json.append(",\"result\":").append(quote(result));
+		json.append(",\"wallMs\":").append(wallNanos / 1000000);
+		json.append(",\"stages\":[");
+		
+		boolean first = true;
+		
+		for (StageMetrics stage : stages.values()) {
+			if (!first) {
+				json.append(',');
+			}
+			
+			first = false;
+			
+			json.append('{');
+			json.append("\"name\":").append(quote(stage.name));
+			json.append(",\"skipped\":").append(stage.skipped);
+			json.append(",\"wallMs\":").append(stage.wallNanos / 1000000);
+			json.append(",\"cpuMs\":").append(stage.cpuNanos < 0 ? -1 : stage.cpuNanos / 1000000);
+			json.append(",\"allocatedBytes\":").append(stage.allocatedBytes);
+			json.append(",\"inputBytes\":").append(stage.inputBytes);
+			json.append(",\"outputBytes\":").append(stage.outputBytes);
+			json.append(",\"inputFiles\":").append(stage.inputFiles);
+			json.append(",\"outputFiles\":").append(stage.outputFiles);
+			
+			for (Map.Entry<String, Long> count : stage.counts.entrySet()) {
+				json.append(',').append(quote(count.getKey())).append(':').append(count.getValue());
+			}
+			
+			json.append('}');
+		}
+		
+		json.append("]}");
+		
+		return json.toString();
+	}
+	
+	private static String quote(String value) {
+		if (value == null) {
+			return "null";
+		}
+		
+		StringBuilder quoted = new StringBuilder(value.length() + 2);
+		quoted.append('"');
+		
+		for (int i = 0; i < value.length(); i ++) {
+			char c = value.charAt(i);
+			
+			switch (c) {
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			case '\n':
+				quoted.append("\\n");
+				break;
+			case '\r':
+				quoted.append("\\r");
+				break;
+			case '\t':
+				quoted.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+				} else {
+					quoted.append(c);
+				}
+			}
+		}
+		
+		quoted.append('"');
+		
+		return quoted.toString();
+	}
+	
+	/**
+	 * The metrics for a single stage. The timing is recorded by whatever runs the stage, the
+	 * rest is reported by the stage itself.
+	 *
+	 * Note that the CPU time and the allocations only count the thread that ran the stage, not
+	 * any helper threads that it started (e.g. DX with --num-threads).
+	 */
+	public static class StageMetrics {
+		private String name;
+		private ThreadCounters counters;
+		
+		private long wallNanos;
+		private long cpuNanos;
+		private long allocatedBytes;
+		
+		private long startWall;
+		private long startCpu;
+		private long startAllocated;
+		
+		private boolean skipped;
+		
+		private long inputBytes;
+		private long outputBytes;
+		private int inputFiles;
+		private int outputFiles;
+		
+		private Map<String, Long> counts;
+		
+		private StageMetrics(String name, ThreadCounters counters) {
+			this.name = name;
+			this.counters = counters;
+			
+			counts = new LinkedHashMap<String, Long>();
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public synchronized void begin() {
+			startWall = System.nanoTime();
+			startCpu = counters.cpuNanos();
+			startAllocated = counters.allocatedBytes();
+		}
+		
+		public synchronized void end() {
+			wallNanos += System.nanoTime() - startWall;
+			
+			long endCpu = counters.cpuNanos();
+			cpuNanos = (startCpu < 0 || endCpu < 0 || cpuNanos < 0) ? -1 : cpuNanos + endCpu - startCpu;
+			
+			long endAllocated = counters.allocatedBytes();
+			allocatedBytes = (startAllocated < 0 || endAllocated < 0 || allocatedBytes < 0) ? -1 : allocatedBytes + endAllocated - startAllocated;
+		}
+		
+		/**
+		 * Call if the stage didn't have to do anything because its inputs haven't changed.
+		 */
+		public synchronized StageMetrics skipped() {
+			skipped = true;
+			return this;
+		}
+		
+		/**
+		 * Counts the sizes of files (or of every file in folders) that the stage takes as input.
+		 * This is the size of the inputs, not the I/O: a stage may skip some of them (e.g. the
+		 * compiler keeps its class path open between builds).
+		 */
+		public synchronized StageMetrics input(File... files) {
+			for (File file : files) {
+				long[] totals = measure(file);
+				
+				inputBytes += totals[0];
+				inputFiles += totals[1];
+			}
+			
+			return this;
+		}
+		
+		public synchronized StageMetrics input(Iterable<File> files) {
+			for (File file : files) {
+				input(file);
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Counts the sizes of files (or of every file in folders) that the stage outputs. Like
+		 * the inputs, this is the size of the outputs, not the I/O.
+		 */
+		public synchronized StageMetrics output(File... files) {
+			for (File file : files) {
+				long[] totals = measure(file);
+				
+				outputBytes += totals[0];
+				outputFiles += totals[1];
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Counts bytes and files that the stage output, for stages that only count the outputs
+		 * that they actually wrote (e.g. FolderSync leaves unchanged files alone).
+		 */
+		public synchronized StageMetrics output(long bytes, int files) {
+			outputBytes += bytes;
+			outputFiles += files;
+			
+			return this;
+		}
+		
+		/**
+		 * Records a stage-specific count, such as the number of classes that were compiled.
+		 */
+		public synchronized StageMetrics count(String name, long value) {
+			Long previous = counts.get(name);
+			counts.put(name, previous == null ? value : previous + value);
+			
+			return this;
+		}
+		
+		public synchronized boolean isSkipped() {
+			return skipped;
+		}
+		
+		public synchronized long getWallNanos() {
+			return wallNanos;
+		}
+		
+		public synchronized long getCpuNanos() {
+			return cpuNanos;
+		}
+		
+		/**
+		 * @return the number of bytes allocated, or -1 if it couldn't be measured
+		 */
+		public synchronized long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+		
+		public synchronized long getInputBytes() {
+			return inputBytes;
+		}
+		
+		public synchronized long getOutputBytes() {
+			return outputBytes;
+		}
+		
+		public synchronized int getInputFiles() {
+			return inputFiles;
+		}
+		
+		public synchronized int getOutputFiles() {
+			return outputFiles;
+		}
+		
+		public synchronized Long getCount(String name) {
+			return counts.get(name);
+		}
+		
+		/**
+		 * @return the total size and the number of files
+		 */
+		private static long[] measure(File file) {
+			long[] totals = new long[2];
+			measure(file, totals);
+			return totals;
+		}
+		
+		private static void measure(File file, long[] totals) {
+			if (file.isDirectory()) {
+				File[] children = file.listFiles();
+				
+				if (children != null) {
+					for (File child : children) {
+						measure(child, totals);
+					}
+				}
+			} else if (file.exists()) {
+				totals[0] += file.length();
+				totals[1] ++;
+			}
+		}
+	}
+}
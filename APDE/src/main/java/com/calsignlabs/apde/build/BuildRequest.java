@@ -0,0 +1,103 @@
+package com.calsignlabs.apde.build;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything that a build needs to know about the sketch: its name, its folder, the contents of
+ * its tabs, and the build settings. The tabs are copied when the request is created, so the
+ * user can keep editing while the sketch builds.
+ */
+public class BuildRequest {
+	private final String sketchName;
+	private final File sketchFolder;
+	private final List<Tab> tabs;
+	private final BuildSettings settings;
+	
+	/**
+	 * @param sketchName the name of the sketch (and of its main tab)
+	 * @param sketchFolder the sketch folder, for the data, code, and res folders and the manifest
+	 * @param tabs the sketch's tabs, with the main tab first
+	 * @param settings the build settings
+	 */
+	public BuildRequest(String sketchName, File sketchFolder, List<Tab> tabs, BuildSettings settings) {
+		this.sketchName = sketchName;
+		this.sketchFolder = sketchFolder;
+		this.tabs = Collections.unmodifiableList(new ArrayList<Tab>(tabs));
+		this.settings = settings;
+	}
+	
+	public String getSketchName() {
+		return sketchName;
+	}
+	
+	public File getSketchFolder() {
+		return sketchFolder;
+	}
+	
+	public List<Tab> getTabs() {
+		return tabs;
+	}
+	
+	public BuildSettings getSettings() {
+		return settings;
+	}
+	
+	/**
+	 * @param other
+	 * @return whether or not the other request would build the same thing, i.e. it is for the
+	 * same sketch and none of the tabs or settings have changed
+	 */
+	public boolean hasSameContent(BuildRequest other) {
+		if (!sketchName.equals(other.sketchName) || !sketchFolder.equals(other.sketchFolder)
+				|| !settings.equals(other.settings) || tabs.size() != other.tabs.size()) {
+			
+			return false;
+		}
+		
+		for (int i = 0; i < tabs.size(); i ++) {
+			Tab tab = tabs.get(i);
+			Tab otherTab = other.tabs.get(i);
+			
+			if (!tab.filename.equals(otherTab.filename) || !tab.text.equals(otherTab.text)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * The contents of one tab at the time of the request.
+	 */
+	public static class Tab {
+		private final String filename;
+		private final String suffix;
+		private final String text;
+		
+		/**
+		 * @param filename the name of the tab's file, including the suffix
+		 * @param suffix either ".pde" or ".java"
+		 * @param text the code
+		 */
+		public Tab(String filename, String suffix, String text) {
+			this.filename = filename;
+			this.suffix = suffix;
+			this.text = text;
+		}
+		
+		public String getFilename() {
+			return filename;
+		}
+		
+		public String getSuffix() {
+			return suffix;
+		}
+		
+		public String getText() {
+			return text;
+		}
+	}
+}
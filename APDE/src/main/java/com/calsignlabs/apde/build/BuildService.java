@@ -0,0 +1,381 @@
+package com.calsignlabs.apde.build;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the builds for the editor, one at a time, on a single long-lived thread. The editor binds
+ * to the service while it's open, and the service keeps itself started while there are builds
+ * to run, so a build carries on when the editor is rotated or sent to the background.
+ *
+ * Pressing run again before a build has started replaces the queued snapshot of that sketch
+ * with the newer one instead of building both. If a build of the same sketch is already
+ * running, it is halted in favor of the newer snapshot (unless nothing has changed).
+ *
+ * The compiler and the library dex cache are shared by every build in the process, so keeping
+ * the process alive between builds keeps them warm.
+ *
+ * Exporting a signed package runs here too, after the builds that are already queued. All of
+ * the builds share the same build folder, so nothing may build (or clean up) outside of the service.
+ *
+ * While the user is typing, the editor can also ask for the sketch to be compiled in the
+ * background. This only compiles and dexes the sketch, and the results are left in the build
+ * cache, so pressing run afterwards only has to package and install. A background compile
+ * never holds up a real build: it is halted as soon as one is requested, unless it is already
+ * compiling exactly what the real build needs.
+ */
+public class BuildService extends Service {
+	private final IBinder binder = new BuildBinder();
+	
+	private ExecutorService buildThread;
+	
+	//The newest snapshot of each sketch that is waiting to be built, by sketch folder
+	private final LinkedHashMap<String, Build> pending = new LinkedHashMap<String, Build>();
+	
+	//Guarded by pending
+	private Build current;
+	private BuildRequest currentRequest;
+	//The target of the current build: "debug", "release", or "compile" in the background
+	private String currentTarget;
+	//The number of debug and release builds that are waiting or running
+	private int scheduled;
+	
+	//The release builds that are waiting to be built, guarded by pending
+	private final List<Build> pendingReleases = new ArrayList<Build>();
+	
+	//The newest snapshot to compile in the background, guarded by pending
+	private Build pendingPrecompile;
+	
+	//Set on the build thread while it compiles in the background. The stages' threads inherit it,
+	//but so does any long-lived thread that happens to be started during the compile (e.g. the
+	//dex cache's), so it's switched off when the compile finishes instead of being left set
+	private static final InheritableThreadLocal<AtomicBoolean> precompiling = new InheritableThreadLocal<AtomicBoolean>();
+	
+	public class BuildBinder extends Binder {
+		public BuildService getService() {
+			return BuildService.this;
+		}
+	}
+	
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		
+		buildThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "APDE build");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	@Override
+	public IBinder onBind(Intent intent) {
+		return binder;
+	}
+	
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		//If we get killed, the editor will have to request the build again anyway
+		return START_NOT_STICKY;
+	}
+	
+	@Override
+	public void onDestroy() {
+		halt();
+		buildThread.shutdownNow();
+		
+		super.onDestroy();
+	}
+	
+	/**
+	 * Queues a debug build of the sketch. If the same sketch is already waiting to be built,
+	 * the newer request replaces it.
+	 *
+	 * @param request the snapshot of the sketch
+	 * @param environment where to report progress and install the APK
+	 */
+	public void build(BuildRequest request, BuildEnvironment environment) {
+		final String key = request.getSketchFolder().getAbsolutePath();
+		Build build = new Build(request, environment);
+		
+		synchronized (pending) {
+			//The real build will compile it anyway
+			pendingPrecompile = null;
+			
+			if (current != null && currentTarget.equals("compile")) {
+				//If it's compiling this snapshot, let it finish so that the real build can use its results
+				if (!currentRequest.hasSameContent(request)) {
+					current.halt();
+				}
+			} else if (current != null && currentTarget.equals("debug") && currentRequest.getSketchFolder().getAbsolutePath().equals(key)) {
+				if (currentRequest.hasSameContent(request)) {
+					//The user pressed run twice (or undid their edits), this build is already running
+					pending.remove(key);
+					return;
+				}
+				
+				//This snapshot is already out of date
+				current.halt();
+			}
+			
+			if (pending.put(key, build) != null) {
+				//The task that was queued for the old snapshot will build this one instead
+				return;
+			}
+			
+			if (scheduled ++ == 0) {
+				//Keep running even if the editor unbinds
+				startService(new Intent(this, BuildService.class));
+			}
+		}
+		
+		buildThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				runPending(key);
+			}
+		});
+	}
+	
+	/**
+	 * Compiles the sketch in the background, unless a real build is running or waiting to run.
+	 * If a background compile is already running, it is halted in favor of the newer snapshot.
+	 *
+	 * @param request the snapshot of the sketch
+	 * @param environment the environment that a real build would use, nothing is reported to it
+	 */
+	public void precompile(BuildRequest request, BuildEnvironment environment) {
+		Build build = new Build(request, new BackgroundBuildEnvironment(environment));
+		
+		synchronized (pending) {
+			if (scheduled > 0) {
+				//A real build is going to compile it anyway, or an export is using the build folder
+				return;
+			}
+			
+			if (current != null) {
+				if (currentRequest.hasSameContent(request)) {
+					return;
+				}
+				
+				//This snapshot is already out of date
+				current.halt();
+			}
+			
+			boolean queued = pendingPrecompile != null;
+			pendingPrecompile = build;
+			
+			if (queued) {
+				//The task that was queued for the old snapshot will compile this one instead
+				return;
+			}
+		}
+		
+		buildThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				runPrecompile();
+			}
+		});
+	}
+	
+	private void runPrecompile() {
+		Build build;
+		
+		synchronized (pending) {
+			build = pendingPrecompile;
+			pendingPrecompile = null;
+			
+			if (build == null) {
+				//A real build came along
+				return;
+			}
+			
+			current = build;
+			currentRequest = build.getRequest();
+			currentTarget = "compile";
+		}
+		
+		AtomicBoolean active = new AtomicBoolean(true);
+		precompiling.set(active);
+		
+		try {
+			build.build("compile");
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			active.set(false);
+			precompiling.remove();
+			
+			synchronized (pending) {
+				current = null;
+				currentRequest = null;
+				currentTarget = null;
+			}
+		}
+	}
+	
+	/**
+	 * @return whether or not the current thread is compiling in the background, its output
+	 * shouldn't be shown to the user
+	 */
+	public static boolean isPrecompileThread() {
+		AtomicBoolean active = precompiling.get();
+		return active != null && active.get();
+	}
+	
+	private void runPending(String key) {
+		Build build;
+		
+		synchronized (pending) {
+			build = pending.remove(key);
+			current = build;
+			currentRequest = build != null ? build.getRequest() : null;
+			currentTarget = "debug";
+		}
+		
+		try {
+			if (build != null) {
+				build.build("debug");
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			finishScheduled();
+		}
+	}
+	
+	/**
+	 * Queues a release build of the sketch, to be exported as a signed package. It waits for the
+	 * builds that are already queued, and halts a background compile, because they would all
+	 * write to the same build folder.
+	 *
+	 * @param build the release build, with its key set
+	 * @param finished run on the build thread once the export has finished, failed, or been
+	 * dropped, may be null
+	 */
+	public void release(final Build build, final Runnable finished) {
+		synchronized (pending) {
+			pendingPrecompile = null;
+			
+			if (current != null && currentTarget.equals("compile")) {
+				current.halt();
+			}
+			
+			pendingReleases.add(build);
+			
+			if (scheduled ++ == 0) {
+				startService(new Intent(this, BuildService.class));
+			}
+		}
+		
+		buildThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				runRelease(build, finished);
+			}
+		});
+	}
+	
+	private void runRelease(Build build, Runnable finished) {
+		try {
+			synchronized (pending) {
+				if (!pendingReleases.remove(build)) {
+					//It was halted before it started
+					return;
+				}
+				
+				current = build;
+				currentRequest = build.getRequest();
+				currentTarget = "release";
+			}
+			
+			build.build("release");
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			finishScheduled();
+			
+			if (finished != null) {
+				finished.run();
+			}
+		}
+	}
+	
+	/**
+	 * Cleans up after a build (e.g. deletes the build folder) on the build thread, once the
+	 * builds that are already queued have finished. It's skipped if another build has been
+	 * requested by then, because that build is going to use the build folder.
+	 *
+	 * @param cleanup deletes whatever has to go
+	 */
+	public void cleanUp(final Runnable cleanup) {
+		buildThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (pending) {
+					if (scheduled > 0 || pendingPrecompile != null) {
+						return;
+					}
+				}
+				
+				//Nothing else can start on the build thread until this is done
+				try {
+					cleanup.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	private void finishScheduled() {
+		synchronized (pending) {
+			current = null;
+			currentRequest = null;
+			currentTarget = null;
+			
+			if (-- scheduled == 0) {
+				//We'll still be around as long as the editor is bound
+				stopSelf();
+			}
+		}
+	}
+	
+	/**
+	 * Halts the running build and drops the queued ones.
+	 */
+	public void halt() {
+		synchronized (pending) {
+			pending.clear();
+			pendingReleases.clear();
+			pendingPrecompile = null;
+			
+			if (current != null) {
+				current.halt();
+			}
+		}
+	}
+	
+	/**
+	 * @return whether or not a build is running or waiting to run
+	 */
+	public boolean isBuilding() {
+		synchronized (pending) {
+			return scheduled > 0;
+		}
+	}
+}
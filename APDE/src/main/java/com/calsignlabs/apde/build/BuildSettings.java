@@ -0,0 +1,99 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.Arrays;
+
+/**
+ * The user's build preferences, read once when the build is requested. The build never reads
+ * the shared preferences itself, so changing a setting in the middle of a build doesn't affect
+ * it, and builds can run where there are no shared preferences at all.
+ */
+public class BuildSettings {
+	private final boolean injectLogBroadcaster;
+	private final boolean verbose;
+	private final boolean buildInternalStorage;
+	private final boolean keepBuildFolder;
+	private final boolean oldAaptBinary;
+	private final String storedExtensions;
+	
+	/**
+	 * @param injectLogBroadcaster whether or not to send the sketch's output back to the console
+	 * @param verbose whether or not to print extra build output
+	 * @param buildInternalStorage whether to build on the internal or the external storage
+	 * @param keepBuildFolder whether or not to keep the build folder after the sketch is launched
+	 * @param oldAaptBinary whether or not to use the pre-0.3.3 AAPT PIE binary on ARM
+	 * @param storedExtensions the extensions of the files to store in the APK without
+	 * compressing them, separated by spaces
+	 */
+	public BuildSettings(boolean injectLogBroadcaster, boolean verbose, boolean buildInternalStorage,
+			boolean keepBuildFolder, boolean oldAaptBinary, String storedExtensions) {
+		
+		this.injectLogBroadcaster = injectLogBroadcaster;
+		this.verbose = verbose;
+		this.buildInternalStorage = buildInternalStorage;
+		this.keepBuildFolder = keepBuildFolder;
+		this.oldAaptBinary = oldAaptBinary;
+		this.storedExtensions = storedExtensions;
+	}
+	
+	/**
+	 * @param context
+	 * @return a snapshot of the current build preferences
+	 */
+	public static BuildSettings fromPreferences(Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		
+		return new BuildSettings(prefs.getBoolean("inject_log_broadcaster", true),
+				prefs.getBoolean("build_output_verbose", false),
+				prefs.getBoolean("pref_build_internal_storage", true),
+				prefs.getBoolean("pref_build_folder_keep", true),
+				prefs.getBoolean("pref_build_aapt_binary", false),
+				prefs.getString("pref_build_stored_extensions", ApkWriter.DEFAULT_STORED_EXTENSIONS));
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof BuildSettings)) {
+			return false;
+		}
+		
+		BuildSettings settings = (BuildSettings) other;
+		
+		return injectLogBroadcaster == settings.injectLogBroadcaster && verbose == settings.verbose
+				&& buildInternalStorage == settings.buildInternalStorage && keepBuildFolder == settings.keepBuildFolder
+				&& oldAaptBinary == settings.oldAaptBinary && storedExtensions.equals(settings.storedExtensions);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(new boolean[] {injectLogBroadcaster, verbose, buildInternalStorage, keepBuildFolder, oldAaptBinary}) * 31
+				+ storedExtensions.hashCode();
+	}
+	
+	public boolean injectLogBroadcaster() {
+		return injectLogBroadcaster;
+	}
+	
+	public boolean isVerbose() {
+		return verbose;
+	}
+	
+	public boolean buildOnInternalStorage() {
+		return buildInternalStorage;
+	}
+	
+	public boolean keepBuildFolder() {
+		return keepBuildFolder;
+	}
+	
+	public boolean useOldAaptBinary() {
+		return oldAaptBinary;
+	}
+	
+	public String getStoredExtensions() {
+		return storedExtensions;
+	}
+}
@@ -0,0 +1,412 @@
+package com.calsignlabs.apde.build;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the dexed versions of JARs (from libraries, and from sketches' code folders), named
+ * after the SHA-256 of the JAR that they were dexed from. A JAR that has been changed by hand
+ * simply doesn't match anything in the cache any more, so a stale dex can never be used, and
+ * the same JAR in several places is only dexed once.
+ *
+ * The checksums are remembered by path, size, and modification time so that unchanged JARs
+ * don't have to be read again every build.
+ */
+public class DexCache {
+	public static final String FOLDER_NAME = "dex-cache";
+	public static final String INDEX_FILENAME = "checksums.properties";
+	
+	/** Dexed JARs that haven't been used for this long are deleted */
+	private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+	
+	private static DexCache instance;
+	
+	private File folder;
+	
+	private File indexFile;
+	/** Maps the path of each JAR to "size modified checksum" */
+	private Properties checksums;
+	
+	private ExecutorService background;
+	
+	//Guarded by this: checksum -> the dex that is in progress
+	private HashMap<String, FutureTask<File>> inFlight = new HashMap<String, FutureTask<File>>();
+	//The number of threads (other than the refill) that need a dex
+	private int foregroundCount;
+	//The refill thread and the JAR that it is dexing, while it is dexing one
+	private Thread refillThread;
+	private String refillChecksum;
+	
+	private DexCache(File folder) {
+		this.folder = folder;
+		
+		indexFile = new File(folder, INDEX_FILENAME);
+		checksums = new Properties();
+		
+		if (indexFile.exists()) {
+			try {
+				InputStream stream = new BufferedInputStream(new FileInputStream(indexFile));
+				try {
+					checksums.load(stream);
+				} finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				//The checksums will just be re-computed
+				checksums.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the shared cache, loading it if it isn't already loaded from this folder.
+	 *
+	 * @param folder the folder to keep the dexed JARs in
+	 * @return the shared cache
+	 */
+	public static synchronized DexCache load(File folder) {
+		if (instance == null || !instance.folder.equals(folder)) {
+			instance = new DexCache(folder);
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Gets the dexed version of a JAR, dexing it now if it isn't in the cache.
+	 *
+	 * @param jar the JAR to dex
+	 * @return the dexed JAR, which shouldn't be modified
+	 * @throws IOException if the JAR couldn't be read or dexed
+	 * @throws InterruptedIOException if the thread was interrupted while dexing or waiting
+	 */
+	public File getDexJar(File jar) throws IOException {
+		return get(getChecksum(jar), read(jar), false);
+	}
+	
+	/**
+	 * Dexes a JAR that has already been read into memory and adds it to the cache, e.g. while
+	 * installing a library.
+	 *
+	 * @param jar the contents of the JAR
+	 * @return the dexed JAR
+	 * @throws IOException if the JAR couldn't be dexed
+	 * @throws InterruptedIOException if the thread was interrupted while dexing or waiting
+	 */
+	public File getDexJar(final byte[] jar) throws IOException {
+		return get(checksum(jar), new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return jar;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Dexes the JARs that aren't in the cache in the background, so that they are ready by the
+	 * time that they are needed. Errors are left for the build to report.
+	 *
+	 * The background thread always makes way: it waits while anybody else is dexing, and if it
+	 * is dexing a JAR when somebody else needs DX, it gives up on that JAR and tries it again
+	 * afterwards.
+	 *
+	 * @param jars the JARs to check
+	 */
+	public void refill(final List<File> jars) {
+		synchronized (this) {
+			if (background == null) {
+				background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "APDE dex cache");
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+			}
+		}
+		
+		final List<File> copy = new ArrayList<File>(jars);
+		
+		background.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (File jar : copy) {
+					try {
+						if (jar.exists()) {
+							refill(jar);
+						}
+					} catch (Exception e) {
+						//The build will try again
+						System.err.println("Failed to dex " + jar.getName() + " in the background");
+					}
+				}
+			}
+		});
+	}
+	
+	private void refill(File jar) throws IOException {
+		String checksum = getChecksum(jar);
+		
+		while (true) {
+			synchronized (this) {
+				while (foregroundCount > 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						//Only the foreground dexes interrupt us, and they're what we're waiting for
+					}
+				}
+				
+				refillThread = Thread.currentThread();
+				refillChecksum = checksum;
+			}
+			
+			try {
+				get(checksum, read(jar), true);
+				return;
+			} catch (InterruptedIOException e) {
+				//Somebody else needed DX, try again once they're done
+			} finally {
+				synchronized (this) {
+					refillThread = null;
+					refillChecksum = null;
+				}
+				
+				//In case we were interrupted just after finishing, or sped up
+				Thread.interrupted();
+				Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the dexed JAR from the cache, or dexes it. If another thread is already dexing the
+	 * same JAR, this waits for that thread instead of dexing it twice. Only the dex itself is
+	 * done outside of the cache's lock, so waiting can always be interrupted.
+	 *
+	 * @param checksum the checksum of the JAR
+	 * @param contents reads the JAR, only called if it needs to be dexed
+	 * @param background whether or not this is the background refill
+	 * @return the dexed JAR
+	 */
+	private File get(final String checksum, final Callable<byte[]> contents, boolean background) throws IOException {
+		while (true) {
+			FutureTask<File> task;
+			boolean dexHere = false;
+			
+			synchronized (this) {
+				File dexJar = getFile(checksum);
+				
+				if (dexJar.exists()) {
+					//Mark it as recently used
+					dexJar.setLastModified(System.currentTimeMillis());
+					return dexJar;
+				}
+				
+				task = inFlight.get(checksum);
+				
+				if (task == null) {
+					task = new FutureTask<File>(new Callable<File>() {
+						@Override
+						public File call() throws Exception {
+							return put(checksum, contents.call());
+						}
+					});
+					
+					inFlight.put(checksum, task);
+					dexHere = true;
+				}
+				
+				if (!background) {
+					foregroundCount ++;
+					
+					if (refillThread != null) {
+						if (checksum.equals(refillChecksum)) {
+							//We're waiting for it now, so it can't be at the lowest priority
+							refillThread.setPriority(Thread.currentThread().getPriority());
+						} else {
+							//Otherwise it would hold DX for the rest of its JAR
+							refillThread.interrupt();
+						}
+					}
+				}
+			}
+			
+			try {
+				if (dexHere) {
+					try {
+						task.run();
+					} finally {
+						synchronized (this) {
+							inFlight.remove(checksum);
+						}
+					}
+				}
+				
+				return task.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for a JAR to be dexed");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				
+				if (!dexHere && cause instanceof InterruptedIOException && !Thread.currentThread().isInterrupted()) {
+					//The thread that was dexing it was halted, so dex it here instead
+					continue;
+				}
+				
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				
+				IOException exception = new IOException("Failed to dex: " + cause);
+				exception.initCause(cause);
+				throw exception;
+			} finally {
+				if (!background) {
+					synchronized (this) {
+						foregroundCount --;
+						
+						//The refill might be waiting for us
+						notifyAll();
+					}
+				}
+			}
+		}
+	}
+	
+	private static Callable<byte[]> read(final File jar) {
+		return new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				System.out.println("Dexing " + jar.getName() + "...");
+				
+				return Build.readFully(jar);
+			}
+		};
+	}
+	
+	private File getFile(String checksum) {
+		return new File(folder, checksum + "-dex.jar");
+	}
+	
+	private File put(String checksum, byte[] jar) throws IOException {
+		File dexJar = getFile(checksum);
+		folder.mkdirs();
+		
+		//Write to a temporary file so that we never end up with a half-written dex
+		File tempJar = File.createTempFile(dexJar.getName(), ".tmp", folder);
+		
+		try {
+			JarDexer.dex(jar, tempJar, Build.getNumCores());
+			
+			if (!tempJar.renameTo(dexJar)) {
+				throw new IOException("Could not replace " + dexJar.getAbsolutePath());
+			}
+		} finally {
+			tempJar.delete();
+		}
+		
+		prune();
+		
+		return dexJar;
+	}
+	
+	private String getChecksum(File jar) throws IOException {
+		String path = jar.getAbsolutePath();
+		String stamp = jar.length() + " " + jar.lastModified() + " ";
+		
+		synchronized (this) {
+			String value = checksums.getProperty(path);
+			
+			if (value != null && value.startsWith(stamp)) {
+				return value.substring(stamp.length());
+			}
+		}
+		
+		//Reading a big JAR takes a while, so don't hold up everybody else
+		String checksum = checksum(Build.readFully(jar));
+		
+		synchronized (this) {
+			checksums.setProperty(path, stamp + checksum);
+			saveChecksums();
+		}
+		
+		return checksum;
+	}
+	
+	private static String checksum(byte[] contents) {
+		try {
+			return BuildCache.toHex(MessageDigest.getInstance("SHA-256").digest(contents));
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void saveChecksums() throws IOException {
+		folder.mkdirs();
+		
+		//Forget about the JARs that don't exist any more
+		for (String path : checksums.stringPropertyNames()) {
+			if (!new File(path).exists()) {
+				checksums.remove(path);
+			}
+		}
+		
+		OutputStream stream = new FileOutputStream(indexFile);
+		try {
+			checksums.store(stream, "APDE dex cache checksums");
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Deletes the dexed JARs that haven't been used in a while
+	 */
+	private void prune() {
+		File[] dexJars = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String filename) {
+				return filename.endsWith("-dex.jar");
+			}
+		});
+		
+		if (dexJars == null) {
+			return;
+		}
+		
+		long oldest = System.currentTimeMillis() - MAX_AGE;
+		
+		for (File dexJar : dexJars) {
+			if (dexJar.lastModified() < oldest && !dexJar.delete()) {
+				System.err.println("Failed to delete old dexed JAR " + dexJar.getName());
+			}
+		}
+	}
+}
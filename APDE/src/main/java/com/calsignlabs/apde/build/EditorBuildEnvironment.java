@@ -0,0 +1,196 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Environment;
+
+import com.calsignlabs.apde.APDE;
+import com.calsignlabs.apde.EditorActivity;
+import com.calsignlabs.apde.FileMeta;
+import com.calsignlabs.apde.contrib.Library;
+import com.calsignlabs.apde.contrib.LibraryRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds for the editor: progress goes to the editor's message area and the finished APK is
+ * handed to the package installer.
+ */
+public class EditorBuildEnvironment implements BuildEnvironment {
+	private APDE global;
+	
+	//The libraries as they were when the build first asked, so that one build sees one set of libraries
+	private LibraryRegistry.Snapshot libraries;
+	
+	public EditorBuildEnvironment(APDE global) {
+		this.global = global;
+	}
+	
+	/**
+	 * Takes a snapshot of the sketch that is open in the editor. Call this from the UI thread.
+	 *
+	 * @param global
+	 * @return the request
+	 */
+	public static BuildRequest createRequest(APDE global) {
+		FileMeta[] metas = global.getEditor().getTabMetas();
+		ArrayList<BuildRequest.Tab> tabs = new ArrayList<BuildRequest.Tab>(metas.length);
+		
+		for (FileMeta meta : metas) {
+			tabs.add(new BuildRequest.Tab(meta.getFilename(), meta.getSuffix(), meta.getText()));
+		}
+		
+		return new BuildRequest(global.getSketchName(), global.getSketchLocation(), tabs, BuildSettings.fromPreferences(global));
+	}
+	
+	/**
+	 * Deletes the build folder (unless the user wants to keep it) once the APK has been installed.
+	 * Call this from the UI thread. The build folder is deleted by the build service, so that it
+	 * isn't deleted from under another build.
+	 *
+	 * @param editor
+	 * @param service the build service, or null if it isn't bound (then the build folder stays)
+	 */
+	public static void cleanUpPostLaunch(EditorActivity editor, BuildService service) {
+		APDE global = (APDE) editor.getApplicationContext();
+		BuildRequest request = createRequest(global);
+		final BuildSettings settings = request.getSettings();
+		
+		if(!settings.keepBuildFolder() && service != null) {
+			final File buildFolder = new EditorBuildEnvironment(global).getBuildFolder(request);
+			
+			service.cleanUp(new Runnable() {
+				@Override
+				public void run() {
+					//Delete the build folder
+					if (!Build.deleteFile(buildFolder)) {
+						System.out.println("Failed to delete build folder");
+					} else if (settings.isVerbose()) {
+						System.out.println("Deleted build folder");
+					}
+				}
+			});
+		}
+		
+		if(settings.buildOnInternalStorage()) {
+			//Older versions of APDE copied the APK here so that the package installer could see it
+			File destApkFile = new File(editor.getFilesDir(), request.getSketchName() + ".apk");
+			if (destApkFile.exists() && destApkFile.delete() && settings.isVerbose()) {
+				System.out.println("Deleted old APK file");
+			}
+		}
+	}
+	
+	@Override
+	public void message(String message) {
+		global.getEditor().messageExt(message);
+	}
+	
+	@Override
+	public void error(String message) {
+		global.getEditor().errorExt(message);
+	}
+	
+	@Override
+	public void highlightLine(int tab, int line) {
+		global.getEditor().highlightLineExt(tab, line);
+	}
+	
+	@Override
+	public String getString(int resId) {
+		return global.getResources().getString(resId);
+	}
+	
+	@Override
+	public int getInteger(int resId) {
+		return global.getResources().getInteger(resId);
+	}
+	
+	@Override
+	public InputStream openAsset(String path) throws IOException {
+		return global.getAssets().open(path);
+	}
+	
+	@Override
+	public int getVersionCode() {
+		return global.appVersionCode();
+	}
+	
+	@Override
+	public File getBuildFolder(BuildRequest request) {
+		//Let the user pick where to build
+		if (request.getSettings().buildOnInternalStorage()) {
+			return global.getDir("build", 0);
+		} else {
+			return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getParentFile(), "build");
+		}
+	}
+	
+	@Override
+	public File getTempFolder() {
+		return new File(global.getFilesDir(), "tmp");
+	}
+	
+	@Override
+	public File getFilesDir() {
+		return global.getFilesDir();
+	}
+	
+	@Override
+	public BuildMetrics.ThreadCounters getThreadCounters() {
+		return BuildMetrics.DEVICE_COUNTERS;
+	}
+	
+	@Override
+	public synchronized List<Library> getLibraries(String packageName) {
+		if (libraries == null) {
+			libraries = global.getLibraryRegistry().getSnapshot();
+		}
+		
+		return libraries.getLibraries(packageName);
+	}
+	
+	@Override
+	public File[] getLibraryExports(Library library) {
+		return library.getAndroidExports(global);
+	}
+	
+	@Override
+	public File getLibraryFolder(Library library) {
+		return library.getLibraryFolder(global);
+	}
+	
+	@Override
+	public void install(File apkFile, BuildRequest request) {
+		EditorActivity editor = global.getEditor();
+		
+		//We only need to do our permission-voodoo if the user is crazy enough to want to build on the internal storage (or if they don't have an external storage...)
+		if (request.getSettings().buildOnInternalStorage()) {
+			//Yes, I know that a world-readable file is risky...
+			//...this is the only way to get the package installer to be able to read the APK file from the internal storage
+			//It's not like there's any personal data in the sketch...
+			//This is what MODE_WORLD_READABLE does, but without copying the whole APK again
+			apkFile.setReadable(true, false);
+			
+			//The installer also needs to be able to get to the file (but not to list the folders)
+			File appFolder = global.getFilesDir().getParentFile();
+			for (File folder = apkFile.getParentFile(); folder != null && !folder.equals(appFolder); folder = folder.getParentFile()) {
+				folder.setExecutable(true, false);
+			}
+		}
+		
+		//Prompt the user to install the APK file
+		Intent promptInstall = new Intent(Intent.ACTION_VIEW)
+		.setDataAndType(Uri.fromFile(
+				apkFile), //The location of the APK
+				"application/vnd.android.package-archive"
+				);
+		
+		//Get a result so that we can delete the APK file
+		editor.startActivityForResult(promptInstall, EditorActivity.FLAG_DELETE_APK);
+	}
+}
@@ -0,0 +1,115 @@
+package com.calsignlabs.apde.build;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs one of the native tools (i.e. AAPT) and reads its output while it runs. Both stdout and
+ * stderr are drained on their own threads, so a chatty tool can never fill up a pipe and stall.
+ *
+ * The process is killed if it takes too long, if the build is cancelled, or if the thread that
+ * is waiting for it is interrupted.
+ */
+public class ExternalProcess {
+	/** How often to check whether the build has been cancelled */
+	private static final long POLL_INTERVAL = 100;
+	
+	/**
+	 * Gets each line that the process writes, on the thread that read it.
+	 */
+	public interface OutputListener {
+		/**
+		 * @param line the line, without the line break
+		 * @param error whether it came from stderr
+		 */
+		void line(String line, boolean error);
+	}
+	
+	private String[] command;
+	private long timeout;
+	private OutputListener listener;
+	
+	/**
+	 * @param command the command line, starting with the location of the tool
+	 * @param timeout how long to let it run for, in milliseconds
+	 * @param listener gets the output of the tool
+	 */
+	public ExternalProcess(String[] command, long timeout, OutputListener listener) {
+		this.command = command;
+		this.timeout = timeout;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Runs the tool and waits for it to finish.
+	 *
+	 * @param running set to false to cancel the build
+	 * @return the exit code
+	 * @throws IOException if the tool couldn't be started or it timed out
+	 * @throws InterruptedException if the build was cancelled or the thread was interrupted
+	 */
+	public int run(AtomicBoolean running) throws IOException, InterruptedException {
+		Process process = Runtime.getRuntime().exec(command);
+		
+		//We don't have anything to say to it
+		process.getOutputStream().close();
+		
+		Thread stdout = drain(process.getInputStream(), false);
+		Thread stderr = drain(process.getErrorStream(), true);
+		
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		try {
+			//The streams are closed when the process exits
+			while (stdout.isAlive() || stderr.isAlive()) {
+				if (!running.get()) {
+					throw new InterruptedException("Build cancelled");
+				}
+				
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException(command[0] + " timed out after " + (timeout / 1000) + " seconds");
+				}
+				
+				stdout.join(POLL_INTERVAL);
+				stderr.join(POLL_INTERVAL);
+			}
+			
+			return process.waitFor();
+		} finally {
+			//Does nothing if the process has already exited
+			process.destroy();
+		}
+	}
+	
+	private Thread drain(final InputStream stream, final boolean error) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+				
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						listener.line(line, error);
+					}
+				} catch (IOException e) {
+					//The process was killed
+				} finally {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "APDE " + (error ? "stderr" : "stdout") + " reader");
+		
+		thread.setDaemon(true);
+		thread.start();
+		
+		return thread;
+	}
+}
@@ -0,0 +1,322 @@
+package com.calsignlabs.apde.build;
+
+import android.annotation.TargetApi;
+import android.system.Os;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Makes a folder contain exactly a set of source files, like rsync. Only the files that have
+ * changed since the last sync are copied, and files that are no longer part of the set are
+ * deleted.
+ *
+ * The size and modification time of each source file are remembered in a manifest. A file is
+ * unchanged if both match the manifest. If only the modification time differs (e.g. after the
+ * sketch has been copied or checked out), the contents are compared with a hash before copying.
+ *
+ * Files are hard linked where the file system allows it (Android 5.0+, and only if the source
+ * and target are on the same volume), and copied with FileChannel.transferTo() otherwise.
+ */
+public class FolderSync {
+	private File targetFolder;
+	private File manifestFile;
+	private boolean checksum;
+	
+	//Relative path (with forward slashes) -> source file, in the order that they were added
+	private LinkedHashMap<String, File> sources;
+	
+	private boolean linksSupported;
+	
+	private int copiedFiles;
+	private long copiedBytes;
+	private int linkedFiles;
+	private int unchangedFiles;
+	private int deletedFiles;
+	
+	/**
+	 * @param targetFolder the folder to sync to
+	 * @param manifestFile where to remember the state of the last sync, outside of the target
+	 * @param checksum whether or not to compare the contents of files whose size matches but
+	 * modification time doesn't, instead of just copying them
+	 */
+	public FolderSync(File targetFolder, File manifestFile, boolean checksum) {
+		this.targetFolder = targetFolder;
+		this.manifestFile = manifestFile;
+		this.checksum = checksum;
+		
+		sources = new LinkedHashMap<String, File>();
+		
+		//Until a link fails, link() also checks the Android version
+		linksSupported = true;
+	}
+	
+	/**
+	 * Adds a file to the set. A file that is added later replaces one with the same path.
+	 *
+	 * @param path the path of the file in the target folder
+	 * @param source
+	 */
+	public void addFile(String path, File source) {
+		//Put it at the end so that the order still reflects the precedence
+		sources.remove(path);
+		sources.put(path, source);
+	}
+	
+	/**
+	 * Adds every file in the folder, skipping dot files and folders like copyDir() does.
+	 *
+	 * @param path the path of the folder in the target folder, or "" for the root
+	 * @param folder
+	 */
+	public void addFolder(String path, File folder) {
+		String[] children = folder.list();
+		
+		if (children == null) {
+			return;
+		}
+		
+		for (String child : children) {
+			if (child.charAt(0) == '.') {
+				continue;
+			}
+			
+			File source = new File(folder, child);
+			String childPath = path.length() == 0 ? child : path + "/" + child;
+			
+			if (source.isDirectory()) {
+				addFolder(childPath, source);
+			} else {
+				addFile(childPath, source);
+			}
+		}
+	}
+	
+	/**
+	 * Brings the target folder up to date with the files that have been added.
+	 */
+	public void sync() throws IOException {
+		Properties oldManifest = loadManifest();
+		Properties newManifest = new Properties();
+		
+		targetFolder.mkdirs();
+		
+		//Forget the old manifest first so that an interrupted sync can't leave a stale entry
+		if (manifestFile.exists() && !manifestFile.delete()) {
+			throw new IOException("Failed to delete " + manifestFile.getAbsolutePath());
+		}
+		
+		for (Map.Entry<String, File> entry : sources.entrySet()) {
+			//The manifest is only written at the end, so a halted sync is just checked again next time
+			BuildGraph.checkInterrupted();
+			
+			String path = entry.getKey();
+			File source = entry.getValue();
+			File target = new File(targetFolder, path);
+			
+			long size = source.length();
+			long modified = source.lastModified();
+			
+			String[] old = split(oldManifest.getProperty(path));
+			String hash = null;
+			
+			boolean unchanged = false;
+			
+			if (old != null && target.isFile() && target.length() == size && Long.parseLong(old[0]) == size) {
+				if (Long.parseLong(old[1]) == modified) {
+					unchanged = true;
+					hash = old.length > 2 ? old[2] : null;
+				} else if (checksum) {
+					hash = hash(source);
+					unchanged = hash.equals(old.length > 2 ? old[2] : hash(target));
+				}
+			}
+			
+			if (unchanged) {
+				unchangedFiles ++;
+			} else {
+				target.getParentFile().mkdirs();
+				
+				if (target.exists() && !target.delete()) {
+					throw new IOException("Failed to delete " + target.getAbsolutePath());
+				}
+				
+				if (link(source, target)) {
+					linkedFiles ++;
+				} else {
+					transfer(source, target);
+					
+					copiedFiles ++;
+					copiedBytes += size;
+				}
+			}
+			
+			newManifest.setProperty(path, size + " " + modified + (hash != null ? " " + hash : ""));
+		}
+		
+		deleteStale(targetFolder, "");
+		
+		saveManifest(newManifest);
+	}
+	
+	/**
+	 * Deletes the files in the target folder that aren't part of the set, and any folders that
+	 * are left empty.
+	 *
+	 * @return whether or not the folder is now empty
+	 */
+	private boolean deleteStale(File folder, String path) {
+		String[] children = folder.list();
+		
+		if (children == null) {
+			return false;
+		}
+		
+		HashSet<String> remaining = new HashSet<String>();
+		
+		for (String child : children) {
+			File file = new File(folder, child);
+			String childPath = path.length() == 0 ? child : path + "/" + child;
+			
+			if (file.isDirectory()) {
+				if (!deleteStale(file, childPath) || !file.delete()) {
+					remaining.add(child);
+				}
+			} else if (!sources.containsKey(childPath)) {
+				if (file.delete()) {
+					deletedFiles ++;
+				} else {
+					remaining.add(child);
+				}
+			} else {
+				remaining.add(child);
+			}
+		}
+		
+		return remaining.isEmpty();
+	}
+	
+	private boolean link(File source, File target) {
+		if (!linksSupported || android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP) {
+			return false;
+		}
+		
+		try {
+			hardLink(source, target);
+			return true;
+		} catch (Exception e) {
+			//Most likely the source is on a different volume (or one that doesn't do links, like
+			//the FAT-formatted external storage), so don't try again for this sync
+			linksSupported = false;
+			return false;
+		}
+	}
+	
+	@TargetApi(android.os.Build.VERSION_CODES.LOLLIPOP)
+	private static void hardLink(File source, File target) throws Exception {
+		Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+	}
+	
+	private static void transfer(File source, File target) throws IOException {
+		FileInputStream input = new FileInputStream(source);
+		
+		try {
+			FileOutputStream output = new FileOutputStream(target);
+			
+			try {
+				FileChannel in = input.getChannel();
+				FileChannel out = output.getChannel();
+				
+				long size = in.size();
+				long position = 0;
+				
+				//transferTo() may transfer less than it was asked to
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+		
+		//Keep the timestamp so that the AAPT fingerprint only changes when the file does
+		target.setLastModified(source.lastModified());
+	}
+	
+	private static String hash(File file) throws IOException {
+		return new BuildCache.Fingerprint().addContents(file).toString();
+	}
+	
+	private static String[] split(String value) {
+		return value == null ? null : value.split(" ");
+	}
+	
+	private Properties loadManifest() {
+		Properties manifest = new Properties();
+		
+		if (!manifestFile.exists()) {
+			return manifest;
+		}
+		
+		try {
+			InputStream stream = new BufferedInputStream(new FileInputStream(manifestFile));
+			
+			try {
+				manifest.load(stream);
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			//Copy everything again
+			System.err.println("Failed to read " + manifestFile.getName());
+			manifest.clear();
+		}
+		
+		return manifest;
+	}
+	
+	private void saveManifest(Properties manifest) throws IOException {
+		manifestFile.getParentFile().mkdirs();
+		
+		OutputStream stream = new BufferedOutputStream(new FileOutputStream(manifestFile));
+		
+		try {
+			manifest.store(stream, "APDE folder sync");
+		} finally {
+			stream.close();
+		}
+	}
+	
+	public int getCopiedFiles() {
+		return copiedFiles;
+	}
+	
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+	
+	public int getLinkedFiles() {
+		return linkedFiles;
+	}
+	
+	public int getUnchangedFiles() {
+		return unchangedFiles;
+	}
+	
+	public int getDeletedFiles() {
+		return deletedFiles;
+	}
+}
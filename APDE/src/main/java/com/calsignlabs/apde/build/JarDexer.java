@@ -0,0 +1,308 @@
+package com.calsignlabs.apde.build;
+
+import com.android.dex.DexFormat;
+import com.android.dx.cf.direct.DirectClassFile;
+import com.android.dx.cf.direct.StdAttributeFactory;
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.cf.CfOptions;
+import com.android.dx.dex.cf.CfTranslator;
+import com.android.dx.dex.code.PositionList;
+import com.android.dx.dex.file.ClassDefItem;
+import com.android.dx.dex.file.DexFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Dexes a JAR that is already in memory, e.g. one that has just been read out of a library's
+ * ZIP archive, without DX having to read it back from the disk.
+ *
+ * This does the same thing as "dx --output=output.jar input.jar": the classes are translated
+ * (on all of the cores) into classes.dex and any other files in the JAR are copied alongside it.
+ * The sketch's own classes are dexed the same way, straight from ECJ's output folder.
+ *
+ * Unlike DX's Main, this stops between classes if the thread is interrupted, so that halting
+ * the build doesn't have to wait for the whole JAR.
+ */
+public class JarDexer {
+	private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+	
+	/**
+	 * @param jar the contents of the JAR
+	 * @param output where to write the dexed JAR
+	 * @param numThreads how many classes to translate at once
+	 * @throws IOException if the JAR can't be read or the output can't be written
+	 */
+	public static void dex(byte[] jar, File output, int numThreads) throws IOException {
+		//Everything that isn't a class, in the order that it appears in the JAR
+		LinkedHashMap<String, byte[]> resources = new LinkedHashMap<String, byte[]>();
+		
+		//The same lock as everything else that runs DX, it isn't safe to run it twice at once
+		lockDx();
+		
+		try {
+			Translator translator = new Translator(numThreads);
+			
+			try {
+				ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(jar));
+				
+				try {
+					ZipEntry entry;
+					
+					while ((entry = zip.getNextEntry()) != null) {
+						String name = entry.getName();
+						
+						if (entry.isDirectory() || name.equals(MANIFEST_NAME)) {
+							continue;
+						}
+						
+						byte[] bytes = readEntry(zip, entry);
+						
+						if (name.endsWith(".class")) {
+							translator.add(name, bytes);
+						} else {
+							resources.put(name, bytes);
+						}
+					}
+				} finally {
+					zip.close();
+				}
+				
+				write(translator.finish(), resources, output);
+			} finally {
+				translator.shutdown();
+			}
+		} finally {
+			Build.DX_LOCK.unlock();
+		}
+	}
+	
+	/**
+	 * Dexes a folder of class files, like "dx --output=output.dex folder/".
+	 *
+	 * @param classesFolder the folder that the compiler wrote the classes to
+	 * @param output where to write the dex file
+	 * @param numThreads how many classes to translate at once
+	 * @throws IOException if the classes can't be read or the output can't be written
+	 */
+	public static void dexFolder(File classesFolder, File output, int numThreads) throws IOException {
+		lockDx();
+		
+		try {
+			Translator translator = new Translator(numThreads);
+			
+			try {
+				addFolder(translator, classesFolder, "");
+				
+				byte[] dex = translator.finish();
+				
+				if (dex == null) {
+					throw new IOException("No classes to dex in " + classesFolder.getAbsolutePath());
+				}
+				
+				OutputStream stream = new BufferedOutputStream(new FileOutputStream(output));
+				
+				try {
+					stream.write(dex);
+				} finally {
+					stream.close();
+				}
+			} finally {
+				translator.shutdown();
+			}
+		} finally {
+			Build.DX_LOCK.unlock();
+		}
+	}
+	
+	/**
+	 * Takes DX_LOCK. Waiting for it can be interrupted, so halting a build doesn't have to wait
+	 * for somebody else's dex (e.g. a library that is being installed) to finish.
+	 *
+	 * @throws InterruptedIOException if the thread was interrupted while waiting
+	 */
+	private static void lockDx() throws InterruptedIOException {
+		try {
+			Build.DX_LOCK.lockInterruptibly();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for DX");
+		}
+	}
+	
+	private static void addFolder(Translator translator, File folder, String path) throws IOException {
+		String[] children = folder.list();
+		
+		if (children == null) {
+			return;
+		}
+		
+		//The same order every time, so that the dex file is the same every time
+		Arrays.sort(children);
+		
+		for (String child : children) {
+			File file = new File(folder, child);
+			
+			if (file.isDirectory()) {
+				addFolder(translator, file, path + child + "/");
+			} else if (child.endsWith(".class")) {
+				translator.add(path + child, Build.readFully(file));
+			}
+		}
+	}
+	
+	private static void write(byte[] dex, Map<String, byte[]> resources, File output) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+		
+		try {
+			//The same manifest that DX writes
+			zip.putNextEntry(new ZipEntry(MANIFEST_NAME));
+			zip.write(("Manifest-Version: 1.0\r\nCreated-By: APDE\r\n"
+					+ (dex != null ? "Dex-Location: " + DexFormat.DEX_IN_JAR_NAME + "\r\n" : "") + "\r\n").getBytes("UTF-8"));
+			zip.closeEntry();
+			
+			if (dex != null) {
+				zip.putNextEntry(new ZipEntry(DexFormat.DEX_IN_JAR_NAME));
+				zip.write(dex);
+				zip.closeEntry();
+			}
+			
+			for (Map.Entry<String, byte[]> resource : resources.entrySet()) {
+				zip.putNextEntry(new ZipEntry(resource.getKey()));
+				zip.write(resource.getValue());
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+	}
+	
+	/**
+	 * Reads the rest of the current entry of the stream.
+	 */
+	public static byte[] readEntry(InputStream stream, ZipEntry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 16 * 1024);
+		byte[] buffer = new byte[16 * 1024];
+		int count;
+		
+		while ((count = stream.read(buffer)) != -1) {
+			bytes.write(buffer, 0, count);
+		}
+		
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Translates classes on a pool of threads and collects them into one dex file. Must be used
+	 * while holding DX_LOCK.
+	 */
+	private static class Translator {
+		private CfOptions cfOptions;
+		private DexOptions dexOptions;
+		private DexFile dexFile;
+		
+		private ExecutorService translators;
+		private List<Future<?>> translations;
+		
+		public Translator(int numThreads) {
+			cfOptions = new CfOptions();
+			cfOptions.positionInfo = PositionList.LINES;
+			cfOptions.localInfo = true;
+			cfOptions.strictNameCheck = true;
+			cfOptions.optimize = true;
+			cfOptions.warn = System.err;
+			
+			dexOptions = new DexOptions();
+			dexOptions.targetApiLevel = DexFormat.API_NO_EXTENDED_OPCODES;
+			
+			dexFile = new DexFile(dexOptions);
+			
+			translators = Executors.newFixedThreadPool(Math.max(numThreads, 1));
+			translations = new ArrayList<Future<?>>();
+		}
+		
+		/**
+		 * Starts translating a class.
+		 *
+		 * @param name the path of the class file, e.g. "processing/core/PApplet.class"
+		 * @param bytes the class file
+		 */
+		public void add(final String name, final byte[] bytes) throws IOException {
+			BuildGraph.checkInterrupted();
+			
+			translations.add(translators.submit(new Runnable() {
+				@Override
+				public void run() {
+					DirectClassFile classFile = new DirectClassFile(bytes, name, cfOptions.strictNameCheck);
+					classFile.setAttributeFactory(StdAttributeFactory.THE_ONE);
+					
+					ClassDefItem item = CfTranslator.translate(classFile, bytes, cfOptions, dexOptions, dexFile);
+					
+					synchronized (dexFile) {
+						dexFile.add(item);
+					}
+				}
+			}));
+		}
+		
+		/**
+		 * Waits for all of the classes to be translated.
+		 *
+		 * @return the dex file, or null if there weren't any classes
+		 */
+		public byte[] finish() throws IOException {
+			try {
+				for (Future<?> translation : translations) {
+					translation.get();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while dexing");
+			} catch (ExecutionException e) {
+				//Usually a class that DX doesn't understand
+				IOException exception = new IOException("Failed to dex a class: " + e.getCause());
+				exception.initCause(e.getCause());
+				throw exception;
+			}
+			
+			BuildGraph.checkInterrupted();
+			
+			return dexFile.isEmpty() ? null : dexFile.toDex(null, false);
+		}
+		
+		public void shutdown() {
+			translators.shutdownNow();
+			
+			//A class that is being translated can't be stopped, and it mustn't overlap with the next DX run
+			boolean interrupted = Thread.interrupted();
+			
+			try {
+				translators.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
@@ -48,13 +48,15 @@ public class Manifest {
 	
 	public static ArrayList<Permission> permissions;
 	
-	private Build build;
+	private String sketchName;
+	private File sketchFolder;
 	
 	/** the manifest data read from the file */
 	private XML xml;
 	
-	public Manifest(Build build) {
-		this.build = build;
+	public Manifest(String sketchName, File sketchFolder) {
+		this.sketchName = sketchName;
+		this.sketchFolder = sketchFolder;
 		load();
 	}
 	
@@ -149,7 +151,7 @@ public class Manifest {
 	}
 	
 	private String defaultPackageName() {
-		return "processing.test." + build.sketchName.toLowerCase(Locale.US);
+		return "processing.test." + sketchName.toLowerCase(Locale.US);
 	}
 	
 	// called by other classes who want an actual package name
@@ -392,7 +394,15 @@ public class Manifest {
 	 * @return
 	 */
 	public int getTargetSdk(Context context) {
-		return xml.getChild("uses-sdk").getInt("android:targetSdkVersion", context.getResources().getInteger(R.integer.prop_target_sdk_default));
+		return getTargetSdk(context.getResources().getInteger(R.integer.prop_target_sdk_default));
+	}
+	
+	/**
+	 * @param defaultTargetSdk the target SDK to use if the manifest doesn't specify one
+	 * @return
+	 */
+	public int getTargetSdk(int defaultTargetSdk) {
+		return xml.getChild("uses-sdk").getInt("android:targetSdkVersion", defaultTargetSdk);
 	}
 	
 	/**
@@ -418,7 +428,7 @@ public class Manifest {
 				// remove the old manifest file, rename it with date stamp
 				long lastModified = manifestFile.lastModified();
 				String stamp = getDateStamp(lastModified);
-				File dest = new File(build.getSketchFolder(), MANIFEST_XML + "." + stamp);
+				File dest = new File(sketchFolder, MANIFEST_XML + "." + stamp);
 				boolean moved = manifestFile.renameTo(dest);
 				if (!moved) {
 					System.err.println("Could not move/rename " + manifestFile.getAbsolutePath());
@@ -472,7 +482,7 @@ public class Manifest {
 	}
 	
 	public File getManifestFile() {
-		return new File(build.getSketchFolder(), MANIFEST_XML);
+		return new File(sketchFolder, MANIFEST_XML);
 	}
 	
 	static public String getDateStamp() {
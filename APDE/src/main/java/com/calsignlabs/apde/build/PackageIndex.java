@@ -0,0 +1,238 @@
+package com.calsignlabs.apde.build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Remembers which packages each JAR contains, so that the library list can be rebuilt (which
+ * happens before every build) without opening every JAR of every library again.
+ *
+ * An entry is only used if the JAR's path, size, and modification time all match. The index is
+ * read once, the first time that it's needed, and written back when it has changed.
+ */
+public class PackageIndex {
+	public static final String INDEX_FILENAME = "package-index.properties";
+	
+	private static PackageIndex instance;
+	
+	//Null if the index only lives in memory
+	private File indexFile;
+	
+	//Absolute path of the JAR -> its entry
+	private HashMap<String, IndexEntry> entries;
+	
+	private boolean changed;
+	
+	private PackageIndex(File indexFile) {
+		this.indexFile = indexFile;
+		
+		entries = new HashMap<String, IndexEntry>();
+		
+		if (indexFile != null) {
+			read();
+		}
+	}
+	
+	/**
+	 * Loads the shared index from the file, unless it has already been loaded.
+	 *
+	 * @param indexFile where to keep the index
+	 * @return the shared index
+	 */
+	public static synchronized PackageIndex load(File indexFile) {
+		if (instance == null || instance.indexFile == null) {
+			instance = new PackageIndex(indexFile);
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * @return the shared index, which is only kept in memory if load() hasn't been called
+	 */
+	public static synchronized PackageIndex getInstance() {
+		if (instance == null) {
+			instance = new PackageIndex(null);
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * @param jar a JAR or zip file
+	 * @return the packages that contain classes in the JAR, with dots
+	 */
+	public synchronized String[] getPackages(File jar) {
+		String path = jar.getAbsolutePath();
+		long size = jar.length();
+		long modified = jar.lastModified();
+		
+		IndexEntry entry = entries.get(path);
+		
+		if (entry == null || entry.size != size || entry.modified != modified) {
+			entry = new IndexEntry(size, modified, scan(jar));
+			
+			entries.put(path, entry);
+			changed = true;
+		}
+		
+		return entry.packages;
+	}
+	
+	private static String[] scan(File jar) {
+		LinkedHashSet<String> packages = new LinkedHashSet<String>();
+		
+		try {
+			ZipFile file = new ZipFile(jar);
+			
+			try {
+				Enumeration<? extends ZipEntry> zipEntries = file.entries();
+				
+				while (zipEntries.hasMoreElements()) {
+					ZipEntry zipEntry = zipEntries.nextElement();
+					String name = zipEntry.getName();
+					
+					if (!zipEntry.isDirectory() && name.endsWith(".class")) {
+						int slash = name.lastIndexOf('/');
+						
+						//Classes in the default package can't be imported
+						if (slash != -1) {
+							packages.add(name.substring(0, slash).replace('/', '.'));
+						}
+					}
+				}
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Ignoring " + jar.getAbsolutePath() + " (" + e.getMessage() + ")");
+		}
+		
+		return packages.toArray(new String[packages.size()]);
+	}
+	
+	/**
+	 * Writes the index back to its file if anything has changed. JARs that no longer exist are
+	 * dropped.
+	 */
+	public synchronized void save() {
+		if (indexFile == null || !changed) {
+			return;
+		}
+		
+		Properties properties = new Properties();
+		
+		for (Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+			if (new File(entry.getKey()).exists()) {
+				properties.setProperty(entry.getKey(), entry.getValue().toString());
+			}
+		}
+		
+		try {
+			OutputStream stream = new BufferedOutputStream(new FileOutputStream(indexFile));
+			
+			try {
+				properties.store(stream, "APDE package index");
+			} finally {
+				stream.close();
+			}
+			
+			changed = false;
+		} catch (IOException e) {
+			//The JARs will just have to be scanned again next time
+			System.err.println("Failed to write " + indexFile.getName());
+			indexFile.delete();
+		}
+	}
+	
+	private void read() {
+		if (!indexFile.exists()) {
+			return;
+		}
+		
+		Properties properties = new Properties();
+		
+		try {
+			InputStream stream = new BufferedInputStream(new FileInputStream(indexFile));
+			
+			try {
+				properties.load(stream);
+			} finally {
+				stream.close();
+			}
+			
+			for (String path : properties.stringPropertyNames()) {
+				IndexEntry entry = IndexEntry.parse(properties.getProperty(path));
+				
+				if (entry != null) {
+					entries.put(path, entry);
+				}
+			}
+		} catch (IOException e) {
+			//Scan everything again
+			System.err.println("Failed to read " + indexFile.getName());
+			entries.clear();
+		}
+	}
+	
+	private static class IndexEntry {
+		private long size;
+		private long modified;
+		private String[] packages;
+		
+		public IndexEntry(long size, long modified, String[] packages) {
+			this.size = size;
+			this.modified = modified;
+			this.packages = packages;
+		}
+		
+		/**
+		 * @return the entry, or null if the value is corrupt
+		 */
+		public static IndexEntry parse(String value) {
+			//Size, modification time, and then the packages separated by commas
+			String[] parts = value.split(" ", 3);
+			
+			if (parts.length != 3) {
+				return null;
+			}
+			
+			try {
+				String[] packages = parts[2].length() == 0 ? new String[0] : parts[2].split(",");
+				
+				return new IndexEntry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), packages);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder value = new StringBuilder();
+			value.append(size).append(' ').append(modified).append(' ');
+			
+			for (int i = 0; i < packages.length; i ++) {
+				if (i > 0) {
+					value.append(',');
+				}
+				
+				value.append(packages[i]);
+			}
+			
+			return value.toString();
+		}
+	}
+}
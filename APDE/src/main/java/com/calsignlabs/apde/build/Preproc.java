@@ -24,8 +24,6 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.List;
 
-import com.calsignlabs.apde.EditorActivity;
-
 import processing.core.PApplet;
 import processing.mode.java.preproc.PdePreprocessor;
 import processing.mode.java.preproc.PreprocessorResult;
@@ -40,8 +38,8 @@ public class Preproc extends PdePreprocessor {
 		this.packageName = packageName;
 	}
 	
-	public String[] initSketchSize(String code, EditorActivity editor) throws SketchException {
-		String[] info = parseSketchSizeCustom(code, true, editor); //Use our own function to resolve some issues...
+	public String[] initSketchSize(String code) throws SketchException {
+		String[] info = parseSketchSizeCustom(code, true); //Use our own function to resolve some issues...
 		
 		if (info == null) {
 			System.err.println("More about the size() command on Android can be");
@@ -65,7 +63,7 @@ public class Preproc extends PdePreprocessor {
 	 * @param fussy true if it should show an error message if bad size()
 	 * @return null if there was an error, otherwise an array (might contain some/all nulls)
 	 */
-	static public String[] parseSketchSizeCustom(String code, boolean fussy, EditorActivity editor) {
+	static public String[] parseSketchSizeCustom(String code, boolean fussy) {
 		//Use our own function to solve some issues (e.g. java.lang.NoClassDefFoundError: java.awt.Frame)
 		
 		// This matches against any uses of the size() function, whether numbers
@@ -91,7 +89,6 @@ public class Preproc extends PdePreprocessor {
 //				Base.showWarning("Time for a quick update", message, null);
 				System.err.println();
 				System.err.println();
-				editor.errorExt("Time for a quick update");
 				System.err.println("Time for a quick update:\n" + message);
 				System.err.println();
 				return null;
@@ -118,7 +115,6 @@ public class Preproc extends PdePreprocessor {
 //				Base.showWarning("Could not find sketch size", message, null);
 				System.err.println();
 				System.err.println();
-				editor.errorExt("Could not find sketch size");
 				System.err.println("Could not find sketch size:\n" + message);
 				System.err.println();
 				//	        new Exception().printStackTrace(System.out);
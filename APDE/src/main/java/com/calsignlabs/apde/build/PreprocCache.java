@@ -0,0 +1,174 @@
+package com.calsignlabs.apde.build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import processing.mode.java.preproc.PdePreprocessor;
+import processing.mode.java.preproc.PreprocessorResult;
+
+/**
+ * Remembers the output of the last run of the preprocessor, so that the ANTLR parse can be
+ * skipped when the .pde tabs haven't changed (e.g. when only a .java tab or the data folder has).
+ *
+ * Only the last result is kept. It is stored in two files: the generated .java file, and a
+ * properties file with the key and everything else that the rest of the build needs.
+ */
+public class PreprocCache {
+	private File javaFile;
+	private File propertiesFile;
+	
+	/**
+	 * @param folder where to keep the cache, outside of the folders that are wiped every build
+	 */
+	public PreprocCache(File folder) {
+		javaFile = new File(folder, "preproc-cache.java");
+		propertiesFile = new File(folder, "preproc-cache.properties");
+	}
+	
+	/**
+	 * @param key the fingerprint of everything that goes into the preprocessor
+	 * @return the cached output, or null if it was for a different key
+	 */
+	public Entry load(String key) {
+		if (!propertiesFile.exists() || !javaFile.exists()) {
+			return null;
+		}
+		
+		try {
+			Properties properties = new Properties();
+			InputStream stream = new BufferedInputStream(new FileInputStream(propertiesFile));
+			
+			try {
+				properties.load(stream);
+			} finally {
+				stream.close();
+			}
+			
+			if (!key.equals(properties.getProperty("key"))) {
+				return null;
+			}
+			
+			Entry entry = new Entry();
+			
+			entry.javaCode = new String(Build.readFully(javaFile), "UTF-8");
+			String mode = properties.getProperty("mode");
+			
+			entry.result = new PreprocessorResult(mode != null ? PdePreprocessor.Mode.valueOf(mode) : null,
+					Integer.parseInt(properties.getProperty("headerOffset")), properties.getProperty("className"),
+					split(properties.getProperty("extraImports")));
+			entry.foundMain = Boolean.parseBoolean(properties.getProperty("foundMain"));
+			
+			List<String> offsets = split(properties.getProperty("preprocOffsets"));
+			entry.preprocOffsets = new int[offsets.size()];
+			
+			for (int i = 0; i < entry.preprocOffsets.length; i ++) {
+				entry.preprocOffsets[i] = Integer.parseInt(offsets.get(i));
+			}
+			
+			return entry;
+		} catch (Exception e) {
+			//Anything wrong with the cache just means that we have to preprocess again
+			System.err.println("Failed to read the preprocessor cache");
+			e.printStackTrace();
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * Replaces the cached output.
+	 */
+	public void store(String key, Entry entry) {
+		Properties properties = new Properties();
+		properties.setProperty("key", key);
+		//pde.jar reads the mode before it has parsed the sketch, so it's usually null
+		if (entry.result.programType != null) {
+			properties.setProperty("mode", entry.result.programType.name());
+		}
+		properties.setProperty("headerOffset", Integer.toString(entry.result.headerOffset));
+		properties.setProperty("className", entry.result.className);
+		properties.setProperty("extraImports", join(entry.result.extraImports));
+		properties.setProperty("foundMain", Boolean.toString(entry.foundMain));
+		
+		List<String> offsets = new ArrayList<String>(entry.preprocOffsets.length);
+		for (int offset : entry.preprocOffsets) {
+			offsets.add(Integer.toString(offset));
+		}
+		
+		properties.setProperty("preprocOffsets", join(offsets));
+		
+		//Invalidate the old entry first so that a half-written cache is never used
+		propertiesFile.delete();
+		
+		try {
+			propertiesFile.getParentFile().mkdirs();
+			
+			OutputStream java = new BufferedOutputStream(new FileOutputStream(javaFile));
+			
+			try {
+				java.write(entry.javaCode.getBytes("UTF-8"));
+			} finally {
+				java.close();
+			}
+			
+			OutputStream stream = new BufferedOutputStream(new FileOutputStream(propertiesFile));
+			
+			try {
+				properties.store(stream, "APDE preprocessor cache");
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to write the preprocessor cache");
+			propertiesFile.delete();
+		}
+	}
+	
+	private static String join(List<String> values) {
+		StringBuilder joined = new StringBuilder();
+		
+		for (String value : values) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			
+			joined.append(value);
+		}
+		
+		return joined.toString();
+	}
+	
+	private static List<String> split(String value) {
+		if (value == null || value.length() == 0) {
+			return new ArrayList<String>();
+		}
+		
+		return new ArrayList<String>(Arrays.asList(value.split(",")));
+	}
+	
+	/**
+	 * The output of the preprocessor for one version of the sketch.
+	 */
+	public static class Entry {
+		/**
+		 * The generated main class
+		 */
+		public String javaCode;
+		public PreprocessorResult result;
+		/**
+		 * The line of the combined code that each tab starts at (0 for .java tabs)
+		 */
+		public int[] preprocOffsets;
+		public boolean foundMain;
+	}
+}
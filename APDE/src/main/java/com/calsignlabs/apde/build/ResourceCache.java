@@ -0,0 +1,159 @@
+package com.calsignlabs.apde.build;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps the outputs of AAPT (the generated R.java and the packaged .apk.res) for the last few
+ * sets of resources, keyed by the fingerprint of the resources and the manifest. All sketches
+ * are built in the same build folder, so the BuildCache alone would run AAPT again every time
+ * that the user switches to a different sketch.
+ *
+ * Both outputs for a set of resources live in the same entry folder, so they are always evicted
+ * together.
+ */
+public class ResourceCache {
+	/** The number of sets of resources to keep around, e.g. for switching between sketches */
+	private static final int MAX_ENTRIES = 8;
+	
+	private File folder;
+	
+	public ResourceCache(File folder) {
+		this.folder = folder;
+	}
+	
+	/**
+	 * Replaces the gen folder with the cached one.
+	 *
+	 * @param fingerprint the fingerprint of the resources
+	 * @param genFolder the gen folder to replace
+	 * @return whether or not the cache had the gen folder
+	 */
+	public synchronized boolean restoreGen(String fingerprint, File genFolder) throws IOException {
+		File entry = getEntry(fingerprint);
+		File cachedGen = new File(entry, "gen");
+		
+		if (!cachedGen.isDirectory()) {
+			return false;
+		}
+		
+		if (genFolder.exists()) {
+			Build.deleteFile(genFolder);
+		}
+		
+		Build.copyDir(cachedGen, genFolder);
+		
+		//Mark it as recently used
+		entry.setLastModified(System.currentTimeMillis());
+		
+		return true;
+	}
+	
+	/**
+	 * Replaces the .apk.res file with the cached one.
+	 *
+	 * @param fingerprint the fingerprint of the resources
+	 * @param apkResFile the .apk.res file to replace
+	 * @return whether or not the cache had the .apk.res file
+	 */
+	public synchronized boolean restoreApkRes(String fingerprint, File apkResFile) throws IOException {
+		File entry = getEntry(fingerprint);
+		File cachedApkRes = new File(entry, "resources.apk.res");
+		
+		if (!cachedApkRes.exists()) {
+			return false;
+		}
+		
+		Build.copyFile(cachedApkRes, apkResFile);
+		entry.setLastModified(System.currentTimeMillis());
+		
+		return true;
+	}
+	
+	/**
+	 * @param fingerprint the fingerprint of the resources
+	 * @param genFolder the gen folder that AAPT has just written
+	 */
+	public synchronized void storeGen(String fingerprint, File genFolder) throws IOException {
+		File entry = getEntry(fingerprint);
+		File cachedGen = new File(entry, "gen");
+		File tempGen = new File(entry, "gen.tmp");
+		
+		entry.mkdirs();
+		
+		//Copy to a temporary folder first so that we never end up with a half-copied gen folder
+		if (tempGen.exists()) {
+			Build.deleteFile(tempGen);
+		}
+		
+		Build.copyDir(genFolder, tempGen);
+		
+		if (cachedGen.exists()) {
+			Build.deleteFile(cachedGen);
+		}
+		
+		if (!tempGen.renameTo(cachedGen)) {
+			throw new IOException("Could not replace " + cachedGen.getAbsolutePath());
+		}
+		
+		prune();
+	}
+	
+	/**
+	 * @param fingerprint the fingerprint of the resources
+	 * @param apkResFile the .apk.res file that AAPT has just written
+	 */
+	public synchronized void storeApkRes(String fingerprint, File apkResFile) throws IOException {
+		File entry = getEntry(fingerprint);
+		File cachedApkRes = new File(entry, "resources.apk.res");
+		
+		entry.mkdirs();
+		
+		File tempApkRes = File.createTempFile(cachedApkRes.getName(), ".tmp", entry);
+		Build.copyFile(apkResFile, tempApkRes);
+		
+		if (!tempApkRes.renameTo(cachedApkRes)) {
+			tempApkRes.delete();
+			throw new IOException("Could not replace " + cachedApkRes.getAbsolutePath());
+		}
+		
+		prune();
+	}
+	
+	private File getEntry(String fingerprint) {
+		return new File(folder, fingerprint);
+	}
+	
+	/**
+	 * Deletes the least recently used entries
+	 */
+	private void prune() {
+		File[] entries = folder.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory();
+			}
+		});
+		
+		if (entries == null || entries.length <= MAX_ENTRIES) {
+			return;
+		}
+		
+		//Most recently used first
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(b.lastModified()).compareTo(a.lastModified());
+			}
+		});
+		
+		for (int i = MAX_ENTRIES; i < entries.length; i ++) {
+			if (!Build.deleteFile(entries[i])) {
+				System.err.println("Failed to delete old resources " + entries[i].getName());
+			}
+		}
+	}
+}
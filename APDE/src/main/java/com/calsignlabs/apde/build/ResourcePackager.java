@@ -0,0 +1,865 @@
+package com.calsignlabs.apde.build;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Packages the resources that APDE writes for every sketch (the manifest, layout/main.xml, and
+ * the icons) without starting AAPT. It writes the same things that AAPT would: the manifest and
+ * the layout as binary XML, a resources.arsc table, and R.java.
+ *
+ * Only the simple case is handled. If the sketch brings its own resources, or the manifest uses
+ * an attribute or a value that isn't understood here, isSupported() returns false and the build
+ * runs AAPT like it always has.
+ */
+public class ResourcePackager {
+	private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+	
+	//Chunk types, from ResourceTypes.h
+	private static final int RES_STRING_POOL_TYPE = 0x0001;
+	private static final int RES_TABLE_TYPE = 0x0002;
+	private static final int RES_XML_TYPE = 0x0003;
+	private static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+	private static final int RES_XML_END_NAMESPACE_TYPE = 0x0101;
+	private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+	private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+	private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+	private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+	private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+	private static final int RES_TABLE_TYPE_SPEC_TYPE = 0x0202;
+	
+	//Value types
+	private static final int TYPE_REFERENCE = 0x01;
+	private static final int TYPE_STRING = 0x03;
+	private static final int TYPE_INT_DEC = 0x10;
+	private static final int TYPE_INT_BOOLEAN = 0x12;
+	
+	private static final int CONFIG_DENSITY = 0x0100;
+	private static final int CONFIG_SIZE = 36;
+	
+	private static final int PACKAGE_ID = 0x7f;
+	//AAPT always makes the attributes type 1, even when there aren't any, and numbers the other
+	//types in the order it finds them: the drawables (if there are any) and then the layouts
+	private static final int TYPE_ATTR = 0x01;
+	private static final int TYPE_DRAWABLE = 0x02;
+	private static final int DRAWABLE_ICON = PACKAGE_ID << 24 | TYPE_DRAWABLE << 16;
+	
+	private static final String ICON_REFERENCE = "@drawable/icon";
+	
+	/**
+	 * The kinds of attribute values that can be encoded
+	 */
+	private enum Format {
+		STRING, INTEGER, INTEGER_OR_STRING, BOOLEAN, ENUM, ICON
+	}
+	
+	/**
+	 * The framework attributes that APDE's manifests and layout use, with their (public, so
+	 * they never change) resource IDs
+	 */
+	private static final HashMap<String, AttributeInfo> ATTRIBUTES = new HashMap<String, AttributeInfo>();
+	
+	static {
+		attribute("label", 0x01010001, Format.STRING);
+		attribute("icon", 0x01010002, Format.ICON);
+		attribute("name", 0x01010003, Format.STRING);
+		attribute("debuggable", 0x0101000f, Format.BOOLEAN);
+		attribute("screenOrientation", 0x0101001e, Format.ENUM,
+				"unspecified", -1, "landscape", 0, "portrait", 1, "user", 2, "behind", 3, "sensor", 4, "nosensor", 5,
+				"sensorLandscape", 6, "sensorPortrait", 7, "reverseLandscape", 8, "reversePortrait", 9, "fullSensor", 10,
+				"userLandscape", 11, "userPortrait", 12, "fullUser", 13, "locked", 14);
+		attribute("orientation", 0x010100c4, Format.ENUM, "horizontal", 0, "vertical", 1);
+		attribute("layout_width", 0x010100f4, Format.ENUM, "fill_parent", -1, "match_parent", -1, "wrap_content", -2);
+		attribute("layout_height", 0x010100f5, Format.ENUM, "fill_parent", -1, "match_parent", -1, "wrap_content", -2);
+		attribute("minSdkVersion", 0x0101020c, Format.INTEGER_OR_STRING);
+		attribute("versionCode", 0x0101021b, Format.INTEGER);
+		attribute("versionName", 0x0101021c, Format.STRING);
+		attribute("targetSdkVersion", 0x01010270, Format.INTEGER_OR_STRING);
+		attribute("maxSdkVersion", 0x01010271, Format.INTEGER);
+		attribute("required", 0x0101028e, Format.BOOLEAN);
+		attribute("installLocation", 0x010102b7, Format.ENUM, "auto", 0, "internalOnly", 1, "preferExternal", 2);
+	}
+	
+	/**
+	 * The densities that AAPT knows about, by their qualifier
+	 */
+	private static final LinkedHashMap<String, Integer> DENSITIES = new LinkedHashMap<String, Integer>();
+	
+	static {
+		DENSITIES.put("drawable", 0);
+		DENSITIES.put("drawable-ldpi", 120);
+		DENSITIES.put("drawable-mdpi", 160);
+		DENSITIES.put("drawable-tvdpi", 213);
+		DENSITIES.put("drawable-hdpi", 240);
+		DENSITIES.put("drawable-xhdpi", 320);
+		DENSITIES.put("drawable-xxhdpi", 480);
+		DENSITIES.put("drawable-xxxhdpi", 640);
+	}
+	
+	private File manifestFile;
+	private File resFolder;
+	
+	private Element manifest;
+	private Element layout;
+	private String packageName;
+	//The folders (e.g. "drawable-hdpi") that have an icon, in the order of DENSITIES
+	private ArrayList<String> iconFolders;
+	
+	private String unsupportedReason;
+	
+	/**
+	 * @param manifestFile the AndroidManifest.xml written by Manifest.writeBuild()
+	 * @param resFolder the res folder written by the build
+	 */
+	public ResourcePackager(File manifestFile, File resFolder) {
+		this.manifestFile = manifestFile;
+		this.resFolder = resFolder;
+	}
+	
+	/**
+	 * Reads the manifest and the resources and checks that they can be packaged without AAPT.
+	 *
+	 * @return whether or not the resources are simple enough
+	 */
+	public boolean isSupported() {
+		try {
+			unsupportedReason = check();
+		} catch (Exception e) {
+			unsupportedReason = e.toString();
+		}
+		
+		return unsupportedReason == null;
+	}
+	
+	/**
+	 * @return why the resources need AAPT, or null if they don't
+	 */
+	public String getUnsupportedReason() {
+		return unsupportedReason;
+	}
+	
+	private String check() throws IOException, SAXException {
+		iconFolders = new ArrayList<String>();
+		
+		String[] folders = resFolder.list();
+		
+		if (folders == null) {
+			return "there is no res folder";
+		}
+		
+		for (String folder : folders) {
+			String[] files = new File(resFolder, folder).list();
+			
+			if (files == null) {
+				return "res/" + folder + " isn't a folder";
+			}
+			
+			for (String file : files) {
+				if (folder.equals("layout") && file.equals("main.xml")) {
+					continue;
+				}
+				
+				if (DENSITIES.containsKey(folder) && file.equals("icon.png")) {
+					continue;
+				}
+				
+				return "res/" + folder + "/" + file + " is a custom resource";
+			}
+		}
+		
+		for (String folder : DENSITIES.keySet()) {
+			if (new File(resFolder, folder + "/icon.png").exists()) {
+				iconFolders.add(folder);
+			}
+		}
+		
+		if (!new File(resFolder, "layout/main.xml").exists()) {
+			return "there is no layout";
+		}
+		
+		manifest = parse(manifestFile);
+		layout = parse(new File(resFolder, "layout/main.xml"));
+		
+		if (!manifest.name.equals("manifest")) {
+			return "the manifest's root element is " + manifest.name;
+		}
+		
+		packageName = manifest.getAttribute(null, "package");
+		
+		if (packageName == null || packageName.length() == 0) {
+			return "the manifest has no package";
+		}
+		
+		String reason = check(manifest);
+		
+		return reason != null ? reason : check(layout);
+	}
+	
+	private String check(Element element) {
+		for (Attribute attribute : element.attributes) {
+			if (attribute.namespace == null) {
+				continue;
+			}
+			
+			if (!attribute.namespace.equals(ANDROID_NS)) {
+				return "unknown namespace " + attribute.namespace;
+			}
+			
+			AttributeInfo info = ATTRIBUTES.get(attribute.name);
+			
+			if (info == null) {
+				return "unknown attribute android:" + attribute.name;
+			}
+			
+			if (!info.canEncode(attribute.value, !iconFolders.isEmpty())) {
+				return "unknown value \"" + attribute.value + "\" for android:" + attribute.name;
+			}
+		}
+		
+		for (Element child : element.children) {
+			String reason = check(child);
+			
+			if (reason != null) {
+				return reason;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Writes R.java. Call isSupported() first.
+	 *
+	 * @param genFolder the folder to write it to
+	 */
+	public void writeR(File genFolder) throws IOException {
+		File packageFolder = new File(genFolder, packageName.replace('.', '/'));
+		packageFolder.mkdirs();
+		
+		PrintWriter writer = new PrintWriter(new File(packageFolder, "R.java"), "UTF-8");
+		
+		try {
+			writer.println("/* AUTO-GENERATED FILE.  DO NOT MODIFY.");
+			writer.println(" *");
+			writer.println(" * This class was automatically generated by APDE");
+			writer.println(" * from the resource data it found.  It");
+			writer.println(" * should not be modified by hand.");
+			writer.println(" */");
+			writer.println();
+			writer.println("package " + packageName + ";");
+			writer.println();
+			writer.println("public final class R {");
+			writer.println("    public static final class attr {");
+			writer.println("    }");
+			
+			if (!iconFolders.isEmpty()) {
+				writer.println("    public static final class drawable {");
+				writer.println("        public static final int icon=" + hex(DRAWABLE_ICON) + ";");
+				writer.println("    }");
+			}
+			
+			writer.println("    public static final class layout {");
+			writer.println("        public static final int main=" + hex(PACKAGE_ID << 24 | getLayoutType() << 16) + ";");
+			writer.println("    }");
+			writer.println("}");
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Writes the packaged resources, like "aapt package -F". Call isSupported() first.
+	 *
+	 * @param apkResFile the file to write
+	 */
+	public void writeApkRes(File apkResFile) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(apkResFile)));
+		
+		try {
+			writeEntry(zip, "AndroidManifest.xml", compileXml(manifest), false);
+			writeEntry(zip, "resources.arsc", compileTable(), true);
+			writeEntry(zip, "res/layout/main.xml", compileXml(layout), false);
+			
+			//PNGs are already compressed
+			for (String folder : iconFolders) {
+				writeEntry(zip, "res/" + folder + "/icon.png", Build.readFully(new File(resFolder, folder + "/icon.png")), true);
+			}
+		} finally {
+			zip.close();
+		}
+	}
+	
+	private static void writeEntry(ZipOutputStream zip, String name, byte[] contents, boolean stored) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		
+		if (stored) {
+			CRC32 crc = new CRC32();
+			crc.update(contents);
+			
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(contents.length);
+			entry.setCompressedSize(contents.length);
+			entry.setCrc(crc.getValue());
+		}
+		
+		zip.putNextEntry(entry);
+		zip.write(contents);
+		zip.closeEntry();
+	}
+	
+	/**
+	 * Compiles an XML file into Android's binary XML format.
+	 */
+	private byte[] compileXml(Element root) throws IOException {
+		StringPool pool = new StringPool();
+		
+		//The attribute names that have resource IDs come first, so that they line up with the resource map
+		ArrayList<Integer> resourceIds = new ArrayList<Integer>();
+		collectResourceIds(root, pool, resourceIds);
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		
+		int uri = pool.get(ANDROID_NS);
+		int prefix = pool.get(root.androidPrefix != null ? root.androidPrefix : "android");
+		
+		writeNamespace(body, RES_XML_START_NAMESPACE_TYPE, root.line, prefix, uri);
+		writeElement(body, root, pool);
+		writeNamespace(body, RES_XML_END_NAMESPACE_TYPE, root.line, prefix, uri);
+		
+		ByteArrayOutputStream resourceMap = new ByteArrayOutputStream();
+		writeChunkHeader(resourceMap, RES_XML_RESOURCE_MAP_TYPE, 8, 8 + resourceIds.size() * 4);
+		for (int id : resourceIds) {
+			writeInt(resourceMap, id);
+		}
+		
+		byte[] strings = pool.toByteArray();
+		
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		writeChunkHeader(xml, RES_XML_TYPE, 8, 8 + strings.length + resourceMap.size() + body.size());
+		xml.write(strings);
+		resourceMap.writeTo(xml);
+		body.writeTo(xml);
+		
+		return xml.toByteArray();
+	}
+	
+	private void collectResourceIds(Element element, StringPool pool, List<Integer> resourceIds) {
+		for (Attribute attribute : element.attributes) {
+			if (attribute.namespace != null) {
+				int id = ATTRIBUTES.get(attribute.name).id;
+				
+				if (!resourceIds.contains(id)) {
+					pool.getAttributeName(attribute.name);
+					resourceIds.add(id);
+				}
+			}
+		}
+		
+		for (Element child : element.children) {
+			collectResourceIds(child, pool, resourceIds);
+		}
+	}
+	
+	private void writeElement(ByteArrayOutputStream out, Element element, StringPool pool) throws IOException {
+		//The framework expects the attributes to be sorted by resource ID
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(element.attributes);
+		Collections.sort(attributes, new Comparator<Attribute>() {
+			@Override
+			public int compare(Attribute a, Attribute b) {
+				return Long.valueOf(a.getResourceId() & 0xFFFFFFFFL).compareTo(b.getResourceId() & 0xFFFFFFFFL);
+			}
+		});
+		
+		writeChunkHeader(out, RES_XML_START_ELEMENT_TYPE, 16, 16 + 20 + attributes.size() * 20);
+		writeInt(out, element.line);
+		writeInt(out, -1); //Comment
+		writeInt(out, -1); //Namespace
+		writeInt(out, pool.get(element.name));
+		writeShort(out, 20); //Start of the attributes
+		writeShort(out, 20); //Size of each attribute
+		writeShort(out, attributes.size());
+		writeShort(out, 0); //The "id" attribute
+		writeShort(out, 0); //The "class" attribute
+		writeShort(out, 0); //The "style" attribute
+		
+		for (Attribute attribute : attributes) {
+			if (attribute.namespace != null) {
+				AttributeInfo info = ATTRIBUTES.get(attribute.name);
+				
+				writeInt(out, pool.get(ANDROID_NS));
+				writeInt(out, pool.getAttributeName(attribute.name));
+				
+				if (info.format == Format.STRING || (info.format == Format.INTEGER_OR_STRING && !isInteger(attribute.value))) {
+					int value = pool.get(attribute.value);
+					writeInt(out, value);
+					writeValue(out, TYPE_STRING, value);
+				} else {
+					writeInt(out, -1);
+					writeValue(out, info.getType(), info.encode(attribute.value));
+				}
+			} else {
+				int value = pool.get(attribute.value);
+				
+				writeInt(out, -1);
+				writeInt(out, pool.get(attribute.name));
+				writeInt(out, value);
+				writeValue(out, TYPE_STRING, value);
+			}
+		}
+		
+		for (Element child : element.children) {
+			writeElement(out, child, pool);
+		}
+		
+		writeChunkHeader(out, RES_XML_END_ELEMENT_TYPE, 16, 24);
+		writeInt(out, element.endLine);
+		writeInt(out, -1); //Comment
+		writeInt(out, -1); //Namespace
+		writeInt(out, pool.get(element.name));
+	}
+	
+	private static void writeNamespace(ByteArrayOutputStream out, int type, int line, int prefix, int uri) {
+		writeChunkHeader(out, type, 16, 24);
+		writeInt(out, line);
+		writeInt(out, -1); //Comment
+		writeInt(out, prefix);
+		writeInt(out, uri);
+	}
+	
+	/**
+	 * Builds resources.arsc, with the icon in each density and the layout.
+	 */
+	private byte[] compileTable() throws IOException {
+		StringPool values = new StringPool();
+		StringPool types = new StringPool();
+		StringPool keys = new StringPool();
+		
+		ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+		
+		//Like AAPT, the attributes get a type with no entries
+		types.get("attr");
+		writeTypeSpecEmpty(chunks, TYPE_ATTR);
+		
+		if (!iconFolders.isEmpty()) {
+			types.get("drawable");
+			int key = keys.get("icon");
+			
+			writeTypeSpec(chunks, TYPE_DRAWABLE, iconFolders.size() > 1 ? CONFIG_DENSITY : 0);
+			
+			for (String folder : iconFolders) {
+				writeType(chunks, TYPE_DRAWABLE, DENSITIES.get(folder), key, values.get("res/" + folder + "/icon.png"));
+			}
+		}
+		
+		types.get("layout");
+		writeTypeSpec(chunks, getLayoutType(), 0);
+		writeType(chunks, getLayoutType(), 0, keys.get("main"), values.get("res/layout/main.xml"));
+		
+		byte[] typeStrings = types.toByteArray();
+		byte[] keyStrings = keys.toByteArray();
+		
+		int packageHeaderSize = 284;
+		
+		ByteArrayOutputStream packageChunk = new ByteArrayOutputStream();
+		writeChunkHeader(packageChunk, RES_TABLE_PACKAGE_TYPE, packageHeaderSize, packageHeaderSize + typeStrings.length + keyStrings.length + chunks.size());
+		writeInt(packageChunk, PACKAGE_ID);
+		
+		//The name is a fixed-size UTF-16 string
+		char[] name = Arrays.copyOf(packageName.toCharArray(), 128);
+		for (char c : name) {
+			writeShort(packageChunk, c);
+		}
+		
+		writeInt(packageChunk, packageHeaderSize); //Type strings
+		writeInt(packageChunk, types.size()); //Last public type
+		writeInt(packageChunk, packageHeaderSize + typeStrings.length); //Key strings
+		writeInt(packageChunk, keys.size()); //Last public key
+		
+		packageChunk.write(typeStrings);
+		packageChunk.write(keyStrings);
+		chunks.writeTo(packageChunk);
+		
+		byte[] valueStrings = values.toByteArray();
+		
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		writeChunkHeader(table, RES_TABLE_TYPE, 12, 12 + valueStrings.length + packageChunk.size());
+		writeInt(table, 1); //Package count
+		table.write(valueStrings);
+		packageChunk.writeTo(table);
+		
+		return table.toByteArray();
+	}
+	
+	/**
+	 * @return the type ID of the layouts, which depends on whether or not there are drawables
+	 */
+	private int getLayoutType() {
+		return iconFolders.isEmpty() ? TYPE_DRAWABLE : TYPE_DRAWABLE + 1;
+	}
+	
+	private static void writeTypeSpec(ByteArrayOutputStream out, int type, int flags) {
+		//Every type has exactly one entry
+		writeChunkHeader(out, RES_TABLE_TYPE_SPEC_TYPE, 16, 16 + 4);
+		writeInt(out, type);
+		writeInt(out, 1);
+		writeInt(out, flags);
+	}
+	
+	private static void writeTypeSpecEmpty(ByteArrayOutputStream out, int type) {
+		writeChunkHeader(out, RES_TABLE_TYPE_SPEC_TYPE, 16, 16);
+		writeInt(out, type);
+		writeInt(out, 0);
+	}
+	
+	private static void writeType(ByteArrayOutputStream out, int type, int density, int key, int value) {
+		int headerSize = 20 + CONFIG_SIZE;
+		int entriesStart = headerSize + 4;
+		
+		writeChunkHeader(out, RES_TABLE_TYPE_TYPE, headerSize, entriesStart + 8 + 8);
+		writeInt(out, type);
+		writeInt(out, 1); //Entry count
+		writeInt(out, entriesStart);
+		
+		//ResTable_config, everything but the density is "any"
+		writeInt(out, CONFIG_SIZE);
+		writeInt(out, 0); //MCC, MNC
+		writeInt(out, 0); //Language, country
+		writeShort(out, 0); //Orientation, touchscreen
+		writeShort(out, density);
+		for (int i = 16; i < CONFIG_SIZE; i += 4) {
+			writeInt(out, 0);
+		}
+		
+		writeInt(out, 0); //The offset of the only entry
+		
+		//ResTable_entry
+		writeShort(out, 8);
+		writeShort(out, 0); //Flags
+		writeInt(out, key);
+		
+		writeValue(out, TYPE_STRING, value);
+	}
+	
+	private static void writeValue(ByteArrayOutputStream out, int type, int data) {
+		writeShort(out, 8); //Size
+		out.write(0);
+		out.write(type);
+		writeInt(out, data);
+	}
+	
+	private static void writeChunkHeader(ByteArrayOutputStream out, int type, int headerSize, int size) {
+		writeShort(out, type);
+		writeShort(out, headerSize);
+		writeInt(out, size);
+	}
+	
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value & 0xFF);
+		out.write((value >> 8) & 0xFF);
+	}
+	
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		writeShort(out, value & 0xFFFF);
+		writeShort(out, (value >> 16) & 0xFFFF);
+	}
+	
+	private static String hex(int value) {
+		return String.format(Locale.US, "0x%08x", value);
+	}
+	
+	private static boolean isInteger(String value) {
+		try {
+			Integer.parseInt(value.trim());
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	private static Element parse(File file) throws IOException, SAXException {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		
+		TreeBuilder builder = new TreeBuilder();
+		InputStream stream = new BufferedInputStream(new FileInputStream(file));
+		
+		try {
+			factory.newSAXParser().parse(new InputSource(stream), builder);
+		} catch (javax.xml.parsers.ParserConfigurationException e) {
+			throw new SAXException(e);
+		} finally {
+			stream.close();
+		}
+		
+		return builder.root;
+	}
+	
+	private static void attribute(String name, int id, Format format, Object... enumValues) {
+		AttributeInfo info = new AttributeInfo(id, format);
+		
+		for (int i = 0; i < enumValues.length; i += 2) {
+			info.enumValues.put((String) enumValues[i], (Integer) enumValues[i + 1]);
+		}
+		
+		ATTRIBUTES.put(name, info);
+	}
+	
+	private static class AttributeInfo {
+		private int id;
+		private Format format;
+		private HashMap<String, Integer> enumValues;
+		
+		public AttributeInfo(int id, Format format) {
+			this.id = id;
+			this.format = format;
+			
+			enumValues = new HashMap<String, Integer>();
+		}
+		
+		/**
+		 * @param hasIcon whether or not there is an icon to refer to
+		 */
+		public boolean canEncode(String value, boolean hasIcon) {
+			//References to other resources and theme attributes need AAPT
+			if (format != Format.ICON && (value.startsWith("@") || value.startsWith("?"))) {
+				return false;
+			}
+			
+			switch (format) {
+			case STRING:
+			case INTEGER_OR_STRING:
+				return true;
+			case INTEGER:
+				return isInteger(value);
+			case BOOLEAN:
+				return value.equals("true") || value.equals("false");
+			case ENUM:
+				return enumValues.containsKey(value);
+			case ICON:
+				return hasIcon && value.equals(ICON_REFERENCE);
+			default:
+				return false;
+			}
+		}
+		
+		public int getType() {
+			switch (format) {
+			case BOOLEAN:
+				return TYPE_INT_BOOLEAN;
+			case ICON:
+				return TYPE_REFERENCE;
+			default:
+				return TYPE_INT_DEC;
+			}
+		}
+		
+		public int encode(String value) {
+			switch (format) {
+			case BOOLEAN:
+				return value.equals("true") ? -1 : 0;
+			case ENUM:
+				return enumValues.get(value);
+			case ICON:
+				return DRAWABLE_ICON;
+			default:
+				return Integer.parseInt(value.trim());
+			}
+		}
+	}
+	
+	private static class Element {
+		private String name;
+		private int line;
+		private int endLine;
+		//The prefix that the file uses for the Android namespace
+		private String androidPrefix;
+		
+		private ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		private ArrayList<Element> children = new ArrayList<Element>();
+		
+		public String getAttribute(String namespace, String name) {
+			for (Attribute attribute : attributes) {
+				if (attribute.name.equals(name) && (namespace == null ? attribute.namespace == null : namespace.equals(attribute.namespace))) {
+					return attribute.value;
+				}
+			}
+			
+			return null;
+		}
+	}
+	
+	private static class Attribute {
+		private String namespace;
+		private String name;
+		private String value;
+		
+		public int getResourceId() {
+			return namespace != null ? ATTRIBUTES.get(name).id : 0;
+		}
+	}
+	
+	/**
+	 * Builds a tree of Elements with SAX, which is available both on Android and on desktop Java.
+	 */
+	private static class TreeBuilder extends DefaultHandler {
+		private Element root;
+		private ArrayList<Element> stack = new ArrayList<Element>();
+		private Locator locator;
+		private String androidPrefix;
+		
+		@Override
+		public void setDocumentLocator(Locator locator) {
+			this.locator = locator;
+		}
+		
+		@Override
+		public void startPrefixMapping(String prefix, String uri) {
+			if (uri.equals(ANDROID_NS)) {
+				androidPrefix = prefix;
+			}
+		}
+		
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+			if (uri.length() > 0) {
+				throw new SAXException("Element " + qName + " has a namespace");
+			}
+			
+			Element element = new Element();
+			element.name = localName;
+			element.line = locator != null ? locator.getLineNumber() : 0;
+			
+			for (int i = 0; i < attributes.getLength(); i ++) {
+				Attribute attribute = new Attribute();
+				attribute.namespace = attributes.getURI(i).length() > 0 ? attributes.getURI(i) : null;
+				attribute.name = attributes.getLocalName(i);
+				attribute.value = attributes.getValue(i);
+				
+				element.attributes.add(attribute);
+			}
+			
+			if (root == null) {
+				root = element;
+				root.androidPrefix = androidPrefix;
+			} else {
+				stack.get(stack.size() - 1).children.add(element);
+			}
+			
+			stack.add(element);
+		}
+		
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			Element element = stack.remove(stack.size() - 1);
+			element.endLine = locator != null ? locator.getLineNumber() : element.line;
+		}
+	}
+	
+	/**
+	 * A UTF-16 string pool. Attribute names that have resource IDs are kept apart from the other
+	 * strings, because they have to line up with the resource map.
+	 */
+	private static class StringPool {
+		private ArrayList<String> strings = new ArrayList<String>();
+		private HashMap<String, Integer> indices = new HashMap<String, Integer>();
+		private HashMap<String, Integer> attributeNames = new HashMap<String, Integer>();
+		
+		public int get(String string) {
+			Integer index = indices.get(string);
+			
+			if (index == null) {
+				index = strings.size();
+				strings.add(string);
+				indices.put(string, index);
+			}
+			
+			return index;
+		}
+		
+		public int getAttributeName(String name) {
+			Integer index = attributeNames.get(name);
+			
+			if (index == null) {
+				index = strings.size();
+				strings.add(name);
+				attributeNames.put(name, index);
+			}
+			
+			return index;
+		}
+		
+		public int size() {
+			return strings.size();
+		}
+		
+		public byte[] toByteArray() throws IOException {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			int[] offsets = new int[strings.size()];
+			
+			for (int i = 0; i < offsets.length; i ++) {
+				String string = strings.get(i);
+				offsets[i] = data.size();
+				
+				if (string.length() > 0x7FFF) {
+					throw new IOException("String too long for the string pool");
+				}
+				
+				writeShort(data, string.length());
+				for (int j = 0; j < string.length(); j ++) {
+					writeShort(data, string.charAt(j));
+				}
+				writeShort(data, 0);
+			}
+			
+			//The chunk has to end on a four-byte boundary
+			while (data.size() % 4 != 0) {
+				data.write(0);
+			}
+			
+			int headerSize = 28;
+			int stringsStart = headerSize + offsets.length * 4;
+			
+			ByteArrayOutputStream pool = new ByteArrayOutputStream();
+			writeChunkHeader(pool, RES_STRING_POOL_TYPE, headerSize, stringsStart + data.size());
+			writeInt(pool, offsets.length);
+			writeInt(pool, 0); //Style count
+			writeInt(pool, 0); //Flags (UTF-16, not sorted)
+			writeInt(pool, stringsStart);
+			writeInt(pool, 0); //Styles start
+			
+			for (int offset : offsets) {
+				writeInt(pool, offset);
+			}
+			
+			data.writeTo(pool);
+			
+			return pool.toByteArray();
+		}
+	}
+}
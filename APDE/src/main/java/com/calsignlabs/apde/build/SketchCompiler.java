@@ -0,0 +1,350 @@
+package com.calsignlabs.apde.build;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.core.compiler.CompilationProgress;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.Compiler;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compiles sketches with ECJ's compiler API directly instead of going through the batch
+ * compiler. The class path (android.jar, processing-core.jar, the libraries) is opened and
+ * indexed once and then kept open between builds, until the set of libraries changes.
+ *
+ * The class path is never closed under a compilation that is running. Releasing the compiler
+ * (e.g. from onLowMemory() on the UI thread) doesn't wait for one, the compilation closes the
+ * class path itself when it's done.
+ */
+public class SketchCompiler {
+	private static SketchCompiler instance;
+	
+	private String classPathKey;
+	private String[] classPathNames;
+	//Null once the class path has been closed
+	private ResidentNameEnvironment nameEnvironment;
+	private CompilerOptions compilerOptions;
+	//Held while compiling, the class path is only closed while holding it
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private SketchCompiler(List<File> classPath, String classPathKey) {
+		this.classPathKey = classPathKey;
+		
+		classPathNames = new String[classPath.size()];
+		for (int i = 0; i < classPathNames.length; i ++) {
+			classPathNames[i] = classPath.get(i).getAbsolutePath();
+		}
+		
+		nameEnvironment = new ResidentNameEnvironment(new FileSystem(classPathNames, null, "UTF-8"));
+		compilerOptions = new CompilerOptions(getOptions());
+	}
+	
+	/**
+	 * Gets the shared compiler, creating a new one if the class path has changed since the
+	 * last build.
+	 *
+	 * @param classPath the JARs to compile against, in order: android.jar first
+	 * @return the compiler
+	 */
+	public static SketchCompiler get(List<File> classPath) {
+		//A library could be replaced without changing its name, so check the timestamps, too
+		String classPathKey = new BuildCache.Fingerprint().addStamps(classPath).toString();
+		
+		synchronized (SketchCompiler.class) {
+			if (instance == null || !instance.classPathKey.equals(classPathKey)) {
+				if (instance != null) {
+					instance.disposeIfIdle();
+				}
+				
+				instance = new SketchCompiler(classPath, classPathKey);
+			}
+			
+			return instance;
+		}
+	}
+	
+	/**
+	 * Closes the class path's JAR files. Call this when we won't be building for a while. If a
+	 * sketch is being compiled, they are closed when it's done instead.
+	 */
+	public static void release() {
+		synchronized (SketchCompiler.class) {
+			if (instance != null) {
+				instance.disposeIfIdle();
+				instance = null;
+			}
+		}
+	}
+	
+	/**
+	 * Call while holding the class lock. If a compilation is running, it sees that this compiler
+	 * isn't the current one anymore when it finishes, and disposes of it then.
+	 */
+	private void disposeIfIdle() {
+		if (lock.tryLock()) {
+			try {
+				dispose();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	private void dispose() {
+		if (nameEnvironment != null) {
+			nameEnvironment.dispose();
+			nameEnvironment = null;
+		}
+	}
+	
+	/**
+	 * The equivalent of the "-1.6 -target 1.6 -proc:none -warn:-unusedImport" batch compiler options
+	 */
+	private static Map<String, String> getOptions() {
+		Map<String, String> options = new HashMap<String, String>();
+		
+		options.put(CompilerOptions.OPTION_Source, CompilerOptions.VERSION_1_6);
+		options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_6);
+		options.put(CompilerOptions.OPTION_TargetPlatform, CompilerOptions.VERSION_1_6);
+		options.put(CompilerOptions.OPTION_Encoding, "UTF-8");
+		
+		options.put(CompilerOptions.OPTION_LineNumberAttribute, CompilerOptions.GENERATE);
+		options.put(CompilerOptions.OPTION_SourceFileAttribute, CompilerOptions.GENERATE);
+		
+		//Disable annotation processors...
+		options.put(CompilerOptions.OPTION_Process_Annotations, CompilerOptions.DISABLED);
+		//Disable warning for unused imports (the preprocessor gives us a lot of them, so this is just a lot of noise)
+		options.put(CompilerOptions.OPTION_ReportUnusedImport, CompilerOptions.IGNORE);
+		
+		return options;
+	}
+	
+	/**
+	 * Compiles the sources and writes the class files to the output folder.
+	 *
+	 * @param sources the .java files to compile
+	 * @param outputFolder the folder to write the class files to
+	 * @param out the stream for warnings and verbose output
+	 * @param err the stream for errors
+	 * @param progress used to cancel the compilation, may be null
+	 * @param verbose whether or not to report each file
+	 * @return whether or not the compilation succeeded
+	 * @throws IOException
+	 */
+	public boolean compile(List<File> sources, final File outputFolder, final PrintWriter out, final PrintWriter err,
+			CompilationProgress progress, final boolean verbose) throws IOException {
+		lock.lock();
+		
+		try {
+			return compileLocked(sources, outputFolder, out, err, progress, verbose);
+		} finally {
+			//Atomically with release(), so that either it or we close a released class path
+			synchronized (SketchCompiler.class) {
+				if (instance != this) {
+					dispose();
+				}
+				
+				lock.unlock();
+			}
+		}
+	}
+	
+	private boolean compileLocked(List<File> sources, final File outputFolder, final PrintWriter out, final PrintWriter err,
+			CompilationProgress progress, final boolean verbose) throws IOException {
+		ICompilationUnit[] units = new ICompilationUnit[sources.size()];
+		for (int i = 0; i < units.length; i ++) {
+			File source = sources.get(i);
+			units[i] = new CompilationUnit(readFile(source), source.getAbsolutePath(), "UTF-8");
+		}
+		
+		final boolean[] success = {true};
+		final int[] problemCount = {0};
+		
+		ICompilerRequestor requestor = new ICompilerRequestor() {
+			@Override
+			public void acceptResult(CompilationResult result) {
+				if (result.hasProblems()) {
+					for (CategorizedProblem problem : result.getAllProblems()) {
+						problemCount[0] ++;
+						
+						PrintWriter writer = problem.isError() ? err : out;
+						writer.println("----------");
+						writer.println(problemCount[0] + ". " + (problem.isError() ? "ERROR" : "WARNING") + " in "
+								+ new String(problem.getOriginatingFileName()) + " (at line " + problem.getSourceLineNumber() + ")");
+						writer.println(problem.getMessage());
+					}
+				}
+				
+				if (result.hasErrors()) {
+					success[0] = false;
+					return;
+				}
+				
+				for (ClassFile classFile : result.getClassFiles()) {
+					File output = new File(outputFolder, new String(classFile.fileName()).replace('/', File.separatorChar) + ".class");
+					
+					if (verbose) {
+						out.println("Writing " + output.getAbsolutePath());
+					}
+					
+					try {
+						writeFile(classFile.getBytes(), output);
+					} catch (IOException e) {
+						err.println("Failed to write " + output.getAbsolutePath());
+						e.printStackTrace();
+						success[0] = false;
+					}
+				}
+			}
+		};
+		
+		//Released between get() and now, so open the class path again just for this build
+		if (nameEnvironment == null) {
+			nameEnvironment = new ResidentNameEnvironment(new FileSystem(classPathNames, null, "UTF-8"));
+		}
+		
+		Compiler compiler = new Compiler(nameEnvironment, DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+				compilerOptions, requestor, new DefaultProblemFactory(Locale.getDefault()), out, progress);
+		
+		try {
+			compiler.compile(units);
+		} finally {
+			out.flush();
+			err.flush();
+		}
+		
+		if (progress != null && progress.isCanceled()) {
+			return false;
+		}
+		
+		if (problemCount[0] > 0) {
+			err.println("----------");
+			err.println(problemCount[0] + (problemCount[0] == 1 ? " problem" : " problems"));
+			err.flush();
+		}
+		
+		return success[0];
+	}
+	
+	/**
+	 * @param folders the folders to search
+	 * @return all of the .java files in the folders and their subfolders
+	 */
+	public static List<File> listSources(File... folders) {
+		ArrayList<File> sources = new ArrayList<File>();
+		
+		for (File folder : folders) {
+			listSources(folder, sources);
+		}
+		
+		return sources;
+	}
+	
+	private static void listSources(File folder, List<File> sources) {
+		File[] files = folder.listFiles();
+		
+		if (files == null) {
+			return;
+		}
+		
+		for (File file : files) {
+			if (file.isDirectory()) {
+				listSources(file, sources);
+			} else if (file.getName().endsWith(".java")) {
+				sources.add(file);
+			}
+		}
+	}
+	
+	private static char[] readFile(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		
+		try {
+			StringBuilder contents = new StringBuilder((int) file.length());
+			char[] buffer = new char[8192];
+			int read;
+			
+			while ((read = reader.read(buffer)) != -1) {
+				contents.append(buffer, 0, read);
+			}
+			
+			char[] chars = new char[contents.length()];
+			contents.getChars(0, chars.length, chars, 0);
+			
+			return chars;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static void writeFile(byte[] bytes, File file) throws IOException {
+		file.getParentFile().mkdirs();
+		
+		OutputStream stream = new FileOutputStream(file);
+		
+		try {
+			stream.write(bytes);
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * The compiler calls cleanup() at the end of every compilation, which would close the
+	 * JAR files. This keeps them open until we actually want to get rid of them.
+	 */
+	private static class ResidentNameEnvironment implements INameEnvironment {
+		private FileSystem fileSystem;
+		
+		public ResidentNameEnvironment(FileSystem fileSystem) {
+			this.fileSystem = fileSystem;
+		}
+		
+		@Override
+		public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+			return fileSystem.findType(compoundTypeName);
+		}
+		
+		@Override
+		public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+			return fileSystem.findType(typeName, packageName);
+		}
+		
+		@Override
+		public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+			return fileSystem.isPackage(parentPackageName, packageName);
+		}
+		
+		@Override
+		public void cleanup() {
+			//Keep everything open for the next build
+		}
+		
+		public void dispose() {
+			fileSystem.cleanup();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.calsignlabs.apde.build;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Keeps the build tools that are packaged in APDE's assets (android.jar, AAPT, the
+ * Processing core library, etc.) extracted in the temp folder. Each asset is only
+ * extracted once per version of APDE; later builds just check that the extracted
+ * copy is still intact, by its size and timestamp or, if those changed, by its SHA-1.
+ */
+public class ToolchainCache {
+	public static final String INDEX_FILENAME = "toolchain.properties";
+	
+	private File folder;
+	private int versionCode;
+	
+	private File indexFile;
+	private Properties index;
+	
+	/**
+	 * @param folder the folder to extract the assets to
+	 * @param versionCode the version code of APDE, extracted assets from other versions are discarded
+	 */
+	public ToolchainCache(File folder, int versionCode) {
+		this.folder = folder;
+		this.versionCode = versionCode;
+		
+		indexFile = new File(folder, INDEX_FILENAME);
+		index = new Properties();
+		
+		if (indexFile.exists()) {
+			try {
+				InputStream stream = new BufferedInputStream(new FileInputStream(indexFile));
+				try {
+					index.load(stream);
+				} finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				//Just extract everything again
+				index.clear();
+			}
+		}
+	}
+	
+	public File getFolder() {
+		return folder;
+	}
+	
+	/**
+	 * Extracts an asset if it hasn't been extracted already.
+	 *
+	 * @param environment the environment to read the asset from
+	 * @param assetName the path of the asset
+	 * @param dest the location to extract to
+	 * @return the destination file
+	 * @throws IOException
+	 */
+	public File extract(BuildEnvironment environment, String assetName, File dest) throws IOException {
+		//Builds that run at the same time share the temp folder, so they take turns extracting
+		synchronized (ToolchainCache.class) {
+			return extractLocked(environment, assetName, dest);
+		}
+	}
+	
+	private File extractLocked(BuildEnvironment environment, String assetName, File dest) throws IOException {
+		String key = dest.getName();
+		
+		if (isCurrent(key, assetName, dest)) {
+			return dest;
+		}
+		
+		if (isIntact(key, assetName, dest)) {
+			//Only the timestamp changed (e.g. the file was restored from a backup), remember the
+			//new one so that the file doesn't have to be read again next time
+			index.setProperty(key + ".length", Long.toString(dest.length()));
+			index.setProperty(key + ".modified", Long.toString(dest.lastModified()));
+			
+			save();
+			
+			return dest;
+		}
+		
+		//Forget about the old copy first, in case we get interrupted
+		index.remove(key + ".asset");
+		
+		InputStream inputStream = environment.openAsset(assetName);
+		String checksum;
+		
+		try {
+			checksum = copy(inputStream, dest);
+		} finally {
+			inputStream.close();
+		}
+		
+		index.setProperty(key + ".asset", assetName);
+		index.setProperty(key + ".version", Integer.toString(versionCode));
+		index.setProperty(key + ".sha1", checksum);
+		index.setProperty(key + ".length", Long.toString(dest.length()));
+		index.setProperty(key + ".modified", Long.toString(dest.lastModified()));
+		
+		save();
+		
+		return dest;
+	}
+	
+	/**
+	 * @return whether or not the asset from this version of APDE was extracted to the destination
+	 * file, which might have been changed since
+	 */
+	private boolean isExtracted(String key, String assetName, File dest) {
+		return dest.exists()
+				&& assetName.equals(index.getProperty(key + ".asset"))
+				&& Integer.toString(versionCode).equals(index.getProperty(key + ".version"));
+	}
+	
+	/**
+	 * @return whether or not the destination file holds the right asset from this version of APDE
+	 */
+	private boolean isCurrent(String key, String assetName, File dest) {
+		//Checking the size and timestamp is enough to catch truncated or replaced files
+		//without having to read through the whole thing again
+		return isExtracted(key, assetName, dest)
+				&& Long.toString(dest.length()).equals(index.getProperty(key + ".length"))
+				&& Long.toString(dest.lastModified()).equals(index.getProperty(key + ".modified"));
+	}
+	
+	/**
+	 * Checks the contents of the destination file against the checksum of the asset, for when the
+	 * size or the timestamp don't match.
+	 *
+	 * @return whether or not the destination file still holds the right asset
+	 */
+	private boolean isIntact(String key, String assetName, File dest) throws IOException {
+		String checksum = index.getProperty(key + ".sha1");
+		
+		if (checksum == null || !isExtracted(key, assetName, dest)) {
+			return false;
+		}
+		
+		InputStream inputStream = new FileInputStream(dest);
+		
+		try {
+			return checksum.equals(copy(inputStream, null));
+		} finally {
+			inputStream.close();
+		}
+	}
+	
+	private void save() throws IOException {
+		OutputStream stream = new FileOutputStream(indexFile);
+		try {
+			index.store(stream, "APDE toolchain cache");
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Copies the stream to the destination file.
+	 *
+	 * @param dest the file to copy to, or null to only compute the checksum
+	 * @return the SHA-1 checksum of the stream's contents
+	 */
+	private static String copy(InputStream inputStream, File dest) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		
+		OutputStream outputStream = dest != null ? new FileOutputStream(dest) : null;
+		
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			int length;
+			
+			while ((length = inputStream.read(buffer)) != -1) {
+				if (outputStream != null) {
+					outputStream.write(buffer, 0, length);
+				}
+				
+				digest.update(buffer, 0, length);
+			}
+		} finally {
+			if (outputStream != null) {
+				outputStream.close();
+			}
+		}
+		
+		return BuildCache.toHex(digest.digest());
+	}
+}
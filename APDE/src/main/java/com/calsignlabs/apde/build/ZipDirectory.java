@@ -0,0 +1,311 @@
+package com.calsignlabs.apde.build;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file, so that its entries can be copied into another zip
+ * as they are (still compressed). java.util.zip.ZipFile only gives us the inflated contents.
+ */
+public class ZipDirectory implements Closeable {
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	
+	private RandomAccessFile file;
+	
+	private List<Entry> entries;
+	private HashMap<String, Entry> entriesByName;
+	
+	private byte[] buffer = new byte[16 * 1024];
+	
+	public ZipDirectory(File zipFile) throws IOException {
+		file = new RandomAccessFile(zipFile, "r");
+		
+		try {
+			readCentralDirectory();
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+	
+	private void readCentralDirectory() throws IOException {
+		//The end of central directory record is at the end of the file, followed by a comment of up to 64 KB
+		long length = file.length();
+		int tailLength = (int) Math.min(length, 22 + 0xFFFF);
+		byte[] tail = new byte[tailLength];
+		
+		file.seek(length - tailLength);
+		file.readFully(tail);
+		
+		int eocd = -1;
+		
+		for (int i = tailLength - 22; i >= 0; i --) {
+			if (readInt(tail, i) == EOCD_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		}
+		
+		if (eocd == -1) {
+			throw new ZipException("Not a zip file");
+		}
+		
+		int count = readShort(tail, eocd + 10);
+		long centralSize = readInt(tail, eocd + 12) & 0xFFFFFFFFL;
+		long centralOffset = readInt(tail, eocd + 16) & 0xFFFFFFFFL;
+		
+		byte[] central = new byte[(int) centralSize];
+		file.seek(centralOffset);
+		file.readFully(central);
+		
+		entries = new ArrayList<Entry>(count);
+		entriesByName = new HashMap<String, Entry>(count * 2);
+		
+		int position = 0;
+		
+		for (int i = 0; i < count; i ++) {
+			if (position + 46 > central.length || readInt(central, position) != CENTRAL_SIGNATURE) {
+				throw new ZipException("Corrupt central directory");
+			}
+			
+			Entry entry = new Entry();
+			entry.flags = readShort(central, position + 8);
+			entry.method = readShort(central, position + 10);
+			entry.dosTime = readInt(central, position + 12);
+			entry.crc = readInt(central, position + 16) & 0xFFFFFFFFL;
+			entry.compressedSize = readInt(central, position + 20) & 0xFFFFFFFFL;
+			entry.size = readInt(central, position + 24) & 0xFFFFFFFFL;
+			
+			int nameLength = readShort(central, position + 28);
+			int extraLength = readShort(central, position + 30);
+			int commentLength = readShort(central, position + 32);
+			
+			entry.localHeaderOffset = readInt(central, position + 42) & 0xFFFFFFFFL;
+			entry.name = new String(central, position + 46, nameLength, "UTF-8");
+			
+			entries.add(entry);
+			entriesByName.put(entry.name, entry);
+			
+			position += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+	
+	/**
+	 * @return the entries, in the order of the central directory
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+	
+	/**
+	 * @return the entry, or null if there isn't one with this name
+	 */
+	public Entry getEntry(String name) {
+		return entriesByName.get(name);
+	}
+	
+	/**
+	 * Copies the entry's data as it is stored in the zip file (i.e. still compressed).
+	 */
+	public void copyRaw(Entry entry, OutputStream out) throws IOException {
+		file.seek(dataOffset(entry));
+		
+		long remaining = entry.compressedSize;
+		
+		while (remaining > 0) {
+			int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			
+			if (read == -1) {
+				throw new ZipException("Truncated entry " + entry.name);
+			}
+			
+			out.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+	
+	/**
+	 * Opens the entry's uncompressed contents. Only one entry can be read at a time, and the
+	 * stream has to be finished before anything else is done with this zip file.
+	 */
+	public InputStream open(Entry entry) throws IOException {
+		file.seek(dataOffset(entry));
+		
+		InputStream raw = new EntryInputStream(entry.compressedSize);
+		
+		if (entry.method == Entry.STORED) {
+			return raw;
+		} else if (entry.method == Entry.DEFLATED) {
+			//The "nowrap" inflater needs an extra byte at the end
+			return new InflaterInputStream(new PaddedInputStream(raw), new Inflater(true), buffer.length) {
+				@Override
+				public void close() throws IOException {
+					inf.end();
+				}
+			};
+		} else {
+			throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+		}
+	}
+	
+	private long dataOffset(Entry entry) throws IOException {
+		byte[] header = new byte[30];
+		
+		file.seek(entry.localHeaderOffset);
+		file.readFully(header);
+		
+		if (readInt(header, 0) != LOCAL_SIGNATURE) {
+			throw new ZipException("Corrupt local header for " + entry.name);
+		}
+		
+		return entry.localHeaderOffset + 30 + readShort(header, 26) + readShort(header, 28);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+	
+	private static int readShort(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+	}
+	
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8)
+				| ((bytes[offset + 2] & 0xFF) << 16) | ((bytes[offset + 3] & 0xFF) << 24);
+	}
+	
+	/**
+	 * Reads the next bytes of the zip file, up to the end of the entry.
+	 */
+	private class EntryInputStream extends InputStream {
+		private long remaining;
+		
+		public EntryInputStream(long length) {
+			remaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			
+			int read = file.read(b, off, (int) Math.min(len, remaining));
+			
+			if (read > 0) {
+				remaining -= read;
+			}
+			
+			return read;
+		}
+	}
+	
+	/**
+	 * Appends a single zero byte to a stream.
+	 */
+	private static class PaddedInputStream extends InputStream {
+		private InputStream in;
+		private boolean padded;
+		
+		public PaddedInputStream(InputStream in) {
+			this.in = in;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int read = in.read();
+			
+			if (read == -1 && !padded) {
+				padded = true;
+				return 0;
+			}
+			
+			return read;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			
+			if (read == -1 && !padded && len > 0) {
+				padded = true;
+				b[off] = 0;
+				return 1;
+			}
+			
+			return read;
+		}
+	}
+	
+	/**
+	 * One entry of the central directory.
+	 */
+	public static class Entry {
+		public static final int STORED = 0;
+		public static final int DEFLATED = 8;
+		
+		private String name;
+		private int flags;
+		private int method;
+		private int dosTime;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private long localHeaderOffset;
+		
+		public String getName() {
+			return name;
+		}
+		
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+		
+		public int getFlags() {
+			return flags;
+		}
+		
+		public int getMethod() {
+			return method;
+		}
+		
+		/**
+		 * @return the modification time, packed in the MS-DOS format (date in the high 16 bits)
+		 */
+		public int getDosTime() {
+			return dosTime;
+		}
+		
+		public long getCrc() {
+			return crc;
+		}
+		
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+		
+		public long getSize() {
+			return size;
+		}
+	}
+}
@@ -4,13 +4,25 @@ import android.os.Handler;
 import android.os.Message;
 
 import com.calsignlabs.apde.APDE;
+import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.DexCache;
+import com.calsignlabs.apde.build.JarDexer;
 
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -42,17 +54,22 @@ public class ContributionManager {
 		handler.sendMessage(Message.obtain(handler, LIBRARY_UPDATE, library.getStatus()));
 		
 		//We dex during the install to save build time
-		
-		//Make sure that we have a dexed library directory
-		library.getLibraryJarDexFolder(context).mkdir();
+		DexCache dexCache = getDexCache(context);
 		
 		try {
 			File[] jars = library.getLibraryJars(context);
-			File[] dexJars = library.getLibraryDexJars(context);
 			
 			//Dex all of the files...
 			for(int i = 0; i < jars.length; i ++) {
-				dexJar(jars[i], dexJars[i]);
+				try {
+					dexCache.getDexJar(jars[i]);
+				} catch (Exception e) {
+					//The build will try again
+					System.err.println("DX Dexer failed");
+					e.printStackTrace();
+				}
+				
+				handler.sendMessage(Message.obtain(handler, LIBRARY_UPDATE, i + 1, jars.length, library.getStatus()));
 			}
 		} catch (NullPointerException e) {
 			//If we can't find the JARs
@@ -69,43 +86,99 @@ public class ContributionManager {
 	}
 	
 	/**
-	 * Installs a library from a ZIP archive
+	 * Installs a library from a ZIP archive. Each JAR is dexed as soon as it has been extracted,
+	 * while the rest of the archive is still being extracted.
 	 * 
 	 * @param libraryZip
 	 * @param context
 	 */
-	public static boolean installZipLibrary(Library library, File libraryZip, Handler handler, APDE context) {
+	public static boolean installZipLibrary(final Library library, File libraryZip, final Handler handler, APDE context) {
 		library.setStatus(Library.Status.EXTRACTING);
 		handler.sendMessage(Message.obtain(handler, LIBRARY_UPDATE, library.getStatus()));
 		
-		//Extract to the libraries folder
-		if(!extractFile(libraryZip, library.getLibraryFolder(context))) {
-			System.err.println("Unexcepted error occurred while extracting the library.");
-			return false;
-		}
-		
-		library.setStatus(Library.Status.DEXING);
-		handler.sendMessage(Message.obtain(handler, LIBRARY_UPDATE, library.getStatus()));
+		final File jarFolder = library.getLibraryJarFolder(context);
 		
 		//We dex during the install to save build time
+		final DexCache dexCache = getDexCache(context);
 		
-		//Make sure that we have a dexed library directory
-		library.getLibraryJarDexFolder(context).mkdir();
+		//Count the JARs first so that we can report the progress
+		final int jarCount = countLibraryJars(libraryZip, library.getLibraryFolder(context), jarFolder);
+		final AtomicInteger dexedCount = new AtomicInteger(0);
+		
+		//DX can only run once at a time anyway (and it uses all of the cores by itself)
+		final ExecutorService dexThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "APDE library dex");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		final List<Future<?>> dexTasks = new ArrayList<Future<?>>();
 		
 		try {
-			File[] jars = library.getLibraryJars(context);
-			File[] dexJars = library.getLibraryDexJars(context);
+			//Extract to the libraries folder
+			boolean extracted = extractFile(libraryZip, library.getLibraryFolder(context), new ExtractListener() {
+				@Override
+				public boolean wantsContents(File file) {
+					//The library's JARs get dexed straight from memory
+					return file.getParentFile().equals(jarFolder) && file.getName().endsWith(".jar");
+				}
+				
+				@Override
+				public void extracted(File file, final byte[] contents) {
+					if (contents == null) {
+						return;
+					}
+					
+					dexTasks.add(dexThread.submit(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								dexCache.getDexJar(contents);
+							} catch (Exception e) {
+								//The build will try again
+								System.err.println("DX Dexer failed");
+								e.printStackTrace();
+							}
+							
+							library.setStatus(Library.Status.DEXING);
+							handler.sendMessage(Message.obtain(handler, LIBRARY_UPDATE, dexedCount.incrementAndGet(), jarCount, library.getStatus()));
+						}
+					}));
+				}
+			});
 			
-			//Dex all of the files...
-			for(int i = 0; i < jars.length; i ++) {
-				dexJar(jars[i], dexJars[i]);
+			if (!extracted) {
+				System.err.println("Unexcepted error occurred while extracting the library.");
+				return false;
 			}
-		} catch (NullPointerException e) {
-			//If we can't find the JARs
-			System.err.println("Unable to locate the library JAR files at " + library.getLibraryJarFolder(context));
-			System.err.println("Try organizing the folder structure within the ZIP file according the Processing library formatting guidelines.");
+			
+			if (!jarFolder.isDirectory()) {
+				//If we can't find the JARs
+				System.err.println("Unable to locate the library JAR files at " + jarFolder);
+				System.err.println("Try organizing the folder structure within the ZIP file according the Processing library formatting guidelines.");
+				return false;
+			}
+			
+			if (dexedCount.get() < jarCount) {
+				library.setStatus(Library.Status.DEXING);
+				handler.sendMessage(Message.obtain(handler, LIBRARY_UPDATE, dexedCount.get(), jarCount, library.getStatus()));
+			}
+			
+			//Wait for the JARs that are still being dexed
+			for (Future<?> task : dexTasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			//The user cancelled
+			return false;
+		} catch (ExecutionException e) {
 			e.printStackTrace();
 			return false;
+		} finally {
+			dexThread.shutdownNow();
 		}
 		
 		library.setStatus(Library.Status.INSTALLED);
@@ -114,6 +187,57 @@ public class ContributionManager {
 		return true;
 	}
 	
+	/**
+	 * @return the number of JARs in the archive that will be extracted to the library's "library"
+	 * folder
+	 */
+	private static int countLibraryJars(File libraryZip, File output, File jarFolder) {
+		int count = 0;
+		
+		try {
+			ZipFile zipFile = new ZipFile(libraryZip);
+			
+			try {
+				String rootDir = output.getParentFile().getAbsolutePath() + "/";
+				Enumeration<? extends ZipEntry> entries = zipFile.entries();
+				
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					File file = new File(rootDir + entry.getName());
+					
+					if (!entry.isDirectory() && !isJunkFilename(entry.getName()) && file.getParentFile().equals(jarFolder)
+							&& file.getName().endsWith(".jar")) {
+						
+						count ++;
+					}
+				}
+			} finally {
+				zipFile.close();
+			}
+		} catch (IOException e) {
+			//We just won't know the total
+			e.printStackTrace();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Gets told about every file as soon as it has been extracted.
+	 */
+	public interface ExtractListener {
+		/**
+		 * @return whether or not extracted() should be given the contents of the file
+		 */
+		boolean wantsContents(File file);
+		
+		/**
+		 * @param file the file that has been extracted
+		 * @param contents the contents of the file, or null if they weren't wanted
+		 */
+		void extracted(File file, byte[] contents);
+	}
+	
 	/**
 	 * Searches a zip file for the name of the library that it (hopefully) contains
 	 * 
@@ -213,6 +337,18 @@ public class ContributionManager {
 	 * @return
 	 */
 	public static boolean extractFile(File input, File output) {
+		return extractFile(input, output, null);
+	}
+	
+	/**
+	 * Extracts the input archive and saves it to the output
+	 * 
+	 * @param input
+	 * @param output
+	 * @param listener gets told about each file after it has been extracted, or null
+	 * @return
+	 */
+	public static boolean extractFile(File input, File output, ExtractListener listener) {
 		//Modified from:
 		//StackOverflow: http://stackoverflow.com/questions/3382996/how-to-unzip-files-programmatically-in-android
 		
@@ -222,7 +358,7 @@ public class ContributionManager {
 			String filename;
 			zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(input)));
 			ZipEntry ze;
-			byte[] buffer = new byte[1024];
+			byte[] buffer = new byte[16 * 1024];
 			int count;
 			
 			String rootDir = output.getParentFile().getAbsolutePath() + "/";
@@ -244,14 +380,36 @@ public class ContributionManager {
 					continue;
 				}
 				
-				FileOutputStream fout = new FileOutputStream(rootDir + filename);
+				File file = new File(rootDir + filename);
+				
+				//Not every archive has entries for the directories
+				file.getParentFile().mkdirs();
+				
+				FileOutputStream fout = new FileOutputStream(file);
+				byte[] contents = null;
 				
-				while((count = zis.read(buffer)) != -1) {
-					fout.write(buffer, 0, count);
+				if (listener != null && listener.wantsContents(file)) {
+					//Keep the contents so that they don't have to be read back from the disk
+					contents = JarDexer.readEntry(zis, ze);
+					fout.write(contents);
+				} else {
+					while((count = zis.read(buffer)) != -1) {
+						fout.write(buffer, 0, count);
+					}
 				}
 				
 				fout.close();
 				zis.closeEntry();
+				
+				if (listener != null) {
+					listener.extracted(file, contents);
+				}
+				
+				if (Thread.interrupted()) {
+					//The user cancelled
+					zis.close();
+					return false;
+				}
 			}
 			
 			zis.close();
@@ -290,12 +448,12 @@ public class ContributionManager {
 				return true;
 			}
 		}
-			
+		
 		return false;
 	}
 	
 	/**
-	 * Dexes the input JAR file and saves it to the output
+	 * Dexes the input JAR file and saves it to the output, using all of the cores
 	 * This is just a wrapper function for the command line / Android native functionality
 	 * 
 	 * @param input
@@ -304,6 +462,7 @@ public class ContributionManager {
 	public static void dexJar(File input, File output) {
 		try {
 			String[] args = new String[] {
+					"--num-threads=" + Build.getNumCores(),
 					"--output=" + output.getAbsolutePath(), //The location of the output DEXed file
 					input.getAbsolutePath(), //The location of the file to DEXify
 			};
@@ -313,7 +472,13 @@ public class ContributionManager {
 			com.android.dx.command.dexer.Main.Arguments dexArgs = new com.android.dx.command.dexer.Main.Arguments();
 			dexArgs.parse(args);
 			
-			int resultCode = com.android.dx.command.dexer.Main.run(dexArgs);
+			int resultCode;
+			Build.DX_LOCK.lockInterruptibly();
+			try {
+				resultCode = com.android.dx.command.dexer.Main.run(dexArgs);
+			} finally {
+				Build.DX_LOCK.unlock();
+			}
 			
 			if (resultCode != 0) {
 				System.err.println("DX Dexer failed, error code: " + resultCode);
@@ -324,6 +489,13 @@ public class ContributionManager {
 		}
 	}
 	
+	/**
+	 * @return the cache that the dexed library JARs are kept in
+	 */
+	private static DexCache getDexCache(APDE context) {
+		return DexCache.load(new File(context.getFilesDir(), DexCache.FOLDER_NAME));
+	}
+	
 	/**
 	 * Uninstalls the library by deleting its folder
 	 * 
@@ -106,35 +106,13 @@ public class Library {
 		return files;
 	}
 	
-	//NOTE: Dexed library JARs are created once and stored in the library folder so that we don't have to re-dex them every time we build
-	
-	public File getLibraryJarDexFolder(APDE context) {
-		return new File(getLibraryFolder(context), "library-dex");
-	}
-	
-	/**
-	 * @param context
-	 * @return the dexed versions of the library's JAR files
-	 */
-	public File[] getLibraryDexJars(APDE context) {
-		String[] filenames = getLibraryJarNames(context);
-		File[] files = new File[filenames.length];
-		
-		for(int i = 0; i < files.length; i ++) {
-			files[i] = new File(getLibraryJarDexFolder(context), filenames[i] + "-dex.jar");
-		}
-		
-		return files;
-	}
+	//NOTE: Dexed library JARs are kept in the DexCache (by checksum) so that we don't have to re-dex them every time we build
 	
 	/**
 	 * @param context
 	 * @return the JARs found in the "library" subfolder, without the ".jar" suffix
 	 */
 	private String[] getLibraryJarNames(APDE context) {
-		//The files in the "library" and "library-dex" folders should match up
-		//The dexed versions don't exist when we're installing the library, so we'll read the regular ones
-		
 		File libraryJarFolder = getLibraryJarFolder(context);
 		
 		String[] files = libraryJarFolder.list(jarFilter);
@@ -175,17 +153,8 @@ public class Library {
 	}
 	
 	public File[] getAndroidExports(APDE context) {
-		File[] jars = getLibraryJars(context);
-		File[] dexJars = getLibraryDexJars(context);
-		
-		//Concatenate the arrays
-		
-		File[] exports = new File[jars.length + dexJars.length];
-		
-		System.arraycopy(jars, 0, exports, 0, jars.length);
-		System.arraycopy(dexJars, 0, exports, jars.length, dexJars.length);
-		
-		return exports;
+		//The dexed versions come from the dex cache, so that they can't be out of date
+		return getLibraryJars(context);
 	}
 	
 	static private FilenameFilter junkFolderFilter = new FilenameFilter() {
@@ -197,6 +166,23 @@ public class Library {
 		}
 	};
 	
+	/**
+	 * The same check as discover(), for a single folder.
+	 *
+	 * @param baseFolder
+	 * @return whether or not the folder contains a usable library
+	 */
+	static public boolean isLibraryFolder(File baseFolder) {
+		String name = baseFolder.getName();
+		
+		if (!junkFolderFilter.accept(baseFolder.getParentFile(), name)) {
+			return false;
+		}
+		
+		return new File(new File(baseFolder, "library"), name + ".jar").exists()
+				&& processing.app.Sketch.sanitizeName(name).equals(name);
+	}
+	
 	static public ArrayList<Library> list(File folder) {
 		ArrayList<Library> libraries = new ArrayList<Library>();
 		list(folder, libraries);
@@ -0,0 +1,382 @@
+package com.calsignlabs.apde.contrib;
+
+import android.os.FileObserver;
+
+import com.calsignlabs.apde.APDE;
+import com.calsignlabs.apde.build.DexCache;
+import com.calsignlabs.apde.build.PackageIndex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps track of the installed libraries and the packages that they provide.
+ *
+ * The libraries folder, each library's folder, and each library's "library" folder are watched
+ * with FileObservers, so when a library is installed, uninstalled, or has its JARs replaced only
+ * that library is looked at again. Everything else reads an immutable Snapshot, which is
+ * swapped out in one go, so reading never takes a lock or touches the disk.
+ */
+public class LibraryRegistry {
+	private static final int FOLDER_EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+	
+	private APDE context;
+	
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot());
+	
+	//Guarded by this
+	private File librariesFolder;
+	private FileObserver librariesObserver;
+	//Library name -> the observers of its folder and its "library" folder
+	private HashMap<String, FileObserver[]> libraryObservers;
+	//Library name -> the packages that it provides
+	private HashMap<String, String[]> packages;
+	
+	public LibraryRegistry(APDE context) {
+		this.context = context;
+		
+		libraryObservers = new HashMap<String, FileObserver[]>();
+		packages = new HashMap<String, String[]>();
+	}
+	
+	/**
+	 * @return the current libraries, never null
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	/**
+	 * Starts keeping track of the libraries in the folder. Does nothing if this folder is
+	 * already being watched.
+	 *
+	 * @param folder the libraries folder
+	 */
+	public synchronized void watch(File folder) {
+		if (!folder.equals(librariesFolder)) {
+			librariesFolder = folder;
+			rescan();
+		}
+	}
+	
+	/**
+	 * Forgets everything and looks at every library again.
+	 */
+	public synchronized void rescan() {
+		stopWatching();
+		packages.clear();
+		
+		Snapshot next = new Snapshot();
+		
+		if (librariesFolder != null) {
+			startWatchingLibraries();
+			
+			for (Library library : Library.list(librariesFolder)) {
+				next = next.with(library, getPackages(library));
+				startWatching(library.getName());
+			}
+		}
+		
+		snapshot.set(next);
+		PackageIndex.getInstance().save();
+		
+		refillDexCache(next.getLibraries());
+	}
+	
+	/**
+	 * Looks at one library again, after it has been installed, uninstalled, or changed. This
+	 * happens automatically when the file system reports a change, but the library manager
+	 * calls it too so that the change shows up straight away.
+	 *
+	 * @param name the name of the library's folder
+	 */
+	public synchronized void refresh(String name) {
+		if (librariesFolder == null) {
+			return;
+		}
+		
+		if (librariesObserver == null) {
+			//The libraries folder didn't exist until now
+			startWatchingLibraries();
+		}
+		
+		File folder = new File(librariesFolder, name);
+		Snapshot next = snapshot.get().without(name, packages.remove(name));
+		
+		if (folder.isDirectory()) {
+			startWatching(name);
+			
+			if (Library.isLibraryFolder(folder)) {
+				Library library = new Library(folder);
+				next = next.with(library, getPackages(library));
+				
+				refillDexCache(Collections.singletonList(library));
+			}
+		} else {
+			stopWatching(name);
+		}
+		
+		snapshot.set(next);
+		PackageIndex.getInstance().save();
+	}
+	
+	private String[] getPackages(Library library) {
+		String[] libraryPackages = library.getPackageList(context);
+		packages.put(library.getName(), libraryPackages);
+		
+		return libraryPackages;
+	}
+	
+	/**
+	 * Dexes the libraries' JARs in the background if the dex cache doesn't have them, e.g.
+	 * because a JAR was replaced by hand, so that the next build doesn't have to.
+	 */
+	private void refillDexCache(List<Library> libraries) {
+		ArrayList<File> jars = new ArrayList<File>();
+		
+		for (Library library : libraries) {
+			if (library.getLibraryJarFolder(context).isDirectory()) {
+				jars.addAll(Arrays.asList(library.getLibraryJars(context)));
+			}
+		}
+		
+		if (!jars.isEmpty()) {
+			DexCache.load(new File(context.getFilesDir(), DexCache.FOLDER_NAME)).refill(jars);
+		}
+	}
+	
+	private void startWatchingLibraries() {
+		if (!librariesFolder.isDirectory()) {
+			return;
+		}
+		
+		librariesObserver = new FileObserver(librariesFolder.getAbsolutePath(), FOLDER_EVENTS) {
+			@Override
+			public void onEvent(int event, String path) {
+				if (path != null) {
+					refresh(path);
+				}
+			}
+		};
+		
+		librariesObserver.startWatching();
+	}
+	
+	private void startWatching(final String name) {
+		if (libraryObservers.containsKey(name)) {
+			return;
+		}
+		
+		File folder = new File(librariesFolder, name);
+		
+		//The "library" folder itself might be created or replaced
+		FileObserver folderObserver = new FileObserver(folder.getAbsolutePath(), FOLDER_EVENTS) {
+			@Override
+			public void onEvent(int event, String path) {
+				if ("library".equals(path)) {
+					if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+						//The JAR observer is watching the folder that was there before (if any)
+						rewatch(name);
+					} else {
+						refresh(name);
+					}
+				}
+			}
+		};
+		
+		//Only the JARs matter for the packages
+		FileObserver jarObserver = new FileObserver(new File(folder, "library").getAbsolutePath(), FOLDER_EVENTS | FileObserver.CLOSE_WRITE) {
+			@Override
+			public void onEvent(int event, String path) {
+				if (path != null && path.endsWith(".jar")) {
+					refresh(name);
+				}
+			}
+		};
+		
+		folderObserver.startWatching();
+		jarObserver.startWatching();
+		
+		//Keep a reference to them, FileObservers stop when they're garbage collected
+		libraryObservers.put(name, new FileObserver[] {folderObserver, jarObserver});
+	}
+	
+	/**
+	 * Starts watching the library's folders again after its "library" folder has been created or
+	 * replaced, then looks at the library again.
+	 *
+	 * @param name the name of the library's folder
+	 */
+	private synchronized void rewatch(String name) {
+		stopWatching(name);
+		refresh(name);
+	}
+	
+	private void stopWatching(String name) {
+		FileObserver[] observers = libraryObservers.remove(name);
+		
+		if (observers != null) {
+			for (FileObserver observer : observers) {
+				observer.stopWatching();
+			}
+		}
+	}
+	
+	private void stopWatching() {
+		if (librariesObserver != null) {
+			librariesObserver.stopWatching();
+			librariesObserver = null;
+		}
+		
+		for (FileObserver[] observers : libraryObservers.values()) {
+			for (FileObserver observer : observers) {
+				observer.stopWatching();
+			}
+		}
+		
+		libraryObservers.clear();
+	}
+	
+	/**
+	 * The installed libraries at one point in time. Snapshots are never modified, adding or
+	 * removing a library makes a new one.
+	 */
+	public static class Snapshot {
+		private static final Comparator<Library> BY_NAME = new Comparator<Library>() {
+			@Override
+			public int compare(Library a, Library b) {
+				return String.CASE_INSENSITIVE_ORDER.compare(a.getName(), b.getName());
+			}
+		};
+		
+		//Sorted by name
+		private List<Library> libraries;
+		//Package -> the libraries that provide it
+		private Map<String, List<Library>> importTable;
+		
+		private Snapshot() {
+			this(new ArrayList<Library>(), new HashMap<String, List<Library>>());
+		}
+		
+		private Snapshot(List<Library> libraries, Map<String, List<Library>> importTable) {
+			this.libraries = Collections.unmodifiableList(libraries);
+			this.importTable = Collections.unmodifiableMap(importTable);
+		}
+		
+		/**
+		 * @param library the library to add
+		 * @param libraryPackages the packages that it provides
+		 * @return a copy of this snapshot with the library added
+		 */
+		private Snapshot with(Library library, String[] libraryPackages) {
+			ArrayList<Library> nextLibraries = new ArrayList<Library>(libraries);
+			nextLibraries.add(library);
+			Collections.sort(nextLibraries, BY_NAME);
+			
+			HashMap<String, List<Library>> nextTable = new HashMap<String, List<Library>>(importTable);
+			
+			for (String pkg : libraryPackages) {
+				List<Library> providers = nextTable.get(pkg);
+				ArrayList<Library> nextProviders = providers == null ? new ArrayList<Library>() : new ArrayList<Library>(providers);
+				
+				if (!nextProviders.isEmpty()) {
+					System.err.println("The library " + library.getName() + " conflicts with " + nextProviders.get(0).getName()
+							+ ", which already defines the package " + pkg);
+				}
+				
+				nextProviders.add(library);
+				nextTable.put(pkg, Collections.unmodifiableList(nextProviders));
+			}
+			
+			return new Snapshot(nextLibraries, nextTable);
+		}
+		
+		/**
+		 * @param name the name of the library to remove
+		 * @param libraryPackages the packages that it provided, or null if it wasn't there
+		 * @return a copy of this snapshot without the library
+		 */
+		private Snapshot without(String name, String[] libraryPackages) {
+			Library library = getLibrary(name);
+			
+			if (library == null) {
+				return this;
+			}
+			
+			ArrayList<Library> nextLibraries = new ArrayList<Library>(libraries);
+			nextLibraries.remove(library);
+			
+			HashMap<String, List<Library>> nextTable = new HashMap<String, List<Library>>(importTable);
+			
+			if (libraryPackages != null) {
+				for (String pkg : libraryPackages) {
+					List<Library> providers = nextTable.get(pkg);
+					
+					if (providers == null) {
+						continue;
+					}
+					
+					ArrayList<Library> nextProviders = new ArrayList<Library>(providers);
+					nextProviders.remove(library);
+					
+					if (nextProviders.isEmpty()) {
+						nextTable.remove(pkg);
+					} else {
+						nextTable.put(pkg, Collections.unmodifiableList(nextProviders));
+					}
+				}
+			}
+			
+			return new Snapshot(nextLibraries, nextTable);
+		}
+		
+		/**
+		 * @return the libraries, sorted by name
+		 */
+		public List<Library> getLibraries() {
+			return libraries;
+		}
+		
+		/**
+		 * @param packageName
+		 * @return the libraries that provide the package, or null if there aren't any
+		 */
+		public List<Library> getLibraries(String packageName) {
+			return importTable.get(packageName);
+		}
+		
+		/**
+		 * @param name
+		 * @return the library with the name, or null if it isn't installed
+		 */
+		public Library getLibrary(String name) {
+			for (Library library : libraries) {
+				if (library.getName().equals(name)) {
+					return library;
+				}
+			}
+			
+			return null;
+		}
+		
+		/**
+		 * @return the names of the libraries, sorted
+		 */
+		public String[] getLibraryNames() {
+			String[] names = new String[libraries.size()];
+			
+			for (int i = 0; i < names.length; i ++) {
+				names[i] = libraries.get(i).getName();
+			}
+			
+			return names;
+		}
+	}
+}
@@ -11,6 +11,7 @@ import com.calsignlabs.apde.APDE;
 import com.calsignlabs.apde.KeyBinding;
 import com.calsignlabs.apde.R;
 import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.EditorBuildEnvironment;
 
 /**
  * Exports the current sketch as an Eclipse-compatible Android project
@@ -72,7 +73,7 @@ public class ExportEclipseProject implements Tool {
 		//Clear the console
     	((TextView) context.getEditor().findViewById(R.id.console)).setText("");
 		
-		final Build builder = new Build(context);
+		final Build builder = new Build(EditorBuildEnvironment.createRequest(context), new EditorBuildEnvironment(context));
 		
 		new Thread(new Runnable() {
 			public void run() {
@@ -71,6 +71,7 @@ import com.calsignlabs.apde.EditorActivity;
 import com.calsignlabs.apde.KeyBinding;
 import com.calsignlabs.apde.R;
 import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.EditorBuildEnvironment;
 import com.ipaulpro.afilechooser.utils.FileUtils;
 
 /**
@@ -85,7 +86,8 @@ public class ExportSignedPackage implements Tool {
 	private static APDE context;
 	
 	private Build builder;
-	private boolean exporting;
+	//Cleared by the build thread when the export finishes
+	private volatile boolean exporting;
 	
 	private KeyStore keystore;
 	private X509Certificate certificate;
@@ -1303,16 +1305,21 @@ public class ExportSignedPackage implements Tool {
 		//Clear the console
     	((TextView) context.getEditor().findViewById(R.id.console)).setText("");
 		
-		builder = new Build(context);
+		builder = new Build(EditorBuildEnvironment.createRequest(context), new EditorBuildEnvironment(context));
 		builder.setKey(keystoreFile.getText().toString(), keystorePassword.getText().toString().toCharArray(), (String) alias.getSelectedItem(), aliasPassword.getText().toString().toCharArray());
 		
-		new Thread(new Runnable() {
+		//The build service runs it after any other builds, they all use the same build folder
+		//Set before queuing, the build thread might finish before releaseSketch() returns
+		exporting = true;
+		
+		if (!context.getEditor().releaseSketch(builder, new Runnable() {
+			@Override
 			public void run() {
-				exporting = true;
-				builder.build("release");
 				exporting = false;
 			}
-		}).start();
+		})) {
+			exporting = false;
+		}
 	}
 	
 	@Override
@@ -0,0 +1,29 @@
+package benchmarklib;
+
+/**
+ * A tiny library for the benchmark, so that it can measure building sketches that import one.
+ */
+public class Oscillator {
+	private float step;
+	private float phase;
+	
+	/**
+	 * @param step how far to advance each time, in radians
+	 */
+	public Oscillator(float step) {
+		this.step = step;
+	}
+	
+	/**
+	 * @return the next value, between -1 and 1
+	 */
+	public float next() {
+		phase += step;
+		
+		if (phase > Math.PI * 2) {
+			phase -= Math.PI * 2;
+		}
+		
+		return (float) Math.sin(phase);
+	}
+}
@@ -0,0 +1,14 @@
+import benchmarklib.*;
+
+Oscillator oscillator;
+
+void setup() {
+  size(displayWidth, displayHeight);
+  oscillator = new Oscillator(0.05);
+}
+
+void draw() {
+  background(0);
+  fill(255);
+  ellipse(width / 2, height / 2 + oscillator.next() * height / 4, 50, 50);
+}
@@ -0,0 +1,197 @@
+package com.calsignlabs.apde.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A sketch to benchmark, either loaded from a sketch folder (e.g. one of the bundled examples)
+ * or generated to stress the build sequence with a lot of code.
+ */
+public class BenchmarkSketch {
+	private String name;
+	private List<Tab> tabs;
+	private File dataFolder;
+	
+	public BenchmarkSketch(String name, List<Tab> tabs, File dataFolder) {
+		this.name = name;
+		this.tabs = tabs;
+		this.dataFolder = dataFolder;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public List<Tab> getTabs() {
+		return tabs;
+	}
+	
+	/**
+	 * @return the sketch's data folder, or null if it doesn't have one
+	 */
+	public File getDataFolder() {
+		return dataFolder;
+	}
+	
+	public static class Tab {
+		private String name;
+		private String text;
+		
+		public Tab(String name, String text) {
+			this.name = name;
+			this.text = text;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public String getText() {
+			return text;
+		}
+		
+		/**
+		 * @return ".pde" or ".java"
+		 */
+		public String getSuffix() {
+			return name.substring(name.lastIndexOf('.'));
+		}
+	}
+	
+	/**
+	 * Loads a sketch the same way that APDE does: the main tab (named after the folder) comes
+	 * first, followed by the rest of the tabs in alphabetical order.
+	 *
+	 * @param sketchFolder the sketch folder
+	 * @return the sketch
+	 * @throws IOException
+	 */
+	public static BenchmarkSketch load(File sketchFolder) throws IOException {
+		String name = sketchFolder.getName();
+		
+		String[] filenames = sketchFolder.list();
+		if (filenames == null) {
+			throw new IOException("Not a sketch folder: " + sketchFolder.getAbsolutePath());
+		}
+		
+		Arrays.sort(filenames);
+		
+		List<Tab> tabs = new ArrayList<Tab>();
+		
+		for (String filename : filenames) {
+			if (filename.endsWith(".pde") || filename.endsWith(".java")) {
+				Tab tab = new Tab(filename, readFile(new File(sketchFolder, filename)));
+				
+				if (filename.equals(name + ".pde")) {
+					tabs.add(0, tab);
+				} else {
+					tabs.add(tab);
+				}
+			}
+		}
+		
+		if (tabs.isEmpty() || !tabs.get(0).getName().equals(name + ".pde")) {
+			throw new IOException("Sketch " + name + " doesn't have a main tab");
+		}
+		
+		File dataFolder = new File(sketchFolder, "data");
+		
+		return new BenchmarkSketch(name, tabs, dataFolder.isDirectory() ? dataFolder : null);
+	}
+	
+	/**
+	 * Generates a large sketch. Every tab holds a class full of methods that do some arithmetic
+	 * and call each other, so that the compiler and the dexer have something to chew on.
+	 *
+	 * @param tabCount the number of tabs (in addition to the main tab)
+	 * @param methodCount the number of methods in each tab
+	 * @return the sketch
+	 */
+	public static BenchmarkSketch synthesize(int tabCount, int methodCount) {
+		String name = "Synthetic_" + tabCount + "x" + methodCount;
+		//Always generate the same code so that the results are comparable
+		Random random = new Random(tabCount * 31 + methodCount);
+		
+		List<Tab> tabs = new ArrayList<Tab>();
+		
+		StringBuilder main = new StringBuilder();
+		main.append("ArrayList<Object> parts = new ArrayList<Object>();\n\n");
+		main.append("void setup() {\n");
+		main.append("  size(displayWidth, displayHeight);\n");
+		for (int i = 0; i < tabCount; i ++) {
+			main.append("  parts.add(new Part").append(i).append("());\n");
+		}
+		main.append("}\n\n");
+		main.append("void draw() {\n");
+		main.append("  background(0);\n");
+		main.append("  float total = 0;\n");
+		for (int i = 0; i < tabCount; i ++) {
+			main.append("  total += ((Part").append(i).append(") parts.get(").append(i).append(")).run(frameCount);\n");
+		}
+		main.append("  fill(255);\n");
+		main.append("  text(\"Total: \" + total, 10, 20);\n");
+		main.append("}\n");
+		
+		tabs.add(new Tab(name + ".pde", main.toString()));
+		
+		for (int i = 0; i < tabCount; i ++) {
+			StringBuilder tab = new StringBuilder();
+			tab.append("class Part").append(i).append(" {\n");
+			tab.append("  float[] values = new float[").append(methodCount).append("];\n");
+			tab.append("  color tint = #").append(String.format(Locale.US, "%06x", random.nextInt(0x1000000))).append(";\n\n");
+			
+			for (int j = 0; j < methodCount; j ++) {
+				tab.append("  float step").append(j).append("(float x) {\n");
+				tab.append("    float y = x * ").append(random.nextInt(100)).append(" + ").append(random.nextInt(100)).append(";\n");
+				tab.append("    for (int k = 0; k < ").append(1 + random.nextInt(8)).append("; k ++) {\n");
+				tab.append("      y = sin(y) * ").append(random.nextInt(10) + 1).append(" + values[").append(j).append("];\n");
+				tab.append("    }\n");
+				if (j > 0) {
+					tab.append("    return y + step").append(random.nextInt(j)).append("(y / 2);\n");
+				} else {
+					tab.append("    return y;\n");
+				}
+				tab.append("  }\n\n");
+			}
+			
+			tab.append("  float run(int frame) {\n");
+			tab.append("    float sum = 0;\n");
+			for (int j = 0; j < methodCount; j ++) {
+				tab.append("    sum += step").append(j).append("(frame);\n");
+			}
+			tab.append("    return sum + red(tint);\n");
+			tab.append("  }\n");
+			tab.append("}\n");
+			
+			tabs.add(new Tab("Part" + i + ".pde", tab.toString()));
+		}
+		
+		return new BenchmarkSketch(name, tabs, null);
+	}
+	
+	private static String readFile(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		
+		try {
+			StringBuilder contents = new StringBuilder((int) file.length());
+			char[] buffer = new char[8192];
+			int read;
+			
+			while ((read = reader.read(buffer)) != -1) {
+				contents.append(buffer, 0, read);
+			}
+			
+			return contents.toString();
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package com.calsignlabs.apde.benchmark;
+
+import com.calsignlabs.apde.build.ApkWriter;
+import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.BuildMetrics;
+import com.calsignlabs.apde.build.BuildRequest;
+import com.calsignlabs.apde.build.BuildSettings;
+import com.calsignlabs.apde.build.SketchCompiler;
+import com.calsignlabs.apde.support.AndroidPlatform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import processing.app.Base;
+
+/**
+ * Benchmarks APDE's build sequence on a desktop JVM, so that changes to the build can be
+ * measured on a workstation instead of by hand on devices. The sketches are built by Build
+ * itself, through JvmBuildEnvironment, and the timings come from its BuildMetrics. The CPU
+ * time and the allocations of each stage are measured with ThreadMXBean.
+ *
+ * Each sketch is built once cold (with nothing cached and a fresh compiler), then a few times
+ * to warm up the JIT, and then measured. Like pressing "Run" again in the editor, the warm builds
+ * skip whatever hasn't changed, unless --clean is given. By default, the bundled examples and
+ * two synthetic sketches are built. With --aapt, the resources of each sketch are also checked
+ * against AAPT's by ResourceCheck. Run with --help for the options.
+ */
+public class BuildBenchmark {
+	//Imports the fixture library that Gradle builds from src/fixture
+	private static final String LIBRARY_SKETCH = "benchmark/src/fixture/sketches/LibrarySketch";
+	
+	private File appFolder = new File("APDE/src/main");
+	private File androidJar;
+	private File workFolder = new File("benchmark/build/work");
+	private File librariesFolder;
+	
+	private List<BenchmarkSketch> sketches = new ArrayList<BenchmarkSketch>();
+	private boolean defaultSketches = true;
+	
+	private int warmupRuns = 3;
+	private int measuredRuns = 5;
+	private boolean clean = false;
+	
+	private File aapt;
+	
+	public static void main(String[] args) {
+		BuildBenchmark benchmark = new BuildBenchmark();
+		
+		try {
+			if (!benchmark.parseArgs(args)) {
+				printUsage();
+				return;
+			}
+			
+			benchmark.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	private static void printUsage() {
+		System.out.println("Usage: BuildBenchmark [options]");
+		System.out.println("  --app <folder>          APDE's src/main folder, for the assets and resources (default: APDE/src/main)");
+		System.out.println("  --android-jar <file>    android.jar to compile against (default: android.jar in the assets, Gradle passes the one it compiles with)");
+		System.out.println("  --work <folder>         folder to build in (default: benchmark/build/work)");
+		System.out.println("  --libraries <folder>    installed libraries, laid out like APDE's libraries folder (default: none)");
+		System.out.println("  --sketch <folder>       benchmark this sketch folder, may be repeated");
+		System.out.println("  --synthetic <T>x<M>     benchmark a generated sketch with T tabs of M methods, may be repeated");
+		System.out.println("  --warmup <n>            number of warm-up builds (default: 3)");
+		System.out.println("  --runs <n>              number of measured builds (default: 5)");
+		System.out.println("  --clean                 delete the build folder before every build, so that no stage is skipped");
+		System.out.println("  --aapt <file>           check that each sketch's resources are packaged the same way as by this AAPT,");
+		System.out.println("                          which has to run on this machine (e.g. from the SDK's build-tools)");
+		System.out.println();
+		System.out.println("Without --sketch or --synthetic, the bundled examples and two synthetic sketches are built,");
+		System.out.println("as well as " + LIBRARY_SKETCH + " if --libraries is given (it imports the fixture library).");
+		System.out.println("Sketches that import libraries can only be built with --libraries.");
+		System.out.println("The output of the builds goes to build.log in each sketch's work folder.");
+	}
+	
+	private boolean parseArgs(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i ++) {
+			String arg = args[i];
+			
+			if (arg.equals("--help") || arg.equals("-h")) {
+				return false;
+			}
+			
+			if (arg.equals("--clean")) {
+				clean = true;
+				continue;
+			}
+			
+			if (i + 1 >= args.length) {
+				System.err.println("Missing value for " + arg);
+				return false;
+			}
+			
+			String value = args[++ i];
+			
+			if (arg.equals("--app")) {
+				appFolder = new File(value);
+			} else if (arg.equals("--android-jar")) {
+				androidJar = new File(value);
+			} else if (arg.equals("--work")) {
+				workFolder = new File(value);
+			} else if (arg.equals("--libraries")) {
+				librariesFolder = new File(value);
+			} else if (arg.equals("--sketch")) {
+				sketches.add(BenchmarkSketch.load(new File(value)));
+				defaultSketches = false;
+			} else if (arg.equals("--synthetic")) {
+				String[] size = value.split("x");
+				sketches.add(BenchmarkSketch.synthesize(Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+				defaultSketches = false;
+			} else if (arg.equals("--warmup")) {
+				warmupRuns = Integer.parseInt(value);
+			} else if (arg.equals("--runs")) {
+				measuredRuns = Math.max(1, Integer.parseInt(value));
+			} else if (arg.equals("--aapt")) {
+				aapt = new File(value);
+			} else {
+				System.err.println("Unknown option " + arg);
+				return false;
+			}
+		}
+		
+		File assetsFolder = new File(appFolder, "assets");
+		
+		if (androidJar == null) {
+			androidJar = new File(assetsFolder, "android.jar");
+		}
+		
+		if (!androidJar.exists()) {
+			System.err.println("Can't find android.jar at " + androidJar.getAbsolutePath());
+			return false;
+		}
+		
+		if (defaultSketches) {
+			File[] examples = new File(assetsFolder, "examples").listFiles();
+			
+			if (examples != null) {
+				Arrays.sort(examples);
+				
+				for (File example : examples) {
+					if (example.isDirectory()) {
+						sketches.add(BenchmarkSketch.load(example));
+					}
+				}
+			}
+			
+			sketches.add(BenchmarkSketch.synthesize(10, 20));
+			sketches.add(BenchmarkSketch.synthesize(40, 50));
+			
+			if (librariesFolder != null) {
+				sketches.add(BenchmarkSketch.load(new File(LIBRARY_SKETCH)));
+			}
+		}
+		
+		if (librariesFolder != null && !librariesFolder.isDirectory()) {
+			System.err.println("Can't find the libraries at " + librariesFolder.getAbsolutePath());
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private void run() throws Exception {
+		initProcessingPrefs();
+		
+		//The defaults from the settings screen
+		BuildSettings settings = new BuildSettings(true, false, true, true, false, ApkWriter.DEFAULT_STORED_EXTENSIONS);
+		
+		System.out.println("Java " + System.getProperty("java.version") + " on " + System.getProperty("os.name")
+				+ ", " + Runtime.getRuntime().availableProcessors() + " processors");
+		System.out.println(warmupRuns + " warm-up and " + measuredRuns + " measured builds per sketch"
+				+ (clean ? ", clean builds" : ""));
+		
+		for (BenchmarkSketch sketch : sketches) {
+			File sketchWorkFolder = new File(workFolder, sketch.getName());
+			
+			//Throw away everything that is kept between builds so that the first one is cold
+			deleteFile(sketchWorkFolder);
+			SketchCompiler.release();
+			
+			BuildRequest request = new BuildRequest(sketch.getName(), createSketchFolder(sketch, sketchWorkFolder),
+					getTabs(sketch), settings);
+			JvmBuildEnvironment environment = new JvmBuildEnvironment(appFolder, androidJar, sketchWorkFolder, librariesFolder);
+			File log = new File(sketchWorkFolder, "build.log");
+			
+			BuildMetrics cold = build(request, environment, log);
+			
+			if (aapt != null) {
+				checkResources(sketch, environment.getBuildFolder(request), new File(sketchWorkFolder, "resource-check"));
+			}
+			
+			for (int i = 0; i < warmupRuns; i ++) {
+				build(request, environment, log);
+			}
+			
+			List<BuildMetrics> warm = new ArrayList<BuildMetrics>();
+			
+			for (int i = 0; i < measuredRuns; i ++) {
+				warm.add(build(request, environment, log));
+			}
+			
+			printReport(sketch, cold, warm);
+		}
+	}
+	
+	/**
+	 * Builds the sketch with Build, the same way that the editor does.
+	 *
+	 * @return the metrics of the build
+	 * @throws Exception if the build failed
+	 */
+	private BuildMetrics build(BuildRequest request, JvmBuildEnvironment environment, File log) throws Exception {
+		if (clean) {
+			deleteFile(environment.getBuildFolder(request));
+		}
+		
+		environment.reset();
+		Build build = new Build(request, environment);
+		
+		//Build is chatty, keep its output out of the report
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		PrintStream logStream = new PrintStream(new FileOutputStream(log, true), true);
+		
+		try {
+			System.setOut(logStream);
+			System.setErr(logStream);
+			
+			build.build("debug");
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+			logStream.close();
+		}
+		
+		if (environment.getInstalledApk() == null) {
+			throw new Exception(request.getSketchName() + " failed to build: " + environment.getError()
+					+ "\nSee " + log.getAbsolutePath());
+		}
+		
+		return build.getMetrics();
+	}
+	
+	/**
+	 * Compares what ResourcePackager makes from the manifest and the resources that the build
+	 * wrote with what AAPT makes from them.
+	 *
+	 * @throws Exception if they aren't the same
+	 */
+	private void checkResources(BenchmarkSketch sketch, File buildFolder, File checkFolder) throws Exception {
+		deleteFile(checkFolder);
+		
+		List<String> differences = new ResourceCheck(aapt, androidJar).check(buildFolder, checkFolder);
+		
+		if (!differences.isEmpty()) {
+			StringBuilder message = new StringBuilder("The resources of " + sketch.getName() + " aren't the same as AAPT's:");
+			
+			for (String difference : differences) {
+				message.append('\n').append(difference);
+			}
+			
+			throw new Exception(message.toString());
+		}
+		
+		System.out.println(sketch.getName() + ": the resources are the same as AAPT's");
+	}
+	
+	/**
+	 * Puts the sketch's data folder in a folder of its own. Build writes the manifest into the
+	 * sketch folder, which shouldn't happen to the bundled examples.
+	 *
+	 * @return the sketch folder
+	 */
+	private static File createSketchFolder(BenchmarkSketch sketch, File sketchWorkFolder) throws IOException {
+		File sketchFolder = new File(sketchWorkFolder, "sketch");
+		sketchFolder.mkdirs();
+		
+		if (sketch.getDataFolder() != null) {
+			copyFolder(sketch.getDataFolder(), new File(sketchFolder, "data"));
+		}
+		
+		return sketchFolder;
+	}
+	
+	private static List<BuildRequest.Tab> getTabs(BenchmarkSketch sketch) {
+		List<BuildRequest.Tab> tabs = new ArrayList<BuildRequest.Tab>();
+		
+		for (BenchmarkSketch.Tab tab : sketch.getTabs()) {
+			tabs.add(new BuildRequest.Tab(tab.getName(), tab.getSuffix(), tab.getText()));
+		}
+		
+		return tabs;
+	}
+	
+	/**
+	 * Does the same thing as APDE.initProcessingPrefs() so that pde.jar doesn't try to find
+	 * (or open a window for) the desktop Processing settings.
+	 */
+	private void initProcessingPrefs() throws IOException {
+		File dir = new File(workFolder, "processing_home");
+		dir.mkdirs();
+		
+		//Put the default preferences file where Processing will look for it
+		File[] defaults = new File(appFolder, "assets/processing_default").listFiles();
+		if (defaults != null) {
+			for (File file : defaults) {
+				copyFile(file, new File(dir, file.getName()));
+			}
+		}
+		
+		Base.initPlatform();
+		AndroidPlatform.setDir(dir);
+	}
+	
+	private static void copyFolder(File source, File dest) throws IOException {
+		dest.mkdirs();
+		
+		File[] children = source.listFiles();
+		
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()) {
+					copyFolder(child, new File(dest, child.getName()));
+				} else {
+					copyFile(child, new File(dest, child.getName()));
+				}
+			}
+		}
+	}
+	
+	private static void copyFile(File source, File dest) throws IOException {
+		InputStream input = new FileInputStream(source);
+		
+		try {
+			OutputStream output = new FileOutputStream(dest);
+			
+			try {
+				byte[] buffer = new byte[16 * 1024];
+				int read;
+				
+				while ((read = input.read(buffer)) != -1) {
+					output.write(buffer, 0, read);
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	private static void printReport(BenchmarkSketch sketch, BuildMetrics cold, List<BuildMetrics> warm) {
+		System.out.println();
+		System.out.println(sketch.getName() + " (" + sketch.getTabs().size() + " tabs)");
+		System.out.println(String.format(Locale.US, "%-10s %9s %9s %9s %9s %9s %9s %9s %8s",
+				"Stage", "Cold ms", "Cold MB", "Warm ms", "Min ms", "CPU ms", "Alloc MB", "MB/s", "Skipped"));
+		
+		//The stages overlap, so they don't add up to the total
+		for (BuildMetrics.StageMetrics coldStage : cold.getStages()) {
+			double warmMs = 0;
+			double minMs = Double.MAX_VALUE;
+			double cpuMs = 0;
+			double allocMb = 0;
+			boolean cpuSupported = true;
+			boolean allocSupported = true;
+			int skipped = 0;
+			
+			for (BuildMetrics metrics : warm) {
+				BuildMetrics.StageMetrics stage = metrics.stage(coldStage.getName());
+				double wallMs = stage.getWallNanos() / 1e6;
+				
+				warmMs += wallMs;
+				minMs = Math.min(minMs, wallMs);
+				cpuMs += stage.getCpuNanos() / 1e6;
+				cpuSupported &= stage.getCpuNanos() >= 0;
+				allocMb += stage.getAllocatedBytes() / (1024.0 * 1024.0);
+				allocSupported &= stage.getAllocatedBytes() >= 0;
+				
+				if (stage.isSkipped()) {
+					skipped ++;
+				}
+			}
+			
+			warmMs /= warm.size();
+			cpuMs /= warm.size();
+			allocMb /= warm.size();
+			
+			System.out.println(String.format(Locale.US, "%-10s %9.1f %9s %9.1f %9.1f %9s %9s %9s %8s",
+					coldStage.getName(), coldStage.getWallNanos() / 1e6,
+					formatMb(coldStage.getAllocatedBytes()), warmMs, minMs,
+					cpuSupported ? String.format(Locale.US, "%.1f", cpuMs) : "-",
+					allocSupported ? String.format(Locale.US, "%.1f", allocMb) : "-",
+					//The allocation rate of a stage that took no time at all doesn't mean anything
+					allocSupported && warmMs >= 1 ? String.format(Locale.US, "%.0f", allocMb / (warmMs / 1000)) : "-",
+					skipped + "/" + warm.size()));
+		}
+		
+		double warmTotal = 0;
+		double minTotal = Double.MAX_VALUE;
+		
+		for (BuildMetrics metrics : warm) {
+			warmTotal += metrics.getWallNanos() / 1e6;
+			minTotal = Math.min(minTotal, metrics.getWallNanos() / 1e6);
+		}
+		
+		System.out.println(String.format(Locale.US, "%-10s %9.1f %9.1f %9.1f", "Total",
+				cold.getWallNanos() / 1e6, warmTotal / warm.size(), minTotal));
+	}
+	
+	private static String formatMb(long bytes) {
+		return bytes < 0 ? "-" : String.format(Locale.US, "%.1f", bytes / (1024.0 * 1024.0));
+	}
+	
+	private static void deleteFile(File file) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			
+			if (children != null) {
+				for (File child : children) {
+					deleteFile(child);
+				}
+			}
+		}
+		
+		file.delete();
+	}
+}
@@ -0,0 +1,305 @@
+package com.calsignlabs.apde.benchmark;
+
+import com.calsignlabs.apde.APDE;
+import com.calsignlabs.apde.R;
+import com.calsignlabs.apde.build.BuildEnvironment;
+import com.calsignlabs.apde.build.BuildMetrics;
+import com.calsignlabs.apde.build.BuildRequest;
+import com.calsignlabs.apde.contrib.Library;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Lets Build run on a desktop JVM. The assets and the resources come straight from APDE's
+ * source tree, the libraries come from a folder laid out like APDE's libraries folder, the
+ * build's files go in the benchmark's work folder, and the finished APK is kept instead of
+ * being installed.
+ */
+public class JvmBuildEnvironment implements BuildEnvironment {
+	/**
+	 * Measures the stages with ThreadMXBean. Counting allocations needs HotSpot's version of it.
+	 */
+	private static final BuildMetrics.ThreadCounters JVM_COUNTERS = new BuildMetrics.ThreadCounters() {
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		@Override
+		public long cpuNanos() {
+			return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+		}
+		
+		@Override
+		public long allocatedBytes() {
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean hotspotThreads = (com.sun.management.ThreadMXBean) threads;
+				
+				if (hotspotThreads.isThreadAllocatedMemorySupported() && hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+					return hotspotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				}
+			}
+			
+			return -1;
+		}
+	};
+	
+	private File appFolder;
+	private File androidJar;
+	private File workFolder;
+	//Null if there aren't any libraries
+	private APDE libraryContext;
+	
+	private HashMap<String, ArrayList<Library>> importToLibraryTable;
+	
+	private HashMap<String, String> strings;
+	private HashMap<String, String> integers;
+	
+	private String error;
+	private File installedApk;
+	
+	/**
+	 * @param appFolder APDE's src/main folder, with the assets, the resources, and the manifest
+	 * @param androidJar the android.jar to compile against
+	 * @param workFolder the folder to keep the build folder, the temp folder, and the files
+	 * folder in
+	 * @param librariesFolder the folder with the installed libraries, or null if there aren't any
+	 */
+	public JvmBuildEnvironment(File appFolder, File androidJar, File workFolder, File librariesFolder) {
+		this.appFolder = appFolder;
+		this.androidJar = androidJar;
+		this.workFolder = workFolder;
+		
+		libraryContext = librariesFolder != null ? new APDE(librariesFolder) : null;
+	}
+	
+	/**
+	 * Forgets about the last build, call before starting another one.
+	 */
+	public synchronized void reset() {
+		error = null;
+		installedApk = null;
+	}
+	
+	/**
+	 * @return the last error that the build reported, or null if it didn't fail
+	 */
+	public synchronized String getError() {
+		return error;
+	}
+	
+	/**
+	 * @return the APK that the build would have installed, or null if it didn't get that far
+	 */
+	public synchronized File getInstalledApk() {
+		return installedApk;
+	}
+	
+	@Override
+	public void message(String message) {}
+	
+	@Override
+	public synchronized void error(String message) {
+		error = message;
+	}
+	
+	@Override
+	public void highlightLine(int tab, int line) {
+		//The error message is enough, the build has already printed the details
+	}
+	
+	@Override
+	public String getString(int resId) {
+		String value = getValues(true).get(getResourceName(R.string.class, resId));
+		
+		if (value == null) {
+			throw new IllegalArgumentException("No string resource for " + getResourceName(R.string.class, resId));
+		}
+		
+		return value;
+	}
+	
+	@Override
+	public int getInteger(int resId) {
+		String value = getValues(false).get(getResourceName(R.integer.class, resId));
+		
+		if (value == null) {
+			throw new IllegalArgumentException("No integer resource for " + getResourceName(R.integer.class, resId));
+		}
+		
+		return Integer.parseInt(value);
+	}
+	
+	@Override
+	public InputStream openAsset(String path) throws IOException {
+		//So that the sketches can be compiled against another version of Android
+		if (path.equals("android.jar")) {
+			return new FileInputStream(androidJar);
+		}
+		
+		return new FileInputStream(new File(new File(appFolder, "assets"), path));
+	}
+	
+	@Override
+	public int getVersionCode() {
+		try {
+			Element manifest = parse(new File(appFolder, "AndroidManifest.xml"));
+			
+			return Integer.parseInt(manifest.getAttribute("android:versionCode"));
+		} catch (Exception e) {
+			throw new RuntimeException("Can't read APDE's version code", e);
+		}
+	}
+	
+	@Override
+	public File getBuildFolder(BuildRequest request) {
+		return new File(workFolder, "build");
+	}
+	
+	@Override
+	public File getTempFolder() {
+		return new File(workFolder, "tmp");
+	}
+	
+	@Override
+	public File getFilesDir() {
+		//The app's files folder always exists
+		File filesDir = new File(workFolder, "files");
+		filesDir.mkdirs();
+		
+		return filesDir;
+	}
+	
+	@Override
+	public BuildMetrics.ThreadCounters getThreadCounters() {
+		return JVM_COUNTERS;
+	}
+	
+	@Override
+	public synchronized List<Library> getLibraries(String packageName) {
+		if (libraryContext == null) {
+			return null;
+		}
+		
+		//The same table that the library registry keeps in the app
+		if (importToLibraryTable == null) {
+			importToLibraryTable = new HashMap<String, ArrayList<Library>>();
+			
+			for (Library library : Library.list(libraryContext.getLibrariesFolder())) {
+				library.addPackageList(importToLibraryTable, libraryContext);
+			}
+		}
+		
+		return importToLibraryTable.get(packageName);
+	}
+	
+	@Override
+	public File[] getLibraryExports(Library library) {
+		return library.getAndroidExports(libraryContext);
+	}
+	
+	@Override
+	public File getLibraryFolder(Library library) {
+		return library.getLibraryFolder(libraryContext);
+	}
+	
+	@Override
+	public synchronized void install(File apkFile, BuildRequest request) {
+		installedApk = apkFile;
+	}
+	
+	/**
+	 * Looks the ID up in the stand-in R class.
+	 */
+	private static String getResourceName(Class<?> type, int resId) {
+		for (Field field : type.getFields()) {
+			try {
+				if (field.getInt(null) == resId) {
+					return field.getName();
+				}
+			} catch (IllegalAccessException e) {
+				//The fields are all public
+			}
+		}
+		
+		throw new IllegalArgumentException("Unknown resource ID 0x" + Integer.toHexString(resId));
+	}
+	
+	/**
+	 * Reads the strings and the integers from the res/values folder the first time they are
+	 * needed.
+	 *
+	 * @param strings whether to get the strings or the integers
+	 * @return the values by name
+	 */
+	private synchronized HashMap<String, String> getValues(boolean strings) {
+		if (this.strings == null) {
+			HashMap<String, String> stringValues = new HashMap<String, String>();
+			HashMap<String, String> integerValues = new HashMap<String, String>();
+			
+			File[] files = new File(appFolder, "res/values").listFiles();
+			
+			if (files == null) {
+				throw new RuntimeException("Can't find APDE's resources in " + appFolder.getAbsolutePath());
+			}
+			
+			for (File file : files) {
+				if (!file.getName().endsWith(".xml")) {
+					continue;
+				}
+				
+				try {
+					NodeList children = parse(file).getChildNodes();
+					
+					for (int i = 0; i < children.getLength(); i ++) {
+						if (children.item(i).getNodeType() != Node.ELEMENT_NODE) {
+							continue;
+						}
+						
+						Element element = (Element) children.item(i);
+						String tag = element.getTagName();
+						
+						if (tag.equals("string")) {
+							stringValues.put(element.getAttribute("name"), unescape(element.getTextContent()));
+						} else if (tag.equals("integer") || (tag.equals("item") && element.getAttribute("type").equals("integer"))) {
+							integerValues.put(element.getAttribute("name"), element.getTextContent().trim());
+						}
+					}
+				} catch (Exception e) {
+					throw new RuntimeException("Can't read " + file.getAbsolutePath(), e);
+				}
+			}
+			
+			this.strings = stringValues;
+			integers = integerValues;
+		}
+		
+		return strings ? this.strings : integers;
+	}
+	
+	/**
+	 * Undoes the escaping that Android resource strings use, e.g. "Can\'t".
+	 */
+	private static String unescape(String value) {
+		return value.replace("\\'", "'").replace("\\\"", "\"").replace("\\n", "\n");
+	}
+	
+	private static Element parse(File file) throws Exception {
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		
+		return builder.parse(file).getDocumentElement();
+	}
+}
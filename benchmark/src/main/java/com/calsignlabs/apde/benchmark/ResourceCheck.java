@@ -0,0 +1,595 @@
+package com.calsignlabs.apde.benchmark;
+
+import com.calsignlabs.apde.build.ExternalProcess;
+import com.calsignlabs.apde.build.ResourcePackager;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Checks that ResourcePackager makes the same resources as AAPT. Both package the manifest and
+ * the res folder of a build, then R.java, the binary XML files, and resources.arsc are decoded
+ * and compared.
+ *
+ * AAPT has to be one that runs on the workstation, i.e. from the SDK's build-tools. The layout
+ * of the string pools and the line numbers in the binary XML differ between versions of AAPT
+ * and don't change what the framework reads, so they aren't compared.
+ */
+public class ResourceCheck {
+	//Chunk types, from ResourceTypes.h
+	private static final int RES_STRING_POOL_TYPE = 0x0001;
+	private static final int RES_TABLE_TYPE = 0x0002;
+	private static final int RES_XML_TYPE = 0x0003;
+	private static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+	private static final int RES_XML_END_NAMESPACE_TYPE = 0x0101;
+	private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+	private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+	private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+	private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+	private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+	private static final int RES_TABLE_TYPE_SPEC_TYPE = 0x0202;
+	
+	private static final int TYPE_STRING = 0x03;
+	private static final int UTF8_FLAG = 1 << 8;
+	private static final int NO_ENTRY = 0xFFFFFFFF;
+	
+	//"public static final class drawable {" and "public static final int icon=0x7f020000;"
+	private static final Pattern R_CLASS = Pattern.compile("public static final class (\\w+)");
+	private static final Pattern R_FIELD = Pattern.compile("public static final int (\\w+)\\s*=\\s*(0x[0-9a-fA-F]+);");
+	
+	private File aapt;
+	private File androidJar;
+	
+	/**
+	 * @param aapt the AAPT to compare with
+	 * @param androidJar the android.jar to give to AAPT
+	 */
+	public ResourceCheck(File aapt, File androidJar) {
+		this.aapt = aapt;
+		this.androidJar = androidJar;
+	}
+	
+	/**
+	 * Packages the resources of a build with both ResourcePackager and AAPT and compares them.
+	 *
+	 * @param buildFolder the build folder, with the AndroidManifest.xml and the res folder
+	 * @param checkFolder where to put the output of both
+	 * @return the differences, empty if there aren't any
+	 * @throws Exception if ResourcePackager can't package the resources, or AAPT fails
+	 */
+	public List<String> check(File buildFolder, File checkFolder) throws Exception {
+		File manifestFile = new File(buildFolder, "AndroidManifest.xml");
+		File resFolder = new File(buildFolder, "res");
+		
+		File packagerGen = new File(checkFolder, "packager/gen");
+		File packagerApkRes = new File(checkFolder, "packager/resources.apk.res");
+		File aaptGen = new File(checkFolder, "aapt/gen");
+		File aaptApkRes = new File(checkFolder, "aapt/resources.apk.res");
+		
+		ResourcePackager packager = new ResourcePackager(manifestFile, resFolder);
+		
+		if (!packager.isSupported()) {
+			throw new Exception("ResourcePackager can't package these resources: " + packager.getUnsupportedReason());
+		}
+		
+		packagerGen.mkdirs();
+		packager.writeR(packagerGen);
+		packager.writeApkRes(packagerApkRes);
+		
+		runAapt(manifestFile, resFolder, aaptGen, aaptApkRes);
+		
+		List<String> differences = new ArrayList<String>();
+		
+		compare("R.java", dumpR(aaptGen), dumpR(packagerGen), differences);
+		
+		ApkRes expected = new ApkRes(aaptApkRes);
+		ApkRes actual = new ApkRes(packagerApkRes);
+		
+		compare("the entries in the .apk.res", expected.getNames(), actual.getNames(), differences);
+		compare("AndroidManifest.xml", dumpXml(expected.get("AndroidManifest.xml")), dumpXml(actual.get("AndroidManifest.xml")), differences);
+		compare("res/layout/main.xml", dumpXml(expected.get("res/layout/main.xml")), dumpXml(actual.get("res/layout/main.xml")), differences);
+		compare("resources.arsc", dumpTable(expected.get("resources.arsc")), dumpTable(actual.get("resources.arsc")), differences);
+		
+		return differences;
+	}
+	
+	private void runAapt(File manifestFile, File resFolder, File genFolder, File apkResFile) throws Exception {
+		genFolder.mkdirs();
+		
+		String[] command = {
+			aapt.getAbsolutePath(),
+			"package", "-f", "-m",
+			"-S", resFolder.getAbsolutePath(),
+			"-J", genFolder.getAbsolutePath(),
+			"-M", manifestFile.getAbsolutePath(),
+			"-I", androidJar.getAbsolutePath(),
+			"-F", apkResFile.getAbsolutePath()
+		};
+		
+		final StringBuilder output = new StringBuilder();
+		
+		int exitCode = new ExternalProcess(command, 60 * 1000, new ExternalProcess.OutputListener() {
+			@Override
+			public void line(String line, boolean error) {
+				synchronized (output) {
+					output.append(line).append('\n');
+				}
+			}
+		}).run(new AtomicBoolean(true));
+		
+		if (exitCode != 0) {
+			throw new Exception("AAPT failed with exit code " + exitCode + ":\n" + output);
+		}
+	}
+	
+	/**
+	 * Adds the lines that are only in one of the dumps to the differences.
+	 */
+	private static void compare(String what, List<String> expected, List<String> actual, List<String> differences) {
+		if (expected.equals(actual)) {
+			return;
+		}
+		
+		StringBuilder difference = new StringBuilder(what + " doesn't match AAPT's:");
+		
+		for (String line : expected) {
+			if (!actual.contains(line)) {
+				difference.append("\n  AAPT:             ").append(line);
+			}
+		}
+		
+		for (String line : actual) {
+			if (!expected.contains(line)) {
+				difference.append("\n  ResourcePackager: ").append(line);
+			}
+		}
+		
+		//Everything is there, but not in the same order
+		if (difference.indexOf("\n") == -1) {
+			difference.append(" the order is different");
+		}
+		
+		differences.add(difference.toString());
+	}
+	
+	/**
+	 * @return the classes and fields of the R.java in the folder, e.g. "drawable.icon=0x7f020000"
+	 */
+	private static List<String> dumpR(File genFolder) throws IOException {
+		File rFile = findR(genFolder);
+		
+		if (rFile == null) {
+			throw new IOException("There is no R.java in " + genFolder.getAbsolutePath());
+		}
+		
+		List<String> dump = new ArrayList<String>();
+		String className = null;
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rFile), "UTF-8"));
+		
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher matcher = R_CLASS.matcher(line);
+				
+				if (matcher.find()) {
+					className = matcher.group(1);
+					dump.add("class " + className);
+					continue;
+				}
+				
+				matcher = R_FIELD.matcher(line);
+				
+				if (matcher.find()) {
+					dump.add(className + "." + matcher.group(1) + "=" + matcher.group(2).toLowerCase(Locale.US));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		
+		return dump;
+	}
+	
+	private static File findR(File folder) {
+		File[] children = folder.listFiles();
+		
+		if (children == null) {
+			return null;
+		}
+		
+		for (File child : children) {
+			if (child.isDirectory()) {
+				File rFile = findR(child);
+				
+				if (rFile != null) {
+					return rFile;
+				}
+			} else if (child.getName().equals("R.java")) {
+				return child;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Decodes a binary XML file into lines like "aapt dump xmltree", without the line numbers.
+	 */
+	private static List<String> dumpXml(byte[] data) throws IOException {
+		Chunk xml = new Chunk(data, 0);
+		
+		if (xml.type != RES_XML_TYPE) {
+			throw new IOException("Not a binary XML file");
+		}
+		
+		List<String> dump = new ArrayList<String>();
+		List<String> strings = null;
+		int[] resourceIds = new int[0];
+		String indent = "";
+		
+		for (int offset = xml.headerSize; offset < xml.size; ) {
+			Chunk chunk = new Chunk(data, offset);
+			//The body of the node, after the line number and the comment
+			int body = offset + chunk.headerSize;
+			
+			switch (chunk.type) {
+			case RES_STRING_POOL_TYPE:
+				strings = readStringPool(data, offset);
+				break;
+			case RES_XML_RESOURCE_MAP_TYPE:
+				resourceIds = new int[(chunk.size - chunk.headerSize) / 4];
+				for (int i = 0; i < resourceIds.length; i ++) {
+					resourceIds[i] = readInt(data, body + i * 4);
+				}
+				break;
+			case RES_XML_START_NAMESPACE_TYPE:
+				dump.add(indent + "N: " + getString(strings, readInt(data, body)) + "=" + getString(strings, readInt(data, body + 4)));
+				indent += "  ";
+				break;
+			case RES_XML_END_NAMESPACE_TYPE:
+			case RES_XML_END_ELEMENT_TYPE:
+				indent = indent.substring(2);
+				break;
+			case RES_XML_START_ELEMENT_TYPE:
+				dump.add(indent + "E: " + getName(strings, readInt(data, body), readInt(data, body + 4)));
+				indent += "  ";
+				
+				int attributeStart = readShort(data, body + 8);
+				int attributeSize = readShort(data, body + 10);
+				int attributeCount = readShort(data, body + 12);
+				
+				for (int i = 0; i < attributeCount; i ++) {
+					int attribute = body + attributeStart + i * attributeSize;
+					int name = readInt(data, attribute + 4);
+					String resourceId = name >= 0 && name < resourceIds.length ? "(" + hex(resourceIds[name]) + ")" : "";
+					
+					dump.add(indent + "A: " + getName(strings, readInt(data, attribute), name) + resourceId + "="
+							+ describeValue(data, attribute + 12, strings));
+				}
+				break;
+			default:
+				dump.add(indent + "chunk " + hex(chunk.type));
+				break;
+			}
+			
+			offset += chunk.size;
+		}
+		
+		return dump;
+	}
+	
+	/**
+	 * Decodes resources.arsc into lines like "aapt dump resources".
+	 */
+	private static List<String> dumpTable(byte[] data) throws IOException {
+		Chunk table = new Chunk(data, 0);
+		
+		if (table.type != RES_TABLE_TYPE) {
+			throw new IOException("Not a resource table");
+		}
+		
+		List<String> dump = new ArrayList<String>();
+		List<String> values = null;
+		
+		for (int offset = table.headerSize; offset < table.size; ) {
+			Chunk chunk = new Chunk(data, offset);
+			
+			if (chunk.type == RES_STRING_POOL_TYPE) {
+				values = readStringPool(data, offset);
+			} else if (chunk.type == RES_TABLE_PACKAGE_TYPE) {
+				dumpPackage(data, offset, values, dump);
+			} else {
+				dump.add("chunk " + hex(chunk.type));
+			}
+			
+			offset += chunk.size;
+		}
+		
+		return dump;
+	}
+	
+	private static void dumpPackage(byte[] data, int offset, List<String> values, List<String> dump) throws IOException {
+		Chunk packageChunk = new Chunk(data, offset);
+		int packageId = readInt(data, offset + 8);
+		
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 128; i ++) {
+			char c = (char) readShort(data, offset + 12 + i * 2);
+			
+			if (c == 0) {
+				break;
+			}
+			
+			name.append(c);
+		}
+		
+		dump.add("package " + hexByte(packageId) + " " + name);
+		
+		List<String> types = readStringPool(data, offset + readInt(data, offset + 268));
+		List<String> keys = readStringPool(data, offset + readInt(data, offset + 276));
+		
+		for (int chunkOffset = offset + packageChunk.headerSize; chunkOffset < offset + packageChunk.size; ) {
+			Chunk chunk = new Chunk(data, chunkOffset);
+			int body = chunkOffset + 8;
+			
+			if (chunk.type == RES_TABLE_TYPE_SPEC_TYPE) {
+				int type = data[body] & 0xFF;
+				int entryCount = readInt(data, body + 4);
+				
+				StringBuilder flags = new StringBuilder();
+				for (int i = 0; i < entryCount; i ++) {
+					flags.append(' ').append(hex(readInt(data, chunkOffset + chunk.headerSize + i * 4)));
+				}
+				
+				dump.add("  type " + type + " " + getString(types, type - 1) + ": " + entryCount + " entries, flags" + flags);
+			} else if (chunk.type == RES_TABLE_TYPE_TYPE) {
+				int type = data[body] & 0xFF;
+				int entryCount = readInt(data, body + 4);
+				int entriesStart = readInt(data, body + 8);
+				
+				dump.add("    config " + describeConfig(data, body + 12));
+				
+				for (int i = 0; i < entryCount; i ++) {
+					int entryOffset = readInt(data, chunkOffset + chunk.headerSize + i * 4);
+					
+					if (entryOffset == NO_ENTRY) {
+						continue;
+					}
+					
+					int entry = chunkOffset + entriesStart + entryOffset;
+					int id = packageId << 24 | type << 16 | i;
+					String key = getString(keys, readInt(data, entry + 4));
+					
+					if ((readShort(data, entry + 2) & 0x0001) != 0) {
+						//Complex entries (bags) are only used for styles and the like
+						dump.add("      " + hex(id) + " " + key + " = complex");
+					} else {
+						dump.add("      " + hex(id) + " " + key + " = " + describeValue(data, entry + readShort(data, entry), values));
+					}
+				}
+			} else if (chunk.type != RES_STRING_POOL_TYPE) {
+				//The type and key strings have already been read
+				dump.add("  chunk " + hex(chunk.type));
+			}
+			
+			chunkOffset += chunk.size;
+		}
+	}
+	
+	/**
+	 * Describes a ResTable_config, like the qualifiers of a resource folder.
+	 */
+	private static String describeConfig(byte[] data, int offset) {
+		int size = readInt(data, offset);
+		int density = readShort(data, offset + 14);
+		int sdkVersion = size >= 28 ? readShort(data, offset + 24) : 0;
+		
+		StringBuilder description = new StringBuilder();
+		
+		if (density != 0) {
+			description.append(" density=").append(density);
+		}
+		
+		if (sdkVersion != 0) {
+			description.append(" v").append(sdkVersion);
+		}
+		
+		//Anything else would be a qualifier that neither of them should be writing
+		for (int i = 4; i < size; i ++) {
+			if (i != 14 && i != 15 && i != 24 && i != 25 && data[offset + i] != 0) {
+				description.append(" byte ").append(i).append('=').append(data[offset + i] & 0xFF);
+			}
+		}
+		
+		return description.length() > 0 ? description.substring(1) : "default";
+	}
+	
+	/**
+	 * Describes a Res_value, with strings looked up in the string pool.
+	 */
+	private static String describeValue(byte[] data, int offset, List<String> strings) throws IOException {
+		int type = data[offset + 3] & 0xFF;
+		int value = readInt(data, offset + 4);
+		
+		if (type == TYPE_STRING) {
+			return "\"" + getString(strings, value) + "\"";
+		}
+		
+		return "(type " + hexByte(type) + ")" + hex(value);
+	}
+	
+	private static String getName(List<String> strings, int namespace, int name) throws IOException {
+		return (namespace != -1 ? "{" + getString(strings, namespace) + "}" : "") + getString(strings, name);
+	}
+	
+	private static String getString(List<String> strings, int index) throws IOException {
+		if (strings == null || index < 0 || index >= strings.size()) {
+			throw new IOException("No string " + index + " in the string pool");
+		}
+		
+		return strings.get(index);
+	}
+	
+	/**
+	 * Reads a string pool in either UTF-8 or UTF-16.
+	 */
+	private static List<String> readStringPool(byte[] data, int offset) throws IOException {
+		Chunk chunk = new Chunk(data, offset);
+		
+		if (chunk.type != RES_STRING_POOL_TYPE) {
+			throw new IOException("Expected a string pool at " + offset);
+		}
+		
+		int count = readInt(data, offset + 8);
+		boolean utf8 = (readInt(data, offset + 16) & UTF8_FLAG) != 0;
+		int stringsStart = offset + readInt(data, offset + 20);
+		
+		List<String> strings = new ArrayList<String>(count);
+		
+		for (int i = 0; i < count; i ++) {
+			int position = stringsStart + readInt(data, offset + chunk.headerSize + i * 4);
+			
+			if (utf8) {
+				//The length in UTF-16 and then the length in bytes, each one or two bytes long
+				position += (data[position] & 0x80) != 0 ? 2 : 1;
+				int length = data[position] & 0xFF;
+				
+				if ((length & 0x80) != 0) {
+					length = (length & 0x7F) << 8 | data[position + 1] & 0xFF;
+					position += 2;
+				} else {
+					position += 1;
+				}
+				
+				strings.add(new String(data, position, length, Charset.forName("UTF-8")));
+			} else {
+				int length = readShort(data, position);
+				
+				if ((length & 0x8000) != 0) {
+					length = (length & 0x7FFF) << 16 | readShort(data, position + 2);
+					position += 4;
+				} else {
+					position += 2;
+				}
+				
+				char[] chars = new char[length];
+				for (int j = 0; j < length; j ++) {
+					chars[j] = (char) readShort(data, position + j * 2);
+				}
+				
+				strings.add(new String(chars));
+			}
+		}
+		
+		return strings;
+	}
+	
+	private static int readShort(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+	}
+	
+	private static int readInt(byte[] data, int offset) {
+		return readShort(data, offset) | readShort(data, offset + 2) << 16;
+	}
+	
+	private static String hex(int value) {
+		return String.format(Locale.US, "0x%08x", value);
+	}
+	
+	private static String hexByte(int value) {
+		return String.format(Locale.US, "0x%02x", value);
+	}
+	
+	/**
+	 * The header that every chunk starts with.
+	 */
+	private static class Chunk {
+		private int type;
+		private int headerSize;
+		private int size;
+		
+		public Chunk(byte[] data, int offset) throws IOException {
+			if (offset + 8 > data.length) {
+				throw new IOException("Truncated chunk at " + offset);
+			}
+			
+			type = readShort(data, offset);
+			headerSize = readShort(data, offset + 2);
+			size = readInt(data, offset + 4);
+			
+			if (size < headerSize || offset + size > data.length) {
+				throw new IOException("Bad chunk size at " + offset);
+			}
+		}
+	}
+	
+	/**
+	 * The files in a packaged .apk.res.
+	 */
+	private static class ApkRes {
+		private List<String> names = new ArrayList<String>();
+		private List<byte[]> contents = new ArrayList<byte[]>();
+		
+		public ApkRes(File file) throws IOException {
+			ZipInputStream zip = new ZipInputStream(new FileInputStream(file));
+			
+			try {
+				ZipEntry entry;
+				while ((entry = zip.getNextEntry()) != null) {
+					names.add(entry.getName());
+					contents.add(readFully(zip));
+				}
+			} finally {
+				zip.close();
+			}
+		}
+		
+		/**
+		 * @return the names of the files, sorted because the order doesn't matter
+		 */
+		public List<String> getNames() {
+			List<String> sorted = new ArrayList<String>(names);
+			Collections.sort(sorted);
+			
+			return sorted;
+		}
+		
+		public byte[] get(String name) throws IOException {
+			int index = names.indexOf(name);
+			
+			if (index == -1) {
+				throw new IOException("There is no " + name + " in the .apk.res");
+			}
+			
+			return contents.get(index);
+		}
+		
+		private static byte[] readFully(InputStream stream) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8 * 1024];
+			
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			
+			return out.toByteArray();
+		}
+	}
+}
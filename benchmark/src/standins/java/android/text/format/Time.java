@@ -0,0 +1,8 @@
+package android.text.format;
+
+/**
+ * Stands in for the framework's Time on a desktop JVM. PApplet creates one as soon as it is
+ * loaded (e.g. by the preprocessor or by processing.data.XML), and the version in android.jar
+ * only throws. The build never uses it.
+ */
+public class Time {}
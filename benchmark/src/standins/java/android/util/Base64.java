@@ -0,0 +1,19 @@
+package android.util;
+
+/**
+ * Stands in for the framework's Base64 on a desktop JVM. ZipSigner looks this class up by name
+ * and falls back to the regular Bouncy Castle encoder, which isn't bundled with APDE (APDE only
+ * has Spongy Castle). The flags are ignored because ZipSigner always uses NO_WRAP.
+ */
+public class Base64 {
+	public static final int DEFAULT = 0;
+	public static final int NO_WRAP = 2;
+	
+	public static byte[] encode(byte[] input, int flags) {
+		return org.spongycastle.util.encoders.Base64.encode(input);
+	}
+	
+	public static byte[] decode(byte[] input, int flags) {
+		return org.spongycastle.util.encoders.Base64.decode(input);
+	}
+}
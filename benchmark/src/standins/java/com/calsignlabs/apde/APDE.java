@@ -0,0 +1,22 @@
+package com.calsignlabs.apde;
+
+import java.io.File;
+
+/**
+ * Stands in for the application class on a desktop JVM. The build sequence only refers to it
+ * through Library, which needs to know where the libraries are installed.
+ */
+public class APDE {
+	private File librariesFolder;
+	
+	/**
+	 * @param librariesFolder the folder with the installed libraries
+	 */
+	public APDE(File librariesFolder) {
+		this.librariesFolder = librariesFolder;
+	}
+	
+	public File getLibrariesFolder() {
+		return librariesFolder;
+	}
+}
@@ -0,0 +1,30 @@
+package com.calsignlabs.apde;
+
+/**
+ * Stands in for the app's generated R class on a desktop JVM, with only the resources that the
+ * build sequence uses. The IDs are made up. JvmBuildEnvironment finds the names of the fields
+ * and reads the values from the app's res/values folder.
+ */
+public final class R {
+	public static final class integer {
+		public static final int prop_target_sdk_default = 0x7f0b0000;
+		public static final int prop_version_code_default = 0x7f0b0001;
+	}
+	
+	public static final class string {
+		public static final int build_failed = 0x7f0c0000;
+		public static final int build_halted = 0x7f0c0001;
+		public static final int build_sketch_message = 0x7f0c0002;
+		public static final int custom_perm = 0x7f0c0003;
+		public static final int export_eclipse_project_complete = 0x7f0c0004;
+		public static final int export_signed_package_complete = 0x7f0c0005;
+		public static final int gen_project_message = 0x7f0c0006;
+		public static final int prop_orientation_default = 0x7f0c0007;
+		public static final int prop_pretty_version_default = 0x7f0c0008;
+		public static final int run_aapt = 0x7f0c0009;
+		public static final int run_apkbuilder = 0x7f0c000a;
+		public static final int run_dx = 0x7f0c000b;
+		public static final int run_ecj = 0x7f0c000c;
+		public static final int run_sketch = 0x7f0c000d;
+	}
+}